@@ -0,0 +1,235 @@
+/* AdmissionControl decides whether a server takes on a newly accepted
+* connection. It caps the number of open connections and, for the selector
+* engine, the number of connections still in their handshake, so a burst of
+* clients queues a bounded amount of RSA work instead of driving the machine
+* into thrashing.
+*
+* A connection that is not admitted is sent a FAIL_BUSY envelope, unencrypted
+* and before any handshake, holding the number of milliseconds the client
+* should wait before trying again. The server then stops writing and reads
+* until the client closes, because closing with the client's hello still
+* unread would reset the connection and lose the FAIL_BUSY reply.
+*
+* Limits are read from system properties when the server starts:
+*   server.maxConnections         open connections (default 10000)
+*   server.maxPendingHandshakes   connections admitted but not yet through the
+*                                 handshake (default 256)
+*   server.retryAfter             base retry delay in ms (default 500)
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class AdmissionControl {
+
+	public static final String MAX_CONNECTIONS_PROPERTY = "server.maxConnections";
+	public static final String MAX_PENDING_HANDSHAKES_PROPERTY = "server.maxPendingHandshakes";
+	public static final String RETRY_AFTER_PROPERTY = "server.retryAfter";
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 10000;
+	public static final int DEFAULT_MAX_PENDING_HANDSHAKES = 256;
+	public static final int DEFAULT_RETRY_AFTER_MS = 500;
+
+	// how long a rejected client has to close its end before it is cut off
+	public static final long REJECT_LINGER_MS = 5000;
+
+	private final int maxConnections;
+	private final int maxPendingHandshakes;
+	private final int retryAfter;
+
+	private int connections = 0;
+	private int pendingHandshakes = 0;
+
+	// rejected channels waiting for the client to close, and the thread and
+	// selector that drain them; started by the first rejection
+	private final ConcurrentLinkedQueue<SocketChannel> rejected = new ConcurrentLinkedQueue<SocketChannel>();
+	private Selector lingerSelector = null;
+
+	public AdmissionControl()
+	{
+		maxConnections = Integer.getInteger(MAX_CONNECTIONS_PROPERTY, DEFAULT_MAX_CONNECTIONS).intValue();
+		maxPendingHandshakes = Integer.getInteger(MAX_PENDING_HANDSHAKES_PROPERTY, DEFAULT_MAX_PENDING_HANDSHAKES).intValue();
+		retryAfter = Integer.getInteger(RETRY_AFTER_PROPERTY, DEFAULT_RETRY_AFTER_MS).intValue();
+	}
+
+	/**
+	 * This method admits a connection that will have its own thread, as long
+	 * as the connection limit has not been reached.
+	 * @return true if the connection was admitted
+	 */
+	public synchronized boolean admitConnection()
+	{
+		if (connections >= maxConnections) {
+			return false;
+		}
+
+		connections++;
+		return true;
+	}
+
+	/**
+	 * This method admits a connection whose handshake will wait for a shared
+	 * worker, as long as neither the connection limit nor the pending handshake
+	 * limit has been reached.
+	 * @return true if the connection was admitted
+	 */
+	public synchronized boolean admitHandshake()
+	{
+		if (connections >= maxConnections || pendingHandshakes >= maxPendingHandshakes) {
+			return false;
+		}
+
+		connections++;
+		pendingHandshakes++;
+		return true;
+	}
+
+	/**
+	 * This method records that a connection admitted by admitHandshake has
+	 * completed its handshake.
+	 */
+	public synchronized void handshakeFinished()
+	{
+		pendingHandshakes--;
+	}
+
+	/**
+	 * This method records that an admitted connection has closed.
+	 * @param handshakePending true if the connection was admitted by
+	 *        admitHandshake and closed before handshakeFinished
+	 */
+	public synchronized void connectionClosed(boolean handshakePending)
+	{
+		connections--;
+		if (handshakePending) {
+			pendingHandshakes--;
+		}
+	}
+
+	/**
+	 * This method returns how long a rejected client should wait, longer the
+	 * more handshakes are already pending.
+	 * @return the delay in milliseconds
+	 */
+	public synchronized int retryAfter()
+	{
+		return retryAfter + (int) ((long) retryAfter * pendingHandshakes / Math.max(1, maxPendingHandshakes));
+	}
+
+	/**
+	 * This method turns away a connection that was not admitted: it sends the
+	 * FAIL_BUSY envelope and closes the channel once the client has read it.
+	 * It never blocks, so it can be called from an accept loop.
+	 * @param channel the accepted channel
+	 */
+	public void reject(SocketChannel channel)
+	{
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream output = new ObjectOutputStream(bytes);
+			Envelope busy = new Envelope(ResponseConstants.FAIL_BUSY);
+			busy.addObject(Integer.valueOf(retryAfter()));
+			output.writeObject(busy);
+			output.flush();
+
+			// a new socket's send buffer is empty, so the reply fits in one write
+			channel.configureBlocking(false);
+			channel.write(ByteBuffer.wrap(bytes.toByteArray()));
+			channel.socket().shutdownOutput();
+		} catch (IOException e) {
+			close(channel);
+			return;
+		}
+
+		rejected.add(channel);
+		startLingering().wakeup();
+	}
+
+	private synchronized Selector startLingering()
+	{
+		if (lingerSelector == null) {
+			try {
+				lingerSelector = Selector.open();
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to open a selector: " + e.getMessage(), e);
+			}
+
+			Thread drainer = new Thread(new Runnable() {
+				public void run() {
+					drainRejected();
+				}
+			}, "admission-drainer");
+			drainer.setDaemon(true);
+			drainer.start();
+		}
+
+		return lingerSelector;
+	}
+
+	/**
+	 * This method reads and discards whatever rejected clients still send, and
+	 * closes each channel when its client does or REJECT_LINGER_MS has passed.
+	 */
+	private void drainRejected()
+	{
+		ByteBuffer scratch = ByteBuffer.allocate(4096);
+		while (true) {
+			try {
+				lingerSelector.select(REJECT_LINGER_MS);
+
+				SocketChannel channel;
+				while ((channel = rejected.poll()) != null) {
+					try {
+						channel.register(lingerSelector, SelectionKey.OP_READ,
+							Long.valueOf(System.currentTimeMillis() + REJECT_LINGER_MS));
+					} catch (ClosedChannelException e) {
+						// nothing left to drain
+					}
+				}
+
+				Iterator<SelectionKey> keys = lingerSelector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					scratch.clear();
+
+					boolean closed;
+					try {
+						closed = !key.isValid() || ((SocketChannel) key.channel()).read(scratch) < 0;
+					} catch (IOException e) {
+						closed = true;
+					}
+
+					if (closed) {
+						key.cancel();
+						close((SocketChannel) key.channel());
+					}
+				}
+
+				long now = System.currentTimeMillis();
+				for (SelectionKey key : lingerSelector.keys()) {
+					if (now > ((Long) key.attachment()).longValue()) {
+						key.cancel();
+						close((SocketChannel) key.channel());
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Error draining rejected connections: " + e.getMessage());
+			}
+		}
+	}
+
+	private static void close(SocketChannel channel)
+	{
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+}
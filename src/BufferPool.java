@@ -0,0 +1,220 @@
+/* A BufferPool keeps large byte arrays for reuse, so that file transfers do not
+* allocate a fresh chunk buffer, encoding buffer, and ciphertext buffer for
+* every message. One pool is shared by all connections of a process.
+*
+* Arrays are pooled in classes of whole GRANULE multiples. Requests for less
+* than GRANULE bytes are served with plain arrays and never retained, so small
+* messages cost what they did before and only transfer-sized buffers are kept.
+* At most buffers.maxRetained bytes (default 64 MB) are held while idle; beyond
+* that, released arrays are left to the garbage collector.
+*
+* The pool also keeps direct buffers, in the same size classes and under the
+* same limit, for file data that is read and encrypted without passing through
+* an array on the Java heap. Direct buffers are costly to allocate and are
+* freed only when collected, so reusing them matters even more than for arrays.
+*
+* A released array or buffer must not be used again by the code that released it.
+*/
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BufferPool {
+
+	public static final String MAX_RETAINED_PROPERTY = "buffers.maxRetained";
+
+	// size classes are multiples of this many bytes
+	public static final int GRANULE = 64 * 1024;
+
+	public static final long DEFAULT_MAX_RETAINED = 64L * 1024 * 1024;
+
+	private static final BufferPool SHARED = new BufferPool(Long.getLong(MAX_RETAINED_PROPERTY, DEFAULT_MAX_RETAINED).longValue());
+
+	private final long maxRetained;
+
+	// idle arrays by length, and their total size
+	private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<byte[]>> idle = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<byte[]>>();
+	private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> idleDirect = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>>();
+	private final AtomicLong retained = new AtomicLong();
+
+	public BufferPool(long _maxRetained)
+	{
+		maxRetained = _maxRetained;
+	}
+
+	/**
+	 * This method returns the pool shared by the whole process.
+	 * @return the shared pool
+	 */
+	public static BufferPool shared()
+	{
+		return SHARED;
+	}
+
+	/**
+	 * This method returns an array of at least the given size.
+	 * @param size the number of bytes needed
+	 * @return an array of exactly size bytes if size is under GRANULE,
+	 *         otherwise of size rounded up to a multiple of GRANULE
+	 */
+	public byte[] acquire(int size)
+	{
+		if (size < GRANULE) {
+			return new byte[size];
+		}
+
+		return take((int) (((long) size + GRANULE - 1) / GRANULE * GRANULE));
+	}
+
+	/**
+	 * This method returns an array of exactly the given size, taken from the
+	 * pool when the size is a whole size class.
+	 * @param size the length of the array
+	 * @return the array
+	 */
+	public byte[] acquireExact(int size)
+	{
+		if (size < GRANULE || size % GRANULE != 0) {
+			return new byte[size];
+		}
+
+		return take(size);
+	}
+
+	/**
+	 * This method returns a direct buffer of at least the given size.
+	 * @param size the number of bytes needed
+	 * @return a cleared direct buffer whose capacity is size rounded up to a
+	 *         multiple of GRANULE
+	 */
+	public ByteBuffer acquireDirect(int size)
+	{
+		int capacity = (int) (((long) Math.max(size, 1) + GRANULE - 1) / GRANULE * GRANULE);
+		ByteBuffer buffer = poll(idleDirect, capacity);
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(capacity);
+		}
+
+		buffer.clear();
+		return buffer;
+	}
+
+	private byte[] take(int length)
+	{
+		byte[] buffer = poll(idle, length);
+		return buffer != null ? buffer : new byte[length];
+	}
+
+	private <T> T poll(ConcurrentHashMap<Integer, ConcurrentLinkedQueue<T>> classes, int length)
+	{
+		ConcurrentLinkedQueue<T> queue = classes.get(length);
+		T buffer = queue != null ? queue.poll() : null;
+		if (buffer != null) {
+			retained.addAndGet(-length);
+		}
+
+		return buffer;
+	}
+
+	private <T> void offer(ConcurrentHashMap<Integer, ConcurrentLinkedQueue<T>> classes, int length, T buffer)
+	{
+		if (retained.addAndGet(length) > maxRetained) {
+			retained.addAndGet(-length);
+			return;
+		}
+
+		ConcurrentLinkedQueue<T> queue = classes.get(length);
+		if (queue == null) {
+			classes.putIfAbsent(length, new ConcurrentLinkedQueue<T>());
+			queue = classes.get(length);
+		}
+		queue.offer(buffer);
+	}
+
+	/**
+	 * This method gives an array back to the pool. Arrays that are not a whole
+	 * size class, or that would take the pool over its limit, are dropped.
+	 * @param buffer the array, which may be null
+	 */
+	public void release(byte[] buffer)
+	{
+		if (buffer == null || buffer.length < GRANULE || buffer.length % GRANULE != 0) {
+			return;
+		}
+
+		offer(idle, buffer.length, buffer);
+	}
+
+	/**
+	 * This method gives a direct buffer, or the array behind a heap buffer,
+	 * back to the pool.
+	 * @param buffer a buffer returned by this pool's users, which may be null
+	 */
+	public void release(ByteBuffer buffer)
+	{
+		if (buffer == null) {
+			return;
+		}
+
+		if (!buffer.isDirect()) {
+			if (buffer.hasArray()) {
+				release(buffer.array());
+			}
+		} else if (buffer.capacity() >= GRANULE && buffer.capacity() % GRANULE == 0) {
+			offer(idleDirect, buffer.capacity(), buffer);
+		}
+	}
+
+	/**
+	 * An output stream that writes into an array from the pool, growing straight
+	 * to the size a write needs. It starts on a small plain array, so a message
+	 * of any size costs at most that array and one pooled buffer.
+	 */
+	public static class PooledOutputStream extends OutputStream
+	{
+		private final BufferPool pool;
+		private byte[] buffer = new byte[256];
+		private int count = 0;
+
+		public PooledOutputStream(BufferPool _pool)
+		{
+			pool = _pool;
+		}
+
+		private void ensureCapacity(int capacity)
+		{
+			if (capacity > buffer.length) {
+				byte[] grown = pool.acquire(Math.max(capacity, 2 * buffer.length));
+				System.arraycopy(buffer, 0, grown, 0, count);
+				pool.release(buffer);
+				buffer = grown;
+			}
+		}
+
+		public void write(int b)
+		{
+			ensureCapacity(count + 1);
+			buffer[count++] = (byte) b;
+		}
+
+		public void write(byte[] b, int off, int len)
+		{
+			ensureCapacity(count + len);
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+		}
+
+		/**
+		 * This method returns what was written, backed by the stream's array.
+		 * The caller releases the array to the pool when done with it.
+		 * @return the written bytes, from position 0 to the limit
+		 */
+		public ByteBuffer toByteBuffer()
+		{
+			return ByteBuffer.wrap(buffer, 0, count);
+		}
+	}
+}
@@ -1,11 +1,17 @@
 import java.net.Socket;
 import java.io.*;
-import javax.crypto.spec.IvParameterSpec;
+import java.nio.ByteBuffer;
 import java.util.Scanner;
 
 import java.security.*;
 import javax.crypto.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class Client {
 
@@ -29,6 +35,47 @@ public abstract class Client {
 	// sequence number to prevent message reordering
 	private int sequenceNumber = -1;
 
+	// optional protocol features to request while connecting, and the subset
+	// of them that the server accepted
+	protected int requestedCapabilities = 0;
+	protected int capabilities = 0;
+
+	// number of requests to keep in flight when pipelining, as requested and as
+	// granted by the server
+	protected int requestedPipelineWindow = 1;
+	protected int pipelineWindow = 1;
+
+	// ciphers, MAC, and randomness reused for every message on this connection
+	protected CryptoContext crypto = new CryptoContext();
+
+	// ticket from the last session with a server that accepted CAP_RESUMPTION,
+	// the secret it seals, and the server ("ip:port") that issued it
+	private byte[] sessionTicket = null;
+	private byte[] resumptionSecret = null;
+	private String ticketEndpoint = null;
+
+	// the server ("ip:port") that accepted CAP_ECDHE in the last handshake with
+	// it; only that server is sent an ECDHE_HELLO, every other gets a CONNECT
+	private String ecdheEndpoint = null;
+
+	// with CAP_STREAMS, each thread using this client sends on its own logical
+	// stream, and a reader thread hands every response to the queue of the
+	// stream it was sent on; sequenceNumber then counts sent messages only
+	private final AtomicInteger nextStreamId = new AtomicInteger(0);
+	private final ThreadLocal<Integer> streamId = new ThreadLocal<Integer>() {
+		protected Integer initialValue() {
+			return Integer.valueOf(nextStreamId.getAndIncrement());
+		}
+	};
+	private final ConcurrentHashMap<Integer, BlockingQueue<Envelope>> streamQueues =
+		new ConcurrentHashMap<Integer, BlockingQueue<Envelope>>();
+	private final Object writeLock = new Object();
+	private volatile Thread streamReader = null;
+	private volatile boolean streamsClosing = false;
+
+	// placed on every stream queue once the connection can no longer deliver responses
+	private static final Envelope STREAM_CLOSED = new Envelope("STREAM-CLOSED");
+
 	// constants for encryption algorithms
 	protected final String HMAC_SHA1_ALGORITHM = "HmacSHA1";
 	protected final String SHA1_PRNG = "SHA1PRNG";
@@ -37,6 +84,16 @@ public abstract class Client {
 	protected final String AES_ALGORITHM = "AES";
 	protected final String SHA_256_ALGORITHM = "SHA-256";
 
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	// how often connect tries again after a FAIL_BUSY reply, and the longest
+	// it waits between attempts
+	public static final int MAX_BUSY_RETRIES = 5;
+	public static final long MAX_BUSY_BACKOFF_MS = 30 * 1000L;
+
+	// delay requested by the server's FAIL_BUSY reply to the last attempt, or -1
+	private int busyRetryAfter = -1;
+
 	/**
 	* This method connects to the server and establishes a shared secret AES key
 	* with the server according to the mechanism outlined in Protocol 1 of the
@@ -46,9 +103,46 @@ public abstract class Client {
 	* @return true if the connection and shared AES key are established
 	*/
 	public boolean connect(final String serverIP, final int port, boolean isFileServer) {
+		for (int attempt = 0; ; attempt++) {
+			busyRetryAfter = -1;
+			if (connectOnce(serverIP, port, isFileServer)) {
+				return true;
+			}
+
+			if (busyRetryAfter < 0 || attempt >= MAX_BUSY_RETRIES) {
+				return false;
+			}
+
+			// wait at least as long as the server asked, doubling on every refusal,
+			// with jitter so that refused clients do not all return at once
+			long delay = Math.min(MAX_BUSY_BACKOFF_MS, Math.max(busyRetryAfter, (long) busyRetryAfter << attempt));
+			delay += crypto.getRandom().nextInt((int) delay / 2 + 1);
+			System.out.println(ResponseConstants.FAIL_BUSY_MSG + " Retrying in " + delay + " ms...");
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	* This method makes one attempt at connecting to the server.
+	* @return true if the connection and shared AES key are established; if the
+	*         server was too busy to take the connection, busyRetryAfter is set
+	*/
+	private boolean connectOnce(final String serverIP, final int port, boolean isFileServer) {
 		System.out.println("Attempting to connect...");
 
 		try {
+			// a multiplexed connection that was never disconnected must not keep
+			// delivering responses once it is replaced
+			if (streamReader != null) {
+				streamsClosing = true;
+				sock.close();
+				stopStreams();
+			}
+
 			// connect to the server
 			sock = new Socket(serverIP, port);
 			output = new ObjectOutputStream(sock.getOutputStream());
@@ -60,9 +154,60 @@ public abstract class Client {
 				return false;
 			}
 
+			sequenceNumber = -1;
+			capabilities = 0;
+			pipelineWindow = 1;
+
+			// a server that issued a ticket last time can skip the RSA handshake
+			String endpoint = serverIP + ":" + port;
+			if (sessionTicket != null && endpoint.equals(ticketEndpoint)) {
+				try {
+					if (resumeSession(endpoint)) {
+						System.out.println(ResponseConstants.SUCCESS_CONNECT_MSG);
+						return true;
+					} else if (busyRetryAfter >= 0) {
+						sock.close();
+						return false;
+					}
+				} catch (Exception e) {
+					// the connection is in an unknown state, start over without the ticket
+					System.err.println("Session resumption failed: " + e.getMessage());
+					sessionKeyEstablished = false;
+					sock.close();
+					return connectOnce(serverIP, port, isFileServer);
+				}
+			}
+
+			// with CAP_ECDHE the keys are agreed on rather than sent under RSA, once
+			// the server has accepted it and its RSA key is known to check the
+			// handshake's signature with
+			if (ProtocolConstants.hasCapability(requestedCapabilities, ProtocolConstants.CAP_ECDHE)
+					&& endpoint.equals(ecdheEndpoint) && publicKey != null) {
+				try {
+					if (agreeSessionKey(endpoint)) {
+						System.out.println(ResponseConstants.SUCCESS_CONNECT_MSG);
+						return true;
+					}
+				} catch (IOException e) {
+					// a server that no longer knows ECDHE_HELLO drops the connection
+					System.err.println("ECDHE handshake failed: " + e.getMessage());
+					ecdheEndpoint = null;
+				}
+
+				sessionKeyEstablished = false;
+				sock.close();
+				if (busyRetryAfter < 0 && ecdheEndpoint == null) {
+					// the server declined, start over with a CONNECT
+					return connectOnce(serverIP, port, isFileServer);
+				}
+				if (busyRetryAfter < 0) {
+					System.out.println(ResponseConstants.FAIL_CONNECT_MSG);
+				}
+				return false;
+			}
+
 			// generate a random integer value and encrypt it
-			SecureRandom random = SecureRandom.getInstance(SHA1_PRNG);
-			Integer challenge = new Integer(random.nextInt());
+			Integer challenge = Integer.valueOf(crypto.getRandom().nextInt());
 
 			// generate AES session key
 			KeyGenerator keyGen = KeyGenerator.getInstance(AES_ALGORITHM);
@@ -76,16 +221,29 @@ public abstract class Client {
 			message.addObject(challenge);
 			message.addObject(sessionKey);
 			message.addObject(signingKey);
+			message.addObject(Integer.valueOf(requestedCapabilities | ProtocolConstants.CAP_IV_ARRAY));
+			if (ProtocolConstants.hasCapability(requestedCapabilities, ProtocolConstants.CAP_PIPELINING)) {
+				message.addObject(Integer.valueOf(requestedPipelineWindow));
+			}
 			encryptAndWriteMessage(message);
 			sessionKeyEstablished = true;
 
 			// read response from the server and decrypt it using server's public key
-			Envelope response = readAndDecryptResponse();
+			Envelope reply = (Envelope) input.readObject();
+			if (isBusy(reply)) {
+				sessionKeyEstablished = false;
+				sock.close();
+				return false;
+			}
+			Envelope response = openSignedResponse(reply);
+			int responseSize = response.getObjContents().size();
+			sequenceNumber = (Integer) response.getObjContents().get(responseSize - 1);
 
 			// check for successful response and incremented challenge
 			if (response.getMessage().equals(ResponseConstants.SUCCESS_CONNECT)) {
 				Integer challengeResponse = (Integer) response.getObjContents().get(0);
 				if (challengeResponse.intValue() == challenge.intValue() + 1) {
+					acceptServerFeatures(response, 1, endpoint);
 					System.out.println(ResponseConstants.SUCCESS_CONNECT_MSG);
 					return true;
 				} else {
@@ -100,6 +258,177 @@ public abstract class Client {
 		return false;
 	}
 
+	/**
+	 * This method offers the server the ticket from the previous session in
+	 * place of the RSA encrypted CONNECT. Both sides derive fresh session keys
+	 * from the ticket's secret and a new nonce.
+	 * @param endpoint the server being connected to
+	 * @return true if the session was resumed, false if the server declined
+	 *         the ticket and expects a CONNECT instead
+	 */
+	private boolean resumeSession(String endpoint) throws Exception {
+		byte[] ticket = sessionTicket;
+		byte[] secret = resumptionSecret;
+
+		// a ticket is offered once; a resumed session comes with a new one
+		sessionTicket = null;
+		resumptionSecret = null;
+
+		byte[] nonce = new byte[SessionTicket.NONCE_LENGTH];
+		crypto.nextBytes(nonce);
+		generateIV();
+		int caps = requestedCapabilities | ProtocolConstants.CAP_IV_ARRAY;
+
+		// the request goes out unencrypted, the ticket is opaque to anyone but the
+		// server and the binder shows that the client holds its secret
+		Envelope message = new Envelope("RESUME");
+		message.addObject(ticket);
+		message.addObject(nonce);
+		message.addObject(iv.clone());
+		message.addObject(Integer.valueOf(caps));
+		message.addObject(Integer.valueOf(requestedPipelineWindow));
+		message.addObject(SessionTicket.binder(secret, nonce, caps, requestedPipelineWindow));
+		output.writeObject(message);
+		output.flush();
+
+		Envelope reply = (Envelope) input.readObject();
+		if (isBusy(reply)) {
+			// the ticket was never looked at, keep it for the next attempt
+			sessionTicket = ticket;
+			resumptionSecret = secret;
+			return false;
+		} else if (reply.getMessage().equals(ResponseConstants.FAIL_RESUME)) {
+			return false;
+		}
+
+		sessionKey = SessionTicket.deriveSessionKey(secret, nonce);
+		signingKey = SessionTicket.deriveSigningKey(secret, nonce);
+		sessionKeyEstablished = true;
+
+		Envelope response = openSignedResponse(reply);
+		if (!response.getMessage().equals(ResponseConstants.SUCCESS_RESUME)) {
+			throw new Exception("Unexpected response: " + response.getMessage());
+		}
+
+		int responseSize = response.getObjContents().size();
+		sequenceNumber = (Integer) response.getObjContents().get(responseSize - 1);
+		acceptServerFeatures(response, 0, endpoint);
+		return true;
+	}
+
+	/**
+	 * This method runs the client side of the ECDHE handshake described in
+	 * EcdheHandshake. The server's signature over the transcript is checked
+	 * against the server's RSA public key before any derived key is used. A
+	 * server that declines the handshake is no longer sent one.
+	 * @param endpoint the server being connected to
+	 * @return true if the session keys were agreed on
+	 */
+	private boolean agreeSessionKey(String endpoint) throws Exception {
+		KeyPair ephemeral = EcdheHandshake.generateKeyPair();
+		byte[] clientPublicKey = ephemeral.getPublic().getEncoded();
+		byte[] nonce = new byte[EcdheHandshake.NONCE_LENGTH];
+		crypto.nextBytes(nonce);
+		generateIV();
+		byte[] helloIV = iv.clone();
+		int caps = requestedCapabilities | ProtocolConstants.CAP_IV_ARRAY;
+
+		Envelope hello = new Envelope("ECDHE_HELLO");
+		hello.addObject(clientPublicKey);
+		hello.addObject(nonce);
+		hello.addObject(helloIV);
+		hello.addObject(Integer.valueOf(caps));
+		hello.addObject(Integer.valueOf(requestedPipelineWindow));
+		output.writeObject(hello);
+		output.flush();
+
+		Envelope serverHello = (Envelope) input.readObject();
+		if (isBusy(serverHello)) {
+			return false;
+		} else if (!serverHello.getMessage().equals("ECDHE_SERVER_HELLO")) {
+			System.err.println("The server declined the ECDHE handshake; using RSA.");
+			ecdheEndpoint = null;
+			return false;
+		}
+
+		byte[] serverPublicKey = (byte[]) serverHello.getObjContents().get(0);
+		byte[] serverSigningKey = (byte[]) serverHello.getObjContents().get(1);
+		byte[] certificate = (byte[]) serverHello.getObjContents().get(2);
+		byte[] signature = (byte[]) serverHello.getObjContents().get(3);
+		byte[] transcript = EcdheHandshake.transcriptHash(clientPublicKey, nonce, helloIV, caps,
+			requestedPipelineWindow, serverPublicKey, serverSigningKey);
+		if (publicKey == null || !HandshakeSigner.verify(publicKey, serverSigningKey, certificate, transcript, signature)) {
+			System.err.println("Invalid signature on the server's handshake.");
+			return false;
+		}
+
+		byte[] sharedSecret = EcdheHandshake.sharedSecret(ephemeral.getPrivate(), serverPublicKey);
+		sessionKey = EcdheHandshake.deriveSessionKey(sharedSecret, transcript);
+		signingKey = EcdheHandshake.deriveSigningKey(sharedSecret, transcript);
+		sessionKeyEstablished = true;
+
+		Envelope response = readAndDecryptResponse();
+		if (response == null || !response.getMessage().equals(ResponseConstants.SUCCESS_CONNECT)) {
+			return false;
+		}
+
+		acceptServerFeatures(response, 0, endpoint);
+		return true;
+	}
+
+	/**
+	 * This method reads the features the server accepted from its handshake
+	 * response: the capability flags, then the pipelining window if pipelining
+	 * was accepted, then a session ticket if resumption was accepted.
+	 * @param response the SUCCESS_CONNECT or SUCCESS_RESUME response
+	 * @param index the position of the capability flags in the response
+	 * @param endpoint the server the response came from
+	 */
+	private void acceptServerFeatures(Envelope response, int index, String endpoint) throws GeneralSecurityException {
+		// the last object is the sequence number; servers that support
+		// negotiation answer with the accepted features ahead of it
+		int size = response.getObjContents().size();
+		if (size > index + 1) {
+			capabilities = ((Integer) response.getObjContents().get(index++)).intValue()
+				& (requestedCapabilities | ProtocolConstants.CAP_IV_ARRAY);
+		}
+		if (ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_ECDHE)) {
+			ecdheEndpoint = endpoint;
+		}
+		if (ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_PIPELINING) && size > index + 1) {
+			int grantedWindow = ((Integer) response.getObjContents().get(index++)).intValue();
+			pipelineWindow = Math.max(1, Math.min(grantedWindow, requestedPipelineWindow));
+		}
+		if (ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_RESUMPTION) && size > index + 1) {
+			sessionTicket = (byte[]) response.getObjContents().get(index++);
+			resumptionSecret = SessionTicket.resumptionSecret(sessionKey, signingKey);
+			ticketEndpoint = endpoint;
+		}
+
+		if (ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_STREAMS)) {
+			startStreams();
+		}
+	}
+
+	/**
+	 * This method selects the optional protocol features (see ProtocolConstants)
+	 * to request on the next call to connect.
+	 * @param _requestedCapabilities the capability flags to request
+	 */
+	public void setRequestedCapabilities(int _requestedCapabilities) {
+		requestedCapabilities = _requestedCapabilities;
+	}
+
+	/**
+	 * This method sets how many requests pipeline() may keep in flight. It is
+	 * requested from the server on the next call to connect together with
+	 * CAP_PIPELINING, and the server may grant a smaller window.
+	 * @param window the number of outstanding requests to ask for
+	 */
+	public void setPipelineWindow(int window) {
+		requestedPipelineWindow = Math.max(1, window);
+	}
+
 	public boolean isConnected() {
 		if (sock == null || sock.isClosed()) {
 			return false;
@@ -115,11 +444,14 @@ public abstract class Client {
 				// send disconnect message to server
 				Envelope message = new Envelope("DISCONNECT");
 				encryptAndWriteMessage(message);
+				streamsClosing = true;
 
 				// delete old session key
 				sessionKey = null;
 				sessionKeyEstablished = false;
 				sequenceNumber = -1;
+				capabilities = 0;
+				pipelineWindow = 1;
 
 				// for some reason, even when the server calls socket.close(), a call
 				// to sock.isConnected() still returns true in the client, so as a
@@ -129,6 +461,134 @@ public abstract class Client {
 				System.err.println("Error closing the socket in Client.java");
 			}
 		}
+
+		stopStreams();
+	}
+
+	/**
+	 * This method starts demultiplexing responses by stream once the server has
+	 * accepted CAP_STREAMS. The server numbers its messages R + 2, R + 4, ... and
+	 * expects R + 1, R + 3, ... from the client, where R is the sequence number
+	 * of its SUCCESS_CONNECT response.
+	 */
+	private void startStreams() {
+		final int handshakeSequenceNumber = sequenceNumber;
+		sequenceNumber = handshakeSequenceNumber - 1;
+		streamsClosing = false;
+		streamQueues.clear();
+
+		streamReader = new Thread(new Runnable() {
+			public void run() {
+				readStreams(handshakeSequenceNumber);
+			}
+		}, "stream-reader");
+		streamReader.setDaemon(true);
+		streamReader.start();
+	}
+
+	/**
+	 * This method waits for the stream reader to exit after the socket was closed.
+	 */
+	private void stopStreams() {
+		Thread reader = streamReader;
+		streamReader = null;
+		if (reader == null) {
+			return;
+		}
+
+		try {
+			reader.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		streamQueues.clear();
+	}
+
+	/**
+	 * This method runs on the stream reader thread. It checks that responses
+	 * arrive in sequence, strips their stream id, and queues each one for the
+	 * thread waiting on that stream. When the connection fails every waiting
+	 * thread is woken up.
+	 * @param handshakeSequenceNumber the sequence number of the handshake response
+	 */
+	private void readStreams(int handshakeSequenceNumber) {
+		// the reader decrypts concurrently with writers, so it needs its own ciphers
+		CryptoContext readCrypto = new CryptoContext();
+		int expectedSequenceNumber = handshakeSequenceNumber;
+
+		try {
+			while (true) {
+				Envelope response = readFramedResponse(readCrypto);
+
+				int responseSize = response.getObjContents().size();
+				int responseSequenceNumber = (Integer) response.getObjContents().get(responseSize - 1);
+				expectedSequenceNumber += 2;
+				if (responseSequenceNumber != expectedSequenceNumber) {
+					throw new Exception("Invalid sequence number: " + responseSequenceNumber + ". Expecting: " + expectedSequenceNumber);
+				}
+
+				Integer responseStreamId = (Integer) response.getObjContents().remove(responseSize - 2);
+				streamQueue(responseStreamId).put(response);
+			}
+		} catch (Exception e) {
+			if (!streamsClosing) {
+				System.err.println("Error reading from multiplexed connection: " + e.getMessage());
+			}
+		}
+
+		streamsClosing = true;
+		for (BlockingQueue<Envelope> queue : streamQueues.values()) {
+			queue.offer(STREAM_CLOSED);
+		}
+	}
+
+	/**
+	 * This method returns the queue of responses for a stream, creating it on first use.
+	 * @param id the stream id
+	 * @return the queue of responses received on that stream
+	 */
+	private BlockingQueue<Envelope> streamQueue(Integer id) {
+		BlockingQueue<Envelope> queue = streamQueues.get(id);
+		if (queue == null) {
+			streamQueues.putIfAbsent(id, new LinkedBlockingQueue<Envelope>());
+			queue = streamQueues.get(id);
+
+			// the reader may have shut down before this queue existed
+			if (streamsClosing) {
+				queue.offer(STREAM_CLOSED);
+			}
+		}
+
+		return queue;
+	}
+
+	/**
+	 * This method takes the next response sent on the calling thread's stream.
+	 * @return the response
+	 */
+	private Envelope takeStreamResponse() throws Exception {
+		BlockingQueue<Envelope> queue = streamQueue(streamId.get());
+		Envelope response = queue.take();
+		if (response == STREAM_CLOSED) {
+			// leave the marker for any later call on this stream
+			queue.offer(STREAM_CLOSED);
+			throw new Exception("Connection closed.");
+		}
+
+		return response;
+	}
+
+	/**
+	 * This method adds the calling thread's stream id and the next sequence number
+	 * to a message and writes it, leaving it in the stream's buffer. The caller
+	 * must hold writeLock.
+	 * @param message the Envelope to send
+	 */
+	private void writeStreamMessage(Envelope message) throws Exception {
+		message.addObject(streamId.get());
+		sequenceNumber += 2;
+		message.addObject(Integer.valueOf(sequenceNumber));
+		writeMessage(message);
 	}
 
 	/**
@@ -137,12 +597,11 @@ public abstract class Client {
 	*/
 	public Envelope readAndDecryptResponse() {
 		try {
-			Envelope signedResponse = (Envelope) input.readObject();
-			if (!verifySignature(signedResponse)) {
-				throw new Exception("Invalid signature on the received message.");
+			if (streamReader != null) {
+				return takeStreamResponse();
 			}
-			SealedObject encryptedResponse = (SealedObject) signedResponse.getObjContents().get(0);
-			Envelope response = (Envelope) decryptObject(encryptedResponse);
+
+			Envelope response = readResponse();
 
 			int responseSize = response.getObjContents().size();
 			int responseSequenceNumber = (Integer) response.getObjContents().get(responseSize - 1);
@@ -158,29 +617,252 @@ public abstract class Client {
 		}
 	}
 
+	/**
+	 * This method sends a batch of independent requests, keeping up to the
+	 * negotiated window of them in flight, and returns their responses. Request
+	 * k carries sequence number base + 2k + 1 and its response must carry
+	 * base + 2k + 2, which is the numbering lock-step mode produces, so replayed,
+	 * reordered, or reflected messages are still rejected. Without
+	 * CAP_PIPELINING the requests are sent one at a time.
+	 * @param requests requests that each expect exactly one response; multi-message
+	 *                 exchanges such as UPLOADF or DOWNLOADF cannot be pipelined
+	 * @return the responses in request order, or null if any response was invalid
+	 */
+	public List<Envelope> pipeline(List<Envelope> requests) {
+		List<Envelope> responses = new ArrayList<Envelope>(requests.size());
+		int window = ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_PIPELINING) ? pipelineWindow : 1;
+		int base = sequenceNumber;
+		int sent = 0;
+
+		try {
+			// with streams, ordering is checked by the reader and the responses
+			// come back on this thread's queue in request order
+			while (streamReader != null && responses.size() < requests.size()) {
+				synchronized (writeLock) {
+					while (sent < requests.size() && sent - responses.size() < window) {
+						writeStreamMessage(requests.get(sent));
+						sent++;
+					}
+					output.flush();
+				}
+
+				responses.add(takeStreamResponse());
+			}
+
+			while (responses.size() < requests.size()) {
+				// fill the window, then push the whole burst out at once
+				while (sent < requests.size() && sent - responses.size() < window) {
+					Envelope request = requests.get(sent);
+					request.addObject(Integer.valueOf(base + 2 * sent + 1));
+					writeMessage(request);
+					sent++;
+				}
+				output.flush();
+
+				// responses arrive in request order
+				int expectedSequenceNumber = base + 2 * responses.size() + 2;
+				Envelope response = readResponse();
+				int responseSize = response.getObjContents().size();
+				int responseSequenceNumber = (Integer) response.getObjContents().get(responseSize - 1);
+				if (responseSequenceNumber != expectedSequenceNumber) {
+					throw new Exception("Invalid sequence number: " + responseSequenceNumber + ". Expecting: " + expectedSequenceNumber);
+				}
+
+				sequenceNumber = responseSequenceNumber;
+				responses.add(response);
+			}
+		} catch (Exception e) {
+			System.err.println("Error in pipelined exchange with server: " + e.getMessage());
+			return null;
+		}
+
+		return responses;
+	}
+
+	/**
+	 * This method sends a message without waiting for its response, such as a
+	 * CHUNK of a streaming upload. In lock-step numbering the message reserves
+	 * the sequence number of its response, which the server then either uses or
+	 * skips (see readUnansweredResponse).
+	 * @param message the Envelope to send
+	 */
+	protected void writeUnansweredMessage(Envelope message) throws Exception {
+		if (streamReader != null) {
+			synchronized (writeLock) {
+				writeStreamMessage(message);
+				output.flush();
+			}
+			return;
+		}
+
+		message.addObject(Integer.valueOf(sequenceNumber + 1));
+		sequenceNumber += 2;
+		writeMessage(message);
+		output.flush();
+	}
+
+	/**
+	 * This method reads a response to one of the messages sent since the last
+	 * response, some of them with writeUnansweredMessage. In lock-step numbering
+	 * it must carry a sequence number reserved by one of those messages: later
+	 * than the previous response's, with the same parity, and no later than the
+	 * one reserved by the last message sent.
+	 * @param previous the sequence number of the last response read
+	 * @return the response
+	 */
+	protected Envelope readUnansweredResponse(int previous) throws Exception {
+		if (streamReader != null) {
+			return takeStreamResponse();
+		}
+
+		Envelope response = readResponse();
+		int responseSize = response.getObjContents().size();
+		int responseSequenceNumber = (Integer) response.getObjContents().get(responseSize - 1);
+		if (responseSequenceNumber <= previous || responseSequenceNumber > sequenceNumber + 1
+				|| (responseSequenceNumber - previous) % 2 != 0) {
+			throw new Exception("Invalid sequence number: " + responseSequenceNumber + " after " + previous);
+		}
+
+		// a response to the last message sent puts the numbering back in step
+		if (responseSequenceNumber == sequenceNumber + 1) {
+			sequenceNumber = responseSequenceNumber;
+		}
+		return response;
+	}
+
+	/**
+	 * This method reads one of several responses the server sends to a single
+	 * request without waiting in between (see ServerThread.writeUnansweredResponse).
+	 * In lock-step numbering the server leaves a number free after each of them
+	 * for a message the client may send meanwhile, so a response follows the
+	 * previous one by two unless the client used that number.
+	 * @param replied true if a message was sent since the previous response,
+	 *                counting the request itself
+	 * @return the response
+	 */
+	protected Envelope readPushedResponse(boolean replied) throws Exception {
+		if (streamReader != null) {
+			return takeStreamResponse();
+		}
+
+		Envelope response = readResponse();
+		int responseSize = response.getObjContents().size();
+		int responseSequenceNumber = (Integer) response.getObjContents().get(responseSize - 1);
+		int expectedSequenceNumber = replied ? sequenceNumber + 1 : sequenceNumber + 2;
+		if (responseSequenceNumber != expectedSequenceNumber) {
+			throw new Exception("Invalid sequence number: " + responseSequenceNumber + ". Expecting: " + expectedSequenceNumber);
+		}
+
+		sequenceNumber = responseSequenceNumber;
+		return response;
+	}
+
+	/**
+	 * This method reads the next Envelope from the server in whichever format was
+	 * negotiated, without checking its sequence number.
+	 * @return the decrypted Envelope
+	 */
+	private Envelope readResponse() throws Exception {
+		if (ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_FRAMING)) {
+			return readFramedResponse(crypto);
+		}
+
+		return openSignedResponse((Envelope) input.readObject());
+	}
+
+	/**
+	 * This method authenticates and decrypts an unframed response.
+	 * @param signedResponse the Envelope holding the SealedObject and its HMAC
+	 * @return the decrypted Envelope
+	 */
+	private Envelope openSignedResponse(Envelope signedResponse) throws Exception {
+		if (!verifySignature(signedResponse)) {
+			throw new Exception("Invalid signature on the received message.");
+		}
+		SealedObject encryptedResponse = (SealedObject) signedResponse.getObjContents().get(0);
+		return (Envelope) decryptObject(encryptedResponse);
+	}
+
 	/**
 	* This method encrypts and sends an Envelope to the server.
 	*/
 	public void encryptAndWriteMessage(Envelope message) {
-		// increment sequence number and add it to the message
-    message.addObject(new Integer(++sequenceNumber));
-
-    // encrypt the object in a SealedObject and send it
 		try {
-			SealedObject encryptedMessage = encryptObject(message);
-			sendIV();
-
-			if (sessionKeyEstablished) {
-				Envelope signedMessage = signObject(encryptedMessage);
-				output.writeObject(signedMessage);
-			} else {
-				output.writeObject(encryptedMessage);
+			if (streamReader != null) {
+				synchronized (writeLock) {
+					writeStreamMessage(message);
+					output.flush();
+				}
+				return;
 			}
+
+			// increment sequence number and add it to the message
+			message.addObject(Integer.valueOf(++sequenceNumber));
+			writeMessage(message);
+			output.flush();
 		} catch (Exception e) {
 			System.err.println("Error encrypting and writing message to server.");
 		}
 	}
 
+	/**
+	 * This method encrypts an Envelope that already carries its sequence number
+	 * and writes it in whichever format was negotiated. Framed messages are left
+	 * in the stream's buffer until the caller flushes it.
+	 * @param message the Envelope to send
+	 */
+	private void writeMessage(Envelope message) throws Exception {
+		if (ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_FRAMING)) {
+			writeFramedMessage(message);
+			return;
+		}
+
+		// encrypt the object in a SealedObject and send it
+		SealedObject encryptedMessage = encryptObject(message);
+		sendIV();
+
+		if (sessionKeyEstablished) {
+			Envelope signedMessage = signObject(encryptedMessage);
+			output.writeObject(signedMessage);
+		} else {
+			output.writeObject(encryptedMessage);
+		}
+	}
+
+	/**
+	 * This method reads a Frame from the server, authenticates it, and decrypts
+	 * and decodes the Envelope it carries.
+	 * @param readCrypto the ciphers of the thread reading from the server
+	 * @return the decoded Envelope
+	 */
+	private Envelope readFramedResponse(CryptoContext readCrypto) throws Exception {
+		Frame frame = Frame.read(input);
+		boolean gcm = ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_AES_GCM);
+
+		ByteBuffer plaintext = readCrypto.openFrame(frame, sessionKey, signingKey, gcm);
+		frame.release();
+		try {
+			return EnvelopeCodec.decode(plaintext);
+		} finally {
+			BufferPool.shared().release(plaintext);
+		}
+	}
+
+	/**
+	* This method encodes and encrypts an Envelope under a fresh IV and writes it
+	* to the server as a single authenticated Frame.
+	* @param message the Envelope to send
+	*/
+	private void writeFramedMessage(Envelope message) throws Exception {
+		boolean gcm = ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_AES_GCM);
+		ByteBuffer plaintext = EnvelopeCodec.encode(message);
+		Frame frame = crypto.sealFrame(plaintext, sessionKey, signingKey, gcm);
+		BufferPool.shared().release(plaintext);
+
+		frame.write(output);
+		frame.release();
+	}
+
 	/**
 	* This method takes an Object and encrypts it using either the public
 	* RSA key of the group server or the shared secret AES key for this client.
@@ -196,13 +878,11 @@ public abstract class Client {
 			if (sessionKeyEstablished) {
 				// generate an IV for this current session
 				generateIV();
-				// generate and initialize an AES cipher
-				cipher = Cipher.getInstance(AES_CBC_PKCS5);
-				cipher.init(Cipher.ENCRYPT_MODE, sessionKey, new IvParameterSpec(iv));
+				// initialize the connection's AES cipher
+				cipher = crypto.aesCbc(Cipher.ENCRYPT_MODE, sessionKey, iv);
 			} else {
-				// generate and initialize an RSA cipher
-				cipher = Cipher.getInstance(RSA_ECB_PKCS1);
-				cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+				// initialize the connection's RSA cipher
+				cipher = crypto.rsa(Cipher.ENCRYPT_MODE, publicKey);
 			}
 
 			return new SealedObject(obj, cipher);
@@ -224,13 +904,11 @@ public abstract class Client {
 			Cipher cipher = null;
 			// if the shared AES key has been established
 			if (sessionKeyEstablished) {
-				// generate and initialize an AES cipher
-				cipher = Cipher.getInstance(AES_CBC_PKCS5);
-				cipher.init(Cipher.DECRYPT_MODE, sessionKey, new IvParameterSpec(iv));
+				// initialize the connection's AES cipher
+				cipher = crypto.aesCbc(Cipher.DECRYPT_MODE, sessionKey, iv);
 			} else {
-				// generate and initialize an RSA cipher
-				cipher = Cipher.getInstance(RSA_ECB_PKCS1);
-				cipher.init(Cipher.DECRYPT_MODE, publicKey);
+				// initialize the connection's RSA cipher
+				cipher = crypto.rsa(Cipher.DECRYPT_MODE, publicKey);
 			}
 
 			return sealedObj.getObject(cipher);
@@ -274,8 +952,7 @@ public abstract class Client {
     try {
       // generate an HMAC for the object
       byte[] objectData = serializeObject(obj);
-      Mac mac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
-      mac.init(signingKey);
+      Mac mac = crypto.hmac(signingKey);
 
       return toHexString(mac.doFinal(objectData));
     } catch (Exception e) {
@@ -324,27 +1001,35 @@ public abstract class Client {
    * @return a readable hex representation of the byte array
    */
   public String toHexString(byte[] bytes) {
-    StringBuilder result = new StringBuilder();
+    char[] result = new char[bytes.length * 2];
     for (int i = 0; i < bytes.length; i++) {
-      result.append(String.format("%02x", bytes[i]));
+      result[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+      result[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
     }
 
-    return result.toString();
+    return new String(result);
   }
 
 	/**
 	 * This method generates a 16 byte IV required for AES encryption/decryption
 	 */
 	private void generateIV() {
-		SecureRandom rand = new SecureRandom();
-		rand.nextBytes(iv);
+		crypto.nextBytes(iv);
 	}
 
 	/**
-	 * This method sends the IV, byte by byte, to the listening server
+	 * This method sends the IV to the listening server, as a single byte[] if
+	 * the server accepted CAP_IV_ARRAY and otherwise byte by byte
 	 */
 	private void sendIV() {
 		try {
+			if (ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_IV_ARRAY)) {
+				// unshared, otherwise the stream would send a back-reference to the
+				// IV array written for the previous message
+				output.writeUnshared(iv);
+				return;
+			}
+
 			for (int i = 0; i < 16; i++) {
 				output.writeObject(iv[i]);
 			}
@@ -362,6 +1047,10 @@ public abstract class Client {
 		try {
 			// read message from the server and check for errors
 			Envelope keyMessage = (Envelope) input.readObject();
+			if (isBusy(keyMessage)) {
+				sock.close();
+				return false;
+			}
 
 			// if the client has connected to this file server before, its authenticity
 			// is already confirmed and we can skip the rest of this protocol
@@ -421,6 +1110,21 @@ public abstract class Client {
 		}
 	}
 
+	/**
+	 * This method checks whether the server turned the connection away with
+	 * FAIL_BUSY, which it sends in place of its first handshake message.
+	 * @param message the first message read from the server
+	 * @return true if the server was busy; busyRetryAfter then holds its delay
+	 */
+	private boolean isBusy(Envelope message) {
+		if (!message.getMessage().equals(ResponseConstants.FAIL_BUSY)) {
+			return false;
+		}
+
+		busyRetryAfter = (Integer) message.getObjContents().get(0);
+		return true;
+	}
+
 	/**
 	 * This method checks if a client message is valid. It checks for the existence
 	 * of the required objects in the message.
@@ -0,0 +1,243 @@
+/* A CryptoContext holds the Cipher, Mac, and SecureRandom instances used by a
+* single connection. They are created once and re-initialized with a fresh key
+* or IV for every message, so no provider lookups happen per message.
+*
+* Instances are not thread safe; each connection owns its own context.
+*
+* Frames are sealed into and opened into arrays from the shared BufferPool, so
+* the per-message buffers of a transfer are reused rather than allocated.
+*/
+
+import java.nio.ByteBuffer;
+import java.security.*;
+import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+public class CryptoContext {
+
+	// constants for encryption algorithms
+	public static final String HMAC_SHA1_ALGORITHM = "HmacSHA1";
+	public static final String AES_CBC_PKCS5 = "AES/CBC/PKCS5Padding";
+	public static final String AES_GCM_NOPADDING = "AES/GCM/NoPadding";
+	public static final String RSA_ECB_PKCS1 = "RSA/ECB/PKCS1Padding";
+	public static final int AES_CBC_IV_LENGTH = 16;
+	public static final int GCM_IV_LENGTH = 12;
+	public static final int GCM_TAG_BITS = 128;
+
+	private final SecureRandom random;
+	private final Cipher aesCbc;
+	private final Cipher aesGcm;
+	private final Mac hmac;
+
+	// only needed during the handshake, so created on first use
+	private Cipher rsa = null;
+
+	// key the Mac was last initialized with
+	private Key hmacKey = null;
+
+	public CryptoContext()
+	{
+		try {
+			random = new SecureRandom();
+			aesCbc = Cipher.getInstance(AES_CBC_PKCS5);
+			aesGcm = Cipher.getInstance(AES_GCM_NOPADDING);
+			hmac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
+		} catch (GeneralSecurityException e) {
+			// every Java platform is required to provide these algorithms
+			throw new IllegalStateException("Required cryptographic algorithm unavailable: " + e.getMessage(), e);
+		}
+	}
+
+	public SecureRandom getRandom()
+	{
+		return random;
+	}
+
+	/**
+	 * This method fills a buffer with random bytes, e.g. to use as an IV.
+	 * @param bytes the buffer to fill
+	 */
+	public void nextBytes(byte[] bytes)
+	{
+		random.nextBytes(bytes);
+	}
+
+	/**
+	 * This method returns the AES-CBC cipher initialized for one message.
+	 * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+	 * @param key the AES key
+	 * @param iv the 16 byte IV
+	 * @return the initialized cipher
+	 */
+	public Cipher aesCbc(int mode, Key key, byte[] iv) throws GeneralSecurityException
+	{
+		aesCbc.init(mode, key, new IvParameterSpec(iv));
+		return aesCbc;
+	}
+
+	/**
+	 * This method returns the AES-GCM cipher initialized for one message.
+	 * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+	 * @param key the AES key
+	 * @param iv the 12 byte IV, which must never repeat for encryption
+	 * @return the initialized cipher
+	 */
+	public Cipher aesGcm(int mode, Key key, byte[] iv) throws GeneralSecurityException
+	{
+		aesGcm.init(mode, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
+		return aesGcm;
+	}
+
+	/**
+	 * This method returns the RSA cipher initialized with a public or private key.
+	 * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+	 * @param key the RSA key
+	 * @return the initialized cipher
+	 */
+	public Cipher rsa(int mode, Key key) throws GeneralSecurityException
+	{
+		if (rsa == null) {
+			rsa = Cipher.getInstance(RSA_ECB_PKCS1);
+		}
+
+		rsa.init(mode, key);
+		return rsa;
+	}
+
+	/**
+	 * This method returns the HMAC-SHA1 instance ready to process a new message
+	 * under the given key.
+	 * @param key the signing key
+	 * @return the initialized Mac
+	 */
+	public Mac hmac(Key key) throws GeneralSecurityException
+	{
+		if (key != hmacKey) {
+			hmac.init(key);
+			hmacKey = key;
+		} else {
+			hmac.reset();
+		}
+
+		return hmac;
+	}
+
+	/**
+	 * This method encrypts and authenticates a plaintext into a Frame, using
+	 * either AES-GCM or AES-CBC with an HMAC-SHA1 over the whole frame.
+	 * @param plaintext the encoded message, from its position to its limit
+	 * @param sessionKey the AES session key
+	 * @param signingKey the HMAC key, unused for AES-GCM
+	 * @param gcm true to use AES-GCM
+	 * @return the sealed frame; the caller releases it once it is written
+	 */
+	public Frame sealFrame(ByteBuffer plaintext, Key sessionKey, Key signingKey, boolean gcm) throws GeneralSecurityException
+	{
+		byte[] input = plaintext.array();
+		int offset = plaintext.arrayOffset() + plaintext.position();
+		int length = plaintext.remaining();
+
+		if (gcm) {
+			byte[] iv = new byte[GCM_IV_LENGTH];
+			random.nextBytes(iv);
+
+			Cipher cipher = aesGcm(Cipher.ENCRYPT_MODE, sessionKey, iv);
+			byte[] ciphertext = BufferPool.shared().acquire(cipher.getOutputSize(length));
+			cipher.updateAAD(Frame.header(Frame.OP_MESSAGE_GCM, iv.length, 0, cipher.getOutputSize(length)));
+			return new Frame(Frame.OP_MESSAGE_GCM, iv, ciphertext, cipher.doFinal(input, offset, length, ciphertext, 0));
+		}
+
+		byte[] iv = new byte[AES_CBC_IV_LENGTH];
+		random.nextBytes(iv);
+
+		Cipher cipher = aesCbc(Cipher.ENCRYPT_MODE, sessionKey, iv);
+		byte[] ciphertext = BufferPool.shared().acquire(cipher.getOutputSize(length));
+		Frame frame = new Frame(Frame.OP_MESSAGE, iv, ciphertext, cipher.doFinal(input, offset, length, ciphertext, 0));
+		frame.setMac(frame.computeMac(hmac(signingKey)));
+		return frame;
+	}
+
+	/**
+	 * This method seals a plaintext given in parts, such as the output of
+	 * EnvelopeCodec.encodeParts, into a single Frame. Each part is encrypted
+	 * where it lies, so file data in a direct buffer goes into the ciphertext
+	 * without first being copied into an array on the heap.
+	 * @param plaintext the parts of the encoded message, each from its position
+	 *        to its limit; their positions are left unchanged
+	 * @param sessionKey the AES session key
+	 * @param signingKey the HMAC key, unused for AES-GCM
+	 * @param gcm true to use AES-GCM
+	 * @return the sealed frame; the caller releases it once it is written
+	 */
+	public Frame sealFrame(ByteBuffer[] plaintext, Key sessionKey, Key signingKey, boolean gcm) throws GeneralSecurityException
+	{
+		int length = 0;
+		for (int i = 0; i < plaintext.length; i++) {
+			length += plaintext[i].remaining();
+		}
+
+		byte opcode;
+		byte[] iv;
+		Cipher cipher;
+		if (gcm) {
+			opcode = Frame.OP_MESSAGE_GCM;
+			iv = new byte[GCM_IV_LENGTH];
+			random.nextBytes(iv);
+			cipher = aesGcm(Cipher.ENCRYPT_MODE, sessionKey, iv);
+			cipher.updateAAD(Frame.header(opcode, iv.length, 0, cipher.getOutputSize(length)));
+		} else {
+			opcode = Frame.OP_MESSAGE;
+			iv = new byte[AES_CBC_IV_LENGTH];
+			random.nextBytes(iv);
+			cipher = aesCbc(Cipher.ENCRYPT_MODE, sessionKey, iv);
+		}
+
+		byte[] ciphertext = BufferPool.shared().acquire(cipher.getOutputSize(length));
+		ByteBuffer out = ByteBuffer.wrap(ciphertext);
+		for (int i = 0; i < plaintext.length; i++) {
+			cipher.update(plaintext[i].duplicate(), out);
+		}
+		cipher.doFinal(ByteBuffer.allocate(0), out);
+
+		Frame frame = new Frame(opcode, iv, ciphertext, out.position());
+		if (!gcm) {
+			frame.setMac(frame.computeMac(hmac(signingKey)));
+		}
+		return frame;
+	}
+
+	/**
+	 * This method authenticates and decrypts a Frame produced by sealFrame.
+	 * @param frame the received frame
+	 * @param sessionKey the AES session key
+	 * @param signingKey the HMAC key, unused for AES-GCM
+	 * @param gcm true if AES-GCM was negotiated
+	 * @return the decrypted plaintext, in an array the caller releases to the
+	 *         shared BufferPool once it is decoded
+	 */
+	public ByteBuffer openFrame(Frame frame, Key sessionKey, Key signingKey, boolean gcm) throws GeneralSecurityException
+	{
+		byte expectedOpcode = gcm ? Frame.OP_MESSAGE_GCM : Frame.OP_MESSAGE;
+		if (frame.getOpcode() != expectedOpcode) {
+			throw new GeneralSecurityException("Unexpected frame opcode: " + frame.getOpcode());
+		}
+
+		Cipher cipher;
+		if (gcm) {
+			// the GCM tag authenticates the header and the ciphertext in one pass
+			cipher = aesGcm(Cipher.DECRYPT_MODE, sessionKey, frame.getIV());
+			cipher.updateAAD(Frame.header(frame.getOpcode(), frame.getIV().length, 0, frame.getCiphertextLength()));
+		} else {
+			if (!MessageDigest.isEqual(frame.computeMac(hmac(signingKey)), frame.getMac())) {
+				throw new GeneralSecurityException("Invalid signature on the received message.");
+			}
+
+			cipher = aesCbc(Cipher.DECRYPT_MODE, sessionKey, frame.getIV());
+		}
+
+		byte[] plaintext = BufferPool.shared().acquire(cipher.getOutputSize(frame.getCiphertextLength()));
+		int length = cipher.doFinal(frame.getCiphertext(), 0, frame.getCiphertextLength(), plaintext, 0);
+		return ByteBuffer.wrap(plaintext, 0, length);
+	}
+}
@@ -0,0 +1,131 @@
+/* EcdheHandshake holds the key agreement used by the ECDHE handshake, which a
+* client selects by requesting CAP_ECDHE. Instead of encrypting session keys
+* under the server's RSA key, client and server each generate an ephemeral
+* X25519 key pair, exchange the public halves, and derive the session and
+* signing keys from the shared secret and a hash of the handshake transcript.
+* The server signs the transcript (see HandshakeSigner), so the client knows
+* whom it agreed with, and since the ephemeral keys are discarded afterwards a
+* later compromise of the server's keys does not expose recorded sessions.
+*
+* A server that can sign handshakes accepts CAP_ECDHE in its response to a
+* CONNECT or RESUME, and the client uses ECDHE from its next connection to that
+* server on. If the server declines an ECDHE_HELLO, the client reconnects and
+* sends a CONNECT instead.
+*
+* Messages:
+*   client -> server  ECDHE_HELLO: client public key, nonce, IV, requested
+*                     capabilities, requested window (unencrypted)
+*   server -> client  ECDHE_SERVER_HELLO: server public key, signing key,
+*                     certificate, signature over the transcript (unencrypted)
+*   server -> client  SUCCESS_CONNECT under the derived keys, laid out as after
+*                     a RESUME
+*/
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public final class EcdheHandshake {
+
+	private EcdheHandshake() {
+		// restrict instantiation
+	}
+
+	public static final String KEY_AGREEMENT_ALGORITHM = "X25519";
+	public static final String HMAC_SHA256_ALGORITHM = "HmacSHA256";
+	public static final String SHA_256_ALGORITHM = "SHA-256";
+
+	// length of the nonce the client sends in its hello
+	public static final int NONCE_LENGTH = 16;
+
+	/**
+	 * This method generates an ephemeral key pair for one handshake.
+	 * @return the key pair
+	 */
+	public static KeyPair generateKeyPair() throws GeneralSecurityException
+	{
+		return KeyPairGenerator.getInstance(KEY_AGREEMENT_ALGORITHM).generateKeyPair();
+	}
+
+	/**
+	 * This method computes the shared secret of a handshake.
+	 * @param privateKey our ephemeral private key
+	 * @param peerPublicKey the peer's encoded ephemeral public key
+	 * @return the shared secret
+	 */
+	public static byte[] sharedSecret(PrivateKey privateKey, byte[] peerPublicKey) throws GeneralSecurityException
+	{
+		PublicKey peerKey = KeyFactory.getInstance(KEY_AGREEMENT_ALGORITHM).generatePublic(new X509EncodedKeySpec(peerPublicKey));
+		KeyAgreement agreement = KeyAgreement.getInstance(KEY_AGREEMENT_ALGORITHM);
+		agreement.init(privateKey);
+		agreement.doPhase(peerKey, true);
+
+		return agreement.generateSecret();
+	}
+
+	/**
+	 * This method hashes everything both sides sent during the handshake, so
+	 * that the server's signature and the derived keys cover the requested
+	 * features as well as the keys.
+	 * @return the transcript hash
+	 */
+	public static byte[] transcriptHash(byte[] clientPublicKey, byte[] nonce, byte[] iv, int requestedCapabilities,
+			int requestedWindow, byte[] serverPublicKey, byte[] signingKey) throws GeneralSecurityException, IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF("ECDHE");
+		writeBytes(out, clientPublicKey);
+		writeBytes(out, nonce);
+		writeBytes(out, iv);
+		out.writeInt(requestedCapabilities);
+		out.writeInt(requestedWindow);
+		writeBytes(out, serverPublicKey);
+		writeBytes(out, signingKey);
+		out.flush();
+
+		return MessageDigest.getInstance(SHA_256_ALGORITHM).digest(bytes.toByteArray());
+	}
+
+	/**
+	 * This method derives the AES session key from the shared secret.
+	 * @param sharedSecret the X25519 shared secret
+	 * @param transcriptHash the hash of the handshake transcript
+	 * @return the session key
+	 */
+	public static Key deriveSessionKey(byte[] sharedSecret, byte[] transcriptHash) throws GeneralSecurityException
+	{
+		return new SecretKeySpec(hmac(sharedSecret, "session key", transcriptHash), 0, 16, "AES");
+	}
+
+	/**
+	 * This method derives the signing key from the shared secret.
+	 * @param sharedSecret the X25519 shared secret
+	 * @param transcriptHash the hash of the handshake transcript
+	 * @return the signing key
+	 */
+	public static Key deriveSigningKey(byte[] sharedSecret, byte[] transcriptHash) throws GeneralSecurityException
+	{
+		return new SecretKeySpec(hmac(sharedSecret, "signing key", transcriptHash), 0, 16, "AES");
+	}
+
+	private static byte[] hmac(byte[] key, String label, byte[] data) throws GeneralSecurityException
+	{
+		Mac mac = Mac.getInstance(HMAC_SHA256_ALGORITHM);
+		mac.init(new SecretKeySpec(key, HMAC_SHA256_ALGORITHM));
+		mac.update(label.getBytes(StandardCharsets.UTF_8));
+		mac.update((byte) 0);
+
+		return mac.doFinal(data);
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException
+	{
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
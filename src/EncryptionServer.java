@@ -32,6 +32,10 @@ public class EncryptionServer extends Server {
 		super(_port, "EncryptionServer");
 	}
 
+	ServerThread createConnection(Socket sock) {
+		return new EncryptionThread(sock, this);
+	}
+
 	public void start() {
 		//This runs a thread that saves the lists on program exit
 		Runtime runtime = Runtime.getRuntime();
@@ -53,18 +57,7 @@ public class EncryptionServer extends Server {
 		try
 		{
 			System.out.println("ServerStarted...");
-
-			final ServerSocket serverSock = new ServerSocket(port);
-
-			Socket sock = null;
-			EncryptionThread thread = null;
-
-			while(true)
-			{
-				sock = serverSock.accept();
-				thread = new EncryptionThread(sock, this);
-				thread.start();
-			}
+			serve();
 		}
 		catch(Exception e)
 		{
@@ -26,18 +26,19 @@ public class EncryptionThread extends ServerThread
 		socket = _socket;
 		server = _server;
 		privateKey = server.getPrivateKey();
+	}
 
+	public boolean openSession()
+	{
+		// nothing is read from the client, so the streams are the only step
 		try {
 			input = new ObjectInputStream(socket.getInputStream());
 			output = new ObjectOutputStream(socket.getOutputStream());
 		} catch (Exception e) {
 			System.err.println("Error creating socket input and output streams.");
-			System.exit(1);
+			return false;
 		}
-	}
 
-	public void run()
-	{
 		boolean proceed = true;
 		Envelope message = null, response = null;
 
@@ -303,9 +304,26 @@ public class EncryptionThread extends ServerThread
 		}
 		catch(Exception e)
 		{
-			System.err.println("Error: " + message.getMessage());
+			System.err.println("Error: " + e.getMessage());
 			e.printStackTrace(System.err);
 		}
+
+		// no requests are served yet
+		return false;
+	}
+
+	public boolean handleMessage()
+	{
+		return false;
+	}
+
+	public void closeSession()
+	{
+		try {
+			socket.close();
+		} catch (Exception e) {
+			System.err.println("Error closing the socket: " + e.getMessage());
+		}
 	}
 
 	// public boolean verifyTokenSignature(UserToken token) throws Exception {
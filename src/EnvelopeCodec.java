@@ -0,0 +1,251 @@
+/* EnvelopeCodec converts Envelopes to and from a compact binary form for the
+* framed wire protocol. Strings, Integers, byte arrays, and lists of Strings are
+* written directly; anything else (tokens, keys, ...) falls back to Java
+* serialization of that single object.
+*
+* Encoded messages are written into arrays from the shared BufferPool, and
+* byte arrays of a whole pool size class, such as full file chunks, are decoded
+* into pooled arrays, so transfers reuse their buffers instead of allocating.
+*
+* A sender may also put file data in an Envelope as a ByteBuffer, typically a
+* direct one. It is written exactly like a byte array, so receivers cannot tell
+* the difference, but encodeParts leaves it out of the encoding and returns it
+* between the bytes that come before and after it, so the data can be encrypted
+* straight from its buffer without first being copied into the encoding.
+*/
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class EnvelopeCodec {
+
+	private EnvelopeCodec() {
+		// restrict instantiation
+	}
+
+	// type tags for the objects contained in an Envelope
+	private static final byte TYPE_NULL = 0;
+	private static final byte TYPE_STRING = 1;
+	private static final byte TYPE_INTEGER = 2;
+	private static final byte TYPE_BYTES = 3;
+	private static final byte TYPE_STRING_LIST = 4;
+	private static final byte TYPE_SERIALIZED = 5;
+
+	/**
+	 * This method encodes an Envelope into an array from the shared BufferPool.
+	 * @param envelope the Envelope to encode
+	 * @return the encoded Envelope; the caller releases its array to the pool
+	 */
+	public static ByteBuffer encode(Envelope envelope) throws IOException
+	{
+		BufferPool.PooledOutputStream bytes = new BufferPool.PooledOutputStream(BufferPool.shared());
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		writeString(out, envelope.getMessage());
+		ArrayList<Object> contents = envelope.getObjContents();
+		out.writeInt(contents.size());
+		for (int i = 0; i < contents.size(); i++) {
+			writeObject(out, contents.get(i));
+		}
+		out.flush();
+
+		return bytes.toByteBuffer();
+	}
+
+	/**
+	 * This method encodes an Envelope in parts, leaving out the data of any
+	 * ByteBuffer it holds. Concatenated, the parts are what encode() returns.
+	 * @param envelope the Envelope to encode
+	 * @return the parts in order: arrays from the shared BufferPool at even
+	 *         indexes, which the caller releases, and views of the Envelope's
+	 *         ByteBuffers, from their position to their limit, at odd indexes
+	 */
+	public static ByteBuffer[] encodeParts(Envelope envelope) throws IOException
+	{
+		ArrayList<ByteBuffer> parts = new ArrayList<ByteBuffer>();
+		BufferPool.PooledOutputStream bytes = new BufferPool.PooledOutputStream(BufferPool.shared());
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		writeString(out, envelope.getMessage());
+		ArrayList<Object> contents = envelope.getObjContents();
+		out.writeInt(contents.size());
+		for (int i = 0; i < contents.size(); i++) {
+			Object obj = contents.get(i);
+			if (!(obj instanceof ByteBuffer)) {
+				writeObject(out, obj);
+				continue;
+			}
+
+			ByteBuffer data = (ByteBuffer) obj;
+			out.writeByte(TYPE_BYTES);
+			out.writeInt(data.remaining());
+			out.flush();
+			parts.add(bytes.toByteBuffer());
+			parts.add(data.duplicate());
+
+			bytes = new BufferPool.PooledOutputStream(BufferPool.shared());
+			out = new DataOutputStream(bytes);
+		}
+		out.flush();
+		parts.add(bytes.toByteBuffer());
+
+		return parts.toArray(new ByteBuffer[parts.size()]);
+	}
+
+	/**
+	 * This method decodes an Envelope previously encoded with encode().
+	 * @param data the encoded Envelope, from its position to its limit
+	 * @return the decoded Envelope
+	 */
+	public static Envelope decode(ByteBuffer data) throws IOException, ClassNotFoundException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), data.remaining()));
+
+		Envelope envelope = new Envelope(readString(in));
+		int size = in.readInt();
+		for (int i = 0; i < size; i++) {
+			envelope.addObject(readObject(in));
+		}
+
+		return envelope;
+	}
+
+	private static void writeObject(DataOutputStream out, Object obj) throws IOException
+	{
+		if (obj == null) {
+			out.writeByte(TYPE_NULL);
+		} else if (obj instanceof String) {
+			out.writeByte(TYPE_STRING);
+			writeString(out, (String) obj);
+		} else if (obj instanceof Integer) {
+			out.writeByte(TYPE_INTEGER);
+			out.writeInt(((Integer) obj).intValue());
+		} else if (obj instanceof byte[]) {
+			byte[] bytes = (byte[]) obj;
+			out.writeByte(TYPE_BYTES);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		} else if (obj instanceof ByteBuffer) {
+			ByteBuffer data = ((ByteBuffer) obj).duplicate();
+			out.writeByte(TYPE_BYTES);
+			out.writeInt(data.remaining());
+			byte[] copy = new byte[Math.min(data.remaining(), 8192)];
+			while (data.hasRemaining()) {
+				int n = Math.min(copy.length, data.remaining());
+				data.get(copy, 0, n);
+				out.write(copy, 0, n);
+			}
+		} else if (isStringList(obj)) {
+			List<?> list = (List<?>) obj;
+			out.writeByte(TYPE_STRING_LIST);
+			out.writeInt(list.size());
+			for (int i = 0; i < list.size(); i++) {
+				writeString(out, (String) list.get(i));
+			}
+		} else {
+			ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+			ObjectOutputStream os = new ObjectOutputStream(serialized);
+			os.writeObject(obj);
+			os.flush();
+
+			out.writeByte(TYPE_SERIALIZED);
+			out.writeInt(serialized.size());
+			serialized.writeTo(out);
+		}
+	}
+
+	private static Object readObject(DataInputStream in) throws IOException, ClassNotFoundException
+	{
+		byte type = in.readByte();
+		switch (type) {
+			case TYPE_NULL:
+				return null;
+			case TYPE_STRING:
+				return readString(in);
+			case TYPE_INTEGER:
+				return Integer.valueOf(in.readInt());
+			case TYPE_BYTES: {
+				int length = readLength(in);
+				byte[] bytes = BufferPool.shared().acquireExact(length);
+				in.readFully(bytes);
+				return bytes;
+			}
+			case TYPE_STRING_LIST: {
+				int size = in.readInt();
+				ArrayList<String> list = new ArrayList<String>(size);
+				for (int i = 0; i < size; i++) {
+					list.add(readString(in));
+				}
+				return list;
+			}
+			case TYPE_SERIALIZED: {
+				ObjectInputStream os = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)));
+				return os.readObject();
+			}
+			default:
+				throw new IOException("Unknown type tag in encoded Envelope: " + type);
+		}
+	}
+
+	private static boolean isStringList(Object obj)
+	{
+		if (!(obj instanceof List)) {
+			return false;
+		}
+
+		List<?> list = (List<?>) obj;
+		for (int i = 0; i < list.size(); i++) {
+			if (!(list.get(i) instanceof String)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		} else if (length > in.available()) {
+			throw new IOException("Invalid string length in encoded Envelope: " + length);
+		}
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException
+	{
+		byte[] bytes = new byte[readLength(in)];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static int readLength(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0 || length > in.available()) {
+			throw new IOException("Invalid length in encoded Envelope: " + length);
+		}
+
+		return length;
+	}
+}
@@ -1,6 +1,8 @@
 /* FileClient provides all the client functionality regarding the file server */
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.security.*;
 
@@ -34,61 +36,258 @@ public class FileClient extends Client implements FileClientInterface {
 		return true;
 	}
 
-	public boolean download(String sourceFile, String destFile, UserToken token) {
-		if (sourceFile.charAt(0)=='/') {
-			sourceFile = sourceFile.substring(1);
+	/**
+	 * This method deletes several files, pipelining the DELETEF requests when the
+	 * server supports it.
+	 * @param filenames the files to delete
+	 * @param token the token of the user requesting the deletes
+	 * @return true if every file was deleted
+	 */
+	public boolean deleteFiles(List<String> filenames, UserToken token) {
+		List<Envelope> requests = new ArrayList<Envelope>();
+		for (int i = 0; i < filenames.size(); i++) {
+			String filename = filenames.get(i);
+			Envelope env = new Envelope("DELETEF");
+			env.addObject(filename.charAt(0) == '/' ? filename.substring(1) : filename);
+			env.addObject(token);
+			requests.add(env);
+		}
+
+		List<Envelope> responses = pipeline(requests);
+		if (responses == null) {
+			return false;
 		}
 
+		boolean success = true;
+		for (int i = 0; i < responses.size(); i++) {
+			Envelope env = responses.get(i);
+			if (isValidMessage(env, 1) && env.getMessage().compareTo("OK")==0) {
+				System.out.printf("File %s deleted successfully\n", filenames.get(i));
+			}
+			else {
+				System.out.printf("Error deleting file %s (%s)\n", filenames.get(i), env.getMessage());
+				success = false;
+			}
+		}
+
+		return success;
+	}
+
+	public boolean download(String sourceFile, String destFile, UserToken token) {
 		File file = new File(destFile);
 		try {
 			if (!file.exists()) {
 				file.createNewFile();
-				FileOutputStream fos = new FileOutputStream(file);
+				return receive(sourceFile, file, 0, -1, false, token);
+			}
+			else {
+				System.out.printf("Error couldn't create file %s\n", destFile);
+				return false;
+			}
+		} catch (IOException e1) {
 
-				Envelope env = new Envelope("DOWNLOADF"); //Success
-				env.addObject(sourceFile);
-				env.addObject(token);
-				encryptAndWriteMessage(env);
+			System.out.printf("Error couldn't create file %s\n", destFile);
+			return false;
 
-				env = readAndDecryptResponse();
 
-				while (env.getMessage().compareTo("CHUNK")==0) {
-					fos.write((byte[])env.getObjContents().get(0), 0, (Integer)env.getObjContents().get(1));
-					System.out.printf(".");
-					env = new Envelope("DOWNLOADF"); //Success
-					encryptAndWriteMessage(env);
-					env = readAndDecryptResponse();
-				}
-				fos.close();
+		}
+	}
 
-				if(env.getMessage().compareTo("EOF")==0) {
-					fos.close();
-					System.out.printf("\nTransfer successful file %s\n", sourceFile);
-					env = new Envelope("OK"); //Success
-					encryptAndWriteMessage(env);
-				}
-				else {
-					System.out.printf("Error reading file %s (%s)\n", sourceFile, env.getMessage());
-					file.delete();
-					return false;
-				}
-			}
+	public boolean download(String sourceFile, String destFile, long offset, long length, UserToken token) {
+		if (!rangedDownloads()) {
+			System.out.println("Downloading part of a file needs a server that streams or resumes downloads.");
+			return false;
+		}
 
-			else {
+		File file = new File(destFile);
+		try {
+			if (file.exists()) {
 				System.out.printf("Error couldn't create file %s\n", destFile);
 				return false;
 			}
 
+			file.createNewFile();
+			return receive(sourceFile, file, offset, length, false, token);
+		} catch (IOException e1) {
+			System.out.printf("Error couldn't create file %s\n", destFile);
+			return false;
+		}
+	}
+
+	public boolean resumeDownload(String sourceFile, String destFile, UserToken token) {
+		File file = new File(destFile);
+		if (!file.exists()) {
+			return download(sourceFile, destFile, token);
+		}
+
+		if (!rangedDownloads()) {
+			System.out.println("Resuming a download needs a server that streams or resumes downloads.");
+			return false;
+		}
 
+		try {
+			return receive(sourceFile, file, file.length(), -1, true, token);
 		} catch (IOException e1) {
+			System.out.printf("Error couldn't open file %s\n", destFile);
+			return false;
+		}
+	}
 
-			System.out.printf("Error couldn't create file %s\n", destFile);
+	/**
+	 * This method downloads a file, or a byte range of it, into a local file.
+	 * If the server rejects the download or the data fails its check, whatever
+	 * this attempt wrote is removed again. If the connection fails midway and
+	 * CAP_RESUMABLE_TRANSFERS was negotiated, the bytes received so far are
+	 * kept, so that resumeDownload can continue from them.
+	 * @param sourceFile the file on the server
+	 * @param file the local file to write
+	 * @param offset the first byte to download
+	 * @param length the number of bytes to download, or -1 for the rest of the file
+	 * @param append true to add to the local file instead of replacing it
+	 * @return true if the download completed
+	 */
+	private boolean receive(String sourceFile, File file, long offset, long length, boolean append, UserToken token) throws IOException {
+		if (sourceFile.charAt(0)=='/') {
+			sourceFile = sourceFile.substring(1);
+		}
+
+		long start = append ? file.length() : 0;
+		FileOutputStream fos = new FileOutputStream(file, append);
+		boolean success = false;
+		boolean keep = false;
+		try {
+			if (ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_STREAMING_DOWNLOAD)) {
+				success = receivePushed(sourceFile, offset, length, fos, token);
+			}
+			else {
+				success = receiveChunks(sourceFile, offset, length, fos, token);
+			}
+		} catch (Exception e) {
+			System.out.printf("\nError reading file %s (%s)\n", sourceFile, e.getMessage());
+			keep = ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_RESUMABLE_TRANSFERS);
+		} finally {
+			if (!success && !keep) {
+				fos.getChannel().truncate(start);
+			}
+			fos.close();
+			if (!success && !keep && !append) {
+				file.delete();
+			}
+		}
+
+		return success;
+	}
+
+	/**
+	 * This method sends a DOWNLOADF request, with the byte range if only part
+	 * of the file is wanted and the chunk size if CAP_LARGE_CHUNKS was negotiated.
+	 */
+	private void requestDownload(String sourceFile, long offset, long length, UserToken token) {
+		Envelope env = new Envelope("DOWNLOADF"); //Success
+		env.addObject(sourceFile);
+		env.addObject(token);
+		if (offset != 0 || length >= 0) {
+			env.addObject(Long.valueOf(offset));
+			env.addObject(Long.valueOf(length));
+		}
+		if (largeChunks()) {
+			env.addObject(Integer.valueOf(ProtocolConstants.DEFAULT_CHUNK_SIZE));
+		}
+		encryptAndWriteMessage(env);
+	}
+
+	/**
+	 * This method downloads a file, or a byte range of it, by asking for each
+	 * chunk in turn.
+	 * @return true if the download completed, false if the server refused it
+	 */
+	private boolean receiveChunks(String sourceFile, long offset, long length, FileOutputStream fos, UserToken token) throws Exception {
+		requestDownload(sourceFile, offset, length, token);
+		Envelope env = readAndDecryptResponse();
+
+		while (env.getMessage().compareTo("CHUNK")==0) {
+			byte[] buf = (byte[])env.getObjContents().get(0);
+			fos.write(buf, 0, (Integer)env.getObjContents().get(1));
+			BufferPool.shared().release(buf);
+			System.out.printf(".");
+			env = new Envelope("DOWNLOADF"); //Success
+			encryptAndWriteMessage(env);
+			env = readAndDecryptResponse();
+		}
+
+		if(env.getMessage().compareTo("EOF")==0) {
+			System.out.printf("\nTransfer successful file %s\n", sourceFile);
+			env = new Envelope("OK"); //Success
+			encryptAndWriteMessage(env);
+			return true;
+		}
+
+		System.out.printf("Error reading file %s (%s)\n", sourceFile, env.getMessage());
+		return false;
+	}
+
+	/**
+	 * This method downloads a file, or a byte range of it, that the server
+	 * pushes with CAP_STREAMING_DOWNLOAD. Whenever half of the credit announced
+	 * in the server's READY has been read, and more chunks are still to come,
+	 * the client extends the credit with a MORE message. With CAP_LARGE_CHUNKS
+	 * the READY also holds the chunk size the server agreed to. The final OK
+	 * carries the SHA-256 of the bytes sent, which must match what was received.
+	 * @return true if the download completed, false if the server refused it
+	 *         or the data did not match
+	 */
+	private boolean receivePushed(String sourceFile, long offset, long length, FileOutputStream fos, UserToken token) throws Exception {
+		requestDownload(sourceFile, offset, length, token);
+
+		Envelope env = readPushedResponse(true);
+		if (env.getMessage().compareTo("READY")!=0) {
+			System.out.printf("Error reading file %s (%s)\n", sourceFile, env.getMessage());
 			return false;
+		}
 
+		long size = (Long)env.getObjContents().get(0);
+		int credit = (Integer)env.getObjContents().get(1);
+		int chunkSize = largeChunks() ? (Integer)env.getObjContents().get(2) : ProtocolConstants.CHUNK_SIZE;
+		int grant = Math.max(1, credit / 2);
+		long chunks = (size + chunkSize - 1) / chunkSize;
+		long granted = credit;
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+		boolean replied = false;
+		for (long received = 1; received <= chunks; received++) {
+			env = readPushedResponse(replied);
+			replied = false;
+			if (env.getMessage().compareTo("CHUNK")!=0) {
+				System.out.printf("Error reading file %s (%s)\n", sourceFile, env.getMessage());
+				return false;
+			}
 
+			byte[] buf = (byte[])env.getObjContents().get(0);
+			int n = (Integer)env.getObjContents().get(1);
+			fos.write(buf, 0, n);
+			digest.update(buf, 0, n);
+			BufferPool.shared().release(buf);
+			System.out.printf(".");
+
+			// a grant is only sent while it is needed, so none can arrive
+			// after the server has finished the transfer
+			if (received % grant == 0 && granted < chunks) {
+				Envelope more = new Envelope("MORE");
+				more.addObject(Integer.valueOf(grant));
+				encryptAndWriteMessage(more);
+				granted += grant;
+				replied = true;
+			}
 		}
 
-		return true;
+		env = readPushedResponse(replied);
+		if (env.getMessage().compareTo("OK")==0 && MessageDigest.isEqual(digest.digest(), (byte[])env.getObjContents().get(0))) {
+			System.out.printf("\nTransfer successful file %s\n", sourceFile);
+			return true;
+		}
+
+		System.out.printf("\nError reading file %s (%s)\n", sourceFile, env.getMessage());
+		return false;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -122,6 +321,22 @@ public class FileClient extends Client implements FileClientInterface {
 
 	public boolean upload(String sourceFile, String destFile, String group,
 	UserToken token) {
+		return upload(sourceFile, destFile, group, token, false);
+	}
+
+	public boolean resumeUpload(String sourceFile, String destFile, String group, UserToken token) {
+		return upload(sourceFile, destFile, group, token, true);
+	}
+
+	/**
+	 * This method uploads a file. With CAP_RESUMABLE_TRANSFERS the UPLOADF says
+	 * whether to start over or continue an unfinished upload of the same file,
+	 * and the server's READY holds the offset the upload continues from.
+	 * @param resume true to continue an earlier upload the server still has
+	 * @return true if the server stored the file
+	 */
+	private boolean upload(String sourceFile, String destFile, String group,
+	UserToken token, boolean resume) {
 
 		if (destFile.charAt(0)!='/') {
 			destFile = "/" + destFile;
@@ -136,6 +351,12 @@ public class FileClient extends Client implements FileClientInterface {
 			message.addObject(destFile);
 			message.addObject(group);
 			message.addObject(token); //Add requester's token
+			if (resumableTransfers()) {
+				message.addObject(Long.valueOf(resume ? -1 : 0));
+			}
+			if (largeChunks()) {
+				message.addObject(Integer.valueOf(ProtocolConstants.DEFAULT_CHUNK_SIZE));
+			}
 			encryptAndWriteMessage(message);
 
 
@@ -155,64 +376,495 @@ public class FileClient extends Client implements FileClientInterface {
 				return false;
 			}
 
+			boolean streaming = ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_STREAMING_UPLOAD);
+			int index = streaming ? 1 : 0;
+			int chunkSize = ProtocolConstants.CHUNK_SIZE;
+			if (largeChunks()) {
+				chunkSize = (Integer)env.getObjContents().get(index++);
+			}
+
+			// the server may already have the start of the file
+			long offset = resumableTransfers() ? (Long)env.getObjContents().get(index) : 0;
+			if (offset > fis.getChannel().size()) {
+				System.out.printf("Upload failed: the server has more of %s than the local file\n", destFile);
+				fis.close();
+				return false;
+			}
+			else if (offset > 0) {
+				System.out.printf("Resuming upload at byte %d\n", offset);
+				fis.getChannel().position(offset);
+			}
+
+			try {
+				if (!sendData(fis, -1, env, chunkSize)) {
+					return false;
+				}
+			} finally {
+				fis.close();
+			}
+
+			System.out.printf("\nFile data upload successful\n");
+		}catch(Exception e1)
+		{
+			System.err.println("Error: " + e1.getMessage());
+			e1.printStackTrace(System.err);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * This method sends file data once the server has answered an upload
+	 * request with READY: chunk by chunk, each answered with READY, or streamed
+	 * with CAP_STREAMING_UPLOAD. EOF follows the data.
+	 * @param fis the file, positioned at the first byte to send
+	 * @param length the number of bytes to send, or -1 for the rest of the file
+	 * @param ready the server's READY
+	 * @param chunkSize the agreed chunk size
+	 * @return true if the server accepted the data with OK
+	 */
+	private boolean sendData(FileInputStream fis, long length, Envelope ready, int chunkSize) throws Exception {
+		// one buffer serves the whole upload, since each chunk is encrypted as it is written
+		byte[] buf = BufferPool.shared().acquireExact(chunkSize);
+		try {
+			if (ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_STREAMING_UPLOAD)) {
+				return streamChunks(fis, length, ready, buf);
+			}
+
+			Envelope env;
+			int n;
+			long remaining = length;
+			while ((n = readChunk(fis, buf, remaining)) > 0) { //can throw an IOException
+				System.out.printf(".");
+				Envelope message = new Envelope("CHUNK");
+				message.addObject(trimChunk(buf, n));
+				message.addObject(Integer.valueOf(n));
+				encryptAndWriteMessage(message);
+				remaining -= n;
 
-			do {
-				byte[] buf = new byte[4096];
+				env = readAndDecryptResponse();
 				if (env.getMessage().compareTo("READY")!=0) {
 					System.out.printf("Server error: %s\n", env.getMessage());
 					return false;
 				}
-				message = new Envelope("CHUNK");
-				int n = fis.read(buf); //can throw an IOException
-				if (n > 0) {
-					System.out.printf(".");
-				} else if (n < 0) {
-					System.out.println("Read error");
+			}
+		} finally {
+			BufferPool.shared().release(buf);
+		}
+
+		encryptAndWriteMessage(new Envelope("EOF"));
+		Envelope env = readAndDecryptResponse();
+		if (env.getMessage().compareTo("OK")!=0) {
+			System.out.printf("\nUpload failed: %s\n", env.getMessage());
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * This method sends the chunks of an upload with CAP_STREAMING_UPLOAD. The
+	 * chunks go out back to back; the client only stops to read an ACK when the
+	 * credit granted in the server's READY is used up, then sends EOF and reads
+	 * the remaining ACKs and the final response.
+	 * @param fis the file being uploaded
+	 * @param length the number of bytes to send, or -1 for the rest of the file
+	 * @param ready the server's READY, holding the credit in chunks
+	 * @param buf the chunk buffer, as long as the agreed chunk size
+	 * @return true if the server accepted the data with OK
+	 */
+	private boolean streamChunks(FileInputStream fis, long length, Envelope ready, byte[] buf) throws Exception {
+		int credit = (Integer) ready.getObjContents().get(0);
+		int previous = (Integer) ready.getObjContents().get(ready.getObjContents().size() - 1);
+		int sent = 0;
+		int acked = 0;
+		long remaining = length;
+		Envelope env = ready;
+
+		int n;
+		while ((n = readChunk(fis, buf, remaining)) > 0) {
+			while (sent - acked >= credit) {
+				env = readUnansweredResponse(previous);
+				previous = (Integer) env.getObjContents().get(env.getObjContents().size() - 1);
+				acked = checkAck(env, acked, sent);
+				if (acked < 0) {
 					return false;
 				}
+			}
 
-				message.addObject(buf);
-				message.addObject(new Integer(n));
+			// the buffer can be reused, the message is encrypted as it is written
+			Envelope message = new Envelope("CHUNK");
+			message.addObject(trimChunk(buf, n));
+			message.addObject(Integer.valueOf(n));
+			writeUnansweredMessage(message);
+			sent++;
+			remaining -= n;
+			System.out.printf(".");
+		}
 
-				encryptAndWriteMessage(message);
+		encryptAndWriteMessage(new Envelope("EOF"));
+		env = readUnansweredResponse(previous);
+		while (env.getMessage().compareTo("ACK")==0) {
+			previous = (Integer) env.getObjContents().get(env.getObjContents().size() - 1);
+			acked = checkAck(env, acked, sent);
+			if (acked < 0) {
+				return false;
+			}
+			env = readUnansweredResponse(previous);
+		}
 
+		if(env.getMessage().compareTo("OK")==0) {
+			return true;
+		}
 
-				env = readAndDecryptResponse();
+		System.out.printf("\nUpload failed: %s\n", env.getMessage());
+		return false;
+	}
 
+	public boolean uploadStriped(String sourceFile, String destFile, String group, final UserToken token, int stripes) {
+		if (stripes <= 1 || !stripedTransfers()) {
+			return upload(sourceFile, destFile, group, token);
+		}
 
-			}
-			while (fis.available()>0);
+		if (destFile.charAt(0)!='/') {
+			destFile = "/" + destFile;
+		}
 
-			//If server indicates success, return the member list
-			if(env.getMessage().compareTo("READY")==0)
-			{
+		final File source = new File(sourceFile);
+		if (!source.isFile()) {
+			System.out.printf("Error couldn't open file %s\n", sourceFile);
+			return false;
+		}
 
-				message = new Envelope("EOF");
-				encryptAndWriteMessage(message);
+		try {
+			Envelope message = new Envelope("UPLOADS");
+			message.addObject(destFile);
+			message.addObject(group);
+			message.addObject(token);
+			message.addObject(Long.valueOf(source.length()));
+			encryptAndWriteMessage(message);
 
-				env = readAndDecryptResponse();
-				if(env.getMessage().compareTo("OK")==0) {
-					System.out.printf("\nFile data upload successful\n");
-				}
-				else {
+			Envelope env = readAndDecryptResponse();
+			if (env.getMessage().compareTo("OK")!=0) {
+				System.out.printf("Upload failed: %s\n", env.getMessage());
+				return false;
+			}
+			final String id = (String) env.getObjContents().get(0);
 
-					System.out.printf("\nUpload failed: %s\n", env.getMessage());
-					return false;
+			boolean sent = runStripes(source.length(), stripes, new Stripe() {
+				public boolean transfer(FileClient client, long offset, long length) throws Exception {
+					return client.sendRange(id, source, offset, length, token);
 				}
+			});
+
+			// the server discards the upload if any range is missing
+			message = new Envelope("UPLOADC");
+			message.addObject(id);
+			message.addObject(token);
+			encryptAndWriteMessage(message);
 
+			env = readAndDecryptResponse();
+			if (sent && env.getMessage().compareTo("OK")==0) {
+				System.out.printf("\nFile data upload successful\n");
+				return true;
 			}
-			else {
 
-				System.out.printf("Upload failed: %s\n", env.getMessage());
+			System.out.printf("\nUpload failed: %s\n", env.getMessage());
+			return false;
+		} catch (Exception e1) {
+			System.err.println("Error: " + e1.getMessage());
+			e1.printStackTrace(System.err);
+			return false;
+		}
+	}
+
+	/**
+	 * This method uploads one byte range of a striped upload with UPLOADR.
+	 * @param id the id the server gave the upload
+	 * @param source the file being uploaded
+	 * @param offset the first byte of the range
+	 * @param length the number of bytes in the range
+	 * @return true if the server stored the range
+	 */
+	private boolean sendRange(String id, File source, long offset, long length, UserToken token) throws Exception {
+		Envelope message = new Envelope("UPLOADR");
+		message.addObject(id);
+		message.addObject(Long.valueOf(offset));
+		message.addObject(Long.valueOf(length));
+		message.addObject(token);
+		if (largeChunks()) {
+			message.addObject(Integer.valueOf(ProtocolConstants.DEFAULT_CHUNK_SIZE));
+		}
+		encryptAndWriteMessage(message);
+
+		Envelope env = readAndDecryptResponse();
+		if (env.getMessage().compareTo("READY")!=0) {
+			System.out.printf("Upload failed: %s\n", env.getMessage());
+			return false;
+		}
+
+		int chunkSize = ProtocolConstants.CHUNK_SIZE;
+		if (largeChunks()) {
+			boolean streaming = ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_STREAMING_UPLOAD);
+			chunkSize = (Integer) env.getObjContents().get(streaming ? 1 : 0);
+		}
+
+		FileInputStream fis = new FileInputStream(source);
+		try {
+			fis.getChannel().position(offset);
+			return sendData(fis, length, env, chunkSize);
+		} finally {
+			fis.close();
+		}
+	}
+
+	public boolean downloadStriped(String sourceFile, String destFile, final UserToken token, int stripes) {
+		if (stripes <= 1 || !stripedTransfers() || !rangedDownloads()) {
+			return download(sourceFile, destFile, token);
+		}
+
+		final String remotePath = sourceFile.charAt(0)=='/' ? sourceFile.substring(1) : sourceFile;
+		final File file = new File(destFile);
+		if (file.exists()) {
+			System.out.printf("Error couldn't create file %s\n", destFile);
+			return false;
+		}
+
+		try {
+			Envelope message = new Envelope("STATF");
+			message.addObject(remotePath);
+			message.addObject(token);
+			encryptAndWriteMessage(message);
+
+			Envelope env = readAndDecryptResponse();
+			if (env.getMessage().compareTo("OK")!=0) {
+				System.out.printf("Error reading file %s (%s)\n", remotePath, env.getMessage());
 				return false;
 			}
+			long size = (Long) env.getObjContents().get(0);
 
-		}catch(Exception e1)
-		{
+			file.createNewFile();
+			boolean success = runStripes(size, stripes, new Stripe() {
+				public boolean transfer(FileClient client, long offset, long length) throws Exception {
+					return client.receiveRange(remotePath, file, offset, length, token);
+				}
+			});
+
+			if (!success) {
+				file.delete();
+			}
+			return success;
+		} catch (Exception e1) {
 			System.err.println("Error: " + e1.getMessage());
 			e1.printStackTrace(System.err);
+			file.delete();
 			return false;
 		}
+	}
+
+	/**
+	 * This method downloads one byte range of a file into its place in a local
+	 * file. Every range has its own descriptor, and so its own file position.
+	 * @param sourceFile the file on the server
+	 * @param file the local file, which stripes write to at once
+	 * @param offset the first byte of the range
+	 * @param length the number of bytes in the range
+	 * @return true if the range was received in full
+	 */
+	private boolean receiveRange(String sourceFile, File file, long offset, long length, UserToken token) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(offset);
+			FileOutputStream fos = new FileOutputStream(raf.getFD());
+			if (ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_STREAMING_DOWNLOAD)) {
+				return receivePushed(sourceFile, offset, length, fos, token);
+			}
+			return receiveChunks(sourceFile, offset, length, fos, token);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * A Stripe moves one byte range of a striped transfer.
+	 */
+	private interface Stripe {
+		/**
+		 * @param client the connection to transfer the range on
+		 * @param offset the first byte of the range
+		 * @param length the number of bytes in the range
+		 * @return true if the range was transferred
+		 */
+		boolean transfer(FileClient client, long offset, long length) throws Exception;
+	}
+
+	/**
+	 * This method splits a file into contiguous ranges, aligned to whole chunks,
+	 * and transfers them at once: the first on this connection, every other
+	 * one on a connection of its own.
+	 * @param size the size of the file
+	 * @param stripes the number of ranges to use, at most one per chunk
+	 * @param stripe the transfer of one range
+	 * @return true if every range was transferred
+	 */
+	private boolean runStripes(long size, int stripes, final Stripe stripe) throws Exception {
+		int chunkSize = largeChunks() ? ProtocolConstants.DEFAULT_CHUNK_SIZE : ProtocolConstants.CHUNK_SIZE;
+		long chunks = (size + chunkSize - 1) / chunkSize;
+		int count = (int) Math.max(1, Math.min(stripes, chunks));
+
+		final long[] bounds = new long[count + 1];
+		for (int i = 0; i <= count; i++) {
+			bounds[i] = Math.min(size, chunks * i / count * chunkSize);
+		}
+
+		final boolean[] results = new boolean[count];
+		Thread[] threads = new Thread[count];
+		for (int i = 1; i < count; i++) {
+			final int index = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					FileClient client = openStripe();
+					if (client == null) {
+						return;
+					}
+
+					try {
+						results[index] = stripe.transfer(client, bounds[index], bounds[index + 1] - bounds[index]);
+					} catch (Exception e) {
+						System.out.printf("\nError transferring bytes %d to %d (%s)\n", bounds[index], bounds[index + 1], e.getMessage());
+					} finally {
+						client.disconnect();
+					}
+				}
+			}, "stripe-" + i);
+			threads[i].start();
+		}
+
+		try {
+			results[0] = stripe.transfer(this, bounds[0], bounds[1] - bounds[0]);
+		} finally {
+			for (int i = 1; i < count; i++) {
+				threads[i].join();
+			}
+		}
+
+		for (int i = 0; i < count; i++) {
+			if (!results[i]) {
+				return false;
+			}
+		}
 		return true;
 	}
+
+	/**
+	 * This method opens another connection to the file server this client is
+	 * connected to, with the same requested capabilities. The server's public
+	 * key is already confirmed, so the user is not asked again.
+	 * @return the connected client, or null if the connection failed
+	 */
+	private FileClient openStripe() {
+		FileClient client = new FileClient();
+		client.publicKey = publicKey;
+		client.setRequestedCapabilities(requestedCapabilities);
+		client.setPipelineWindow(requestedPipelineWindow);
+		if (!client.connect(sock.getInetAddress().getHostAddress(), sock.getPort(), true)) {
+			System.out.println("Error opening another connection to the file server.");
+			return null;
+		}
+
+		return client;
+	}
+
+	/**
+	 * This method checks whether unfinished uploads are kept by the server.
+	 * @return true if CAP_RESUMABLE_TRANSFERS was negotiated
+	 */
+	private boolean resumableTransfers() {
+		return ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_RESUMABLE_TRANSFERS);
+	}
+
+	/**
+	 * This method checks whether a download can be limited to a byte range.
+	 * @return true if CAP_STREAMING_DOWNLOAD or CAP_RESUMABLE_TRANSFERS was negotiated
+	 */
+	private boolean rangedDownloads() {
+		return ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_STREAMING_DOWNLOAD)
+			|| resumableTransfers();
+	}
+
+	/**
+	 * This method checks whether files may be sent in ranges over several connections.
+	 * @return true if CAP_STRIPED_TRANSFERS was negotiated
+	 */
+	private boolean stripedTransfers() {
+		return ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_STRIPED_TRANSFERS);
+	}
+
+	/**
+	 * This method checks whether uploads and downloads agree on their chunk size.
+	 * @return true if CAP_LARGE_CHUNKS was negotiated
+	 */
+	private boolean largeChunks() {
+		return ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_LARGE_CHUNKS);
+	}
+
+	/**
+	 * This method reads from a file until a chunk buffer is full, the file ends,
+	 * or the bytes left to send are read, so that every chunk but the last is full.
+	 * @param fis the file being uploaded
+	 * @param buf the chunk buffer
+	 * @param remaining the number of bytes left to send, or a negative number
+	 *        to send the rest of the file
+	 * @return the number of bytes read, or -1 if there was nothing left to read
+	 */
+	private static int readChunk(FileInputStream fis, byte[] buf, long remaining) throws IOException {
+		int max = remaining < 0 ? buf.length : (int) Math.min(buf.length, remaining);
+		if (max == 0) {
+			return -1;
+		}
+
+		int n = 0;
+		while (n < max) {
+			int read = fis.read(buf, n, max - n);
+			if (read < 0) {
+				return n == 0 ? -1 : n;
+			}
+			n += read;
+		}
+
+		return n;
+	}
+
+	/**
+	 * This method returns the bytes of a chunk to send: the buffer itself when
+	 * it is full, otherwise a copy of just the bytes read.
+	 * @param buf the chunk buffer
+	 * @param n the number of bytes in it
+	 * @return the bytes to put in the CHUNK message
+	 */
+	private static byte[] trimChunk(byte[] buf, int n) {
+		return n == buf.length ? buf : Arrays.copyOf(buf, n);
+	}
+
+	/**
+	 * This method checks an ACK received during a streaming upload.
+	 * @param env the server's response
+	 * @param acked the number of chunks acknowledged before it
+	 * @param sent the number of chunks sent
+	 * @return the number of chunks it acknowledges, or -1 if it is not a valid ACK
+	 */
+	private int checkAck(Envelope env, int acked, int sent) {
+		if (env.getMessage().compareTo("ACK")!=0) {
+			System.out.printf("\nUpload failed: %s\n", env.getMessage());
+			return -1;
+		}
+
+		int count = (Integer) env.getObjContents().get(0);
+		if (count <= acked || count > sent) {
+			System.out.printf("\nUpload failed: invalid acknowledgement of %d chunks\n", count);
+			return -1;
+		}
+
+		return count;
+	}
 }
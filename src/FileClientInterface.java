@@ -58,6 +58,40 @@ public interface FileClientInterface
   public boolean upload(final String sourceFile, final String destFile, final String group, final UserToken token);
 
 
+  /**
+  * Uploads a file, continuing an earlier upload of it that did not
+  * finish.  The server keeps the data of an unfinished upload only
+  * for the user who started it, and only if it supports resumable
+  * transfers; otherwise the whole file is sent.
+  *
+  * @param sourceFile Path to the local file to upload
+  * @param destFile   The filename to use on the server
+  * @param group      The group to share this file with
+  * @param token      The token of the user uploading the file
+  *
+  * @return true on success, false on failure
+  *
+  */
+  public boolean resumeUpload(final String sourceFile, final String destFile, final String group, final UserToken token);
+
+
+  /**
+  * Uploads a file in byte ranges sent over several connections at
+  * once.  If the server does not support striped transfers, or only
+  * one stripe is asked for, the file is uploaded as by upload().
+  *
+  * @param sourceFile Path to the local file to upload
+  * @param destFile   The filename to use on the server
+  * @param group      The group to share this file with
+  * @param token      The token of the user uploading the file
+  * @param stripes    The number of connections to use
+  *
+  * @return true on success, false on failure
+  *
+  */
+  public boolean uploadStriped(final String sourceFile, final String destFile, final String group, final UserToken token, final int stripes);
+
+
   /**
   * Downloads a file from the server.  The user must be a member of
   * the group with which this file is shared.
@@ -72,6 +106,54 @@ public interface FileClientInterface
   public boolean download(final String sourceFile, final String destFile, final UserToken token);
 
 
+  /**
+  * Downloads part of a file from the server.  The user must be a member
+  * of the group with which this file is shared, and the server must
+  * support streaming downloads.
+  *
+  * @param sourceFile The filename used on the server
+  * @param destFile   The filename to use locally
+  * @param offset     The first byte to download
+  * @param length     The number of bytes to download, or -1 for the rest of the file
+  * @param token      The token of the user downloading the file
+  *
+  * @return true on success, false on failure
+  *
+  */
+  public boolean download(final String sourceFile, final String destFile, final long offset, final long length, final UserToken token);
+
+
+  /**
+  * Downloads the rest of a file whose beginning is already in the
+  * local file, or the whole file if there is no local file yet.  The
+  * server must support streaming or resumable downloads.
+  *
+  * @param sourceFile The filename used on the server
+  * @param destFile   The filename to use locally
+  * @param token      The token of the user downloading the file
+  *
+  * @return true on success, false on failure
+  *
+  */
+  public boolean resumeDownload(final String sourceFile, final String destFile, final UserToken token);
+
+
+  /**
+  * Downloads a file in byte ranges received over several connections
+  * at once.  If the server does not support striped transfers, or only
+  * one stripe is asked for, the file is downloaded as by download().
+  *
+  * @param sourceFile The filename used on the server
+  * @param destFile   The filename to use locally
+  * @param token      The token of the user downloading the file
+  * @param stripes    The number of connections to use
+  *
+  * @return true on success, false on failure
+  *
+  */
+  public boolean downloadStriped(final String sourceFile, final String destFile, final UserToken token, final int stripes);
+
+
   /**
   * Deletes a file from the server.  The user must be a member of
   * the group with which this file is shared.
@@ -1,71 +1,936 @@
-/* This list represents the files on the server */
+/* This list represents the files on the server.
+*
+* Files are indexed by path in a concurrent map, so looking one up costs the
+* same however many files there are, and by group in maps sorted by path, so
+* listing a group's files costs only that group's files. A sorted view of all
+* files is kept alongside. Lookups read the indexes without locking; changes
+* are made under the list's monitor, which also guards the uploads.
+*
+* The list is saved in the compact form of SnapshotFile, see writeSnapshot:
+* the files in path order, in chunks that readSnapshot decodes and indexes on
+* several threads at once. The serialized form, in which earlier versions
+* saved it, is unchanged from when the files were kept in one ArrayList: the
+* indexes are written as that list and rebuilt from it when read, so
+* FileList.bin files of every version load.
+*
+* On the file server every change is also appended to a Journal and committed
+* before the method making it returns, so the saved list is a snapshot that
+* the journal brings up to date: see replayJournal and snapshot. A change that
+* cannot be committed throws the journal's IOException, and so does every
+* change after it, so none is acknowledged that would be lost.
+*
+* A snapshot is taken without stopping changes. snapshot() only starts a new
+* journal generation and marks the moment; from then on, the first change to
+* each path keeps the entry the path had at that moment. Writing the snapshot
+* then reads the indexes without locking and puts the kept entries in place of
+* the changed ones, so what is written is the list exactly as it was marked,
+* however long writing it takes, until endSnapshot().
+*/
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 
-public class FileList implements java.io.Serializable {
+public class FileList implements java.io.Serializable, SnapshotFile.Writable {
 
 	/*Serializable so it can be stored in a file for persistence */
 	private static final long serialVersionUID = -8911161283900260136L;
-	private ArrayList<ShareFile> list;
+
+	// the serialized fields: the files as one list, the unfinished uploads, the
+	// journal generation the list is a snapshot at and the unfinished striped uploads
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("list", ArrayList.class),
+		new ObjectStreamField("uploads", HashMap.class),
+		new ObjectStreamField("journalGeneration", Long.TYPE),
+		new ObjectStreamField("striped", HashMap.class)
+	};
+
+	// kinds of journal records
+	private static final byte ADD_FILE = 1;
+	private static final byte REMOVE_FILE = 2;
+	private static final byte ADD_UPLOAD = 3;
+	private static final byte REMOVE_UPLOAD = 4;
+	private static final byte COMMIT_UPLOAD = 5;
+	private static final byte ADD_STRIPED_UPLOAD = 6;
+
+	// files by path
+	private transient ConcurrentHashMap<String, ShareFile> files;
+
+	// files by path, in path order
+	private transient ConcurrentSkipListMap<String, ShareFile> sorted;
+
+	// files by group, each group's by path in path order
+	private transient ConcurrentHashMap<String, ConcurrentSkipListMap<String, ShareFile>> groups;
+
+	// uploads that have not finished, by path, kept so they can be resumed;
+	// null in lists saved before uploads could be resumed
+	private HashMap<String, ShareFile> uploads;
+
+	// striped uploads that have not finished, by path. Their ranges arrive out
+	// of order, so they are never resumed; they are kept so that one stopped
+	// while it was published is finished, see FileServer.recoverUploads. A
+	// path has at most one unfinished upload, in uploads or here
+	private HashMap<String, ShareFile> striped;
+
+	// uploads running on some connection, by path, with the user running them
+	private transient HashMap<String, ShareFile> activeUploads;
+
+	// the journal changes are appended to, or null if they are not journaled
+	private transient Journal journal;
+
+	// the journal generation the indexes are a snapshot at, or were replayed from
+	private transient long journalGeneration;
+
+	// while a snapshot is taken: the entries that the paths changed since had
+	// when it was, NO_FILE for paths that had none, and the uploads as they were
+	private transient ConcurrentHashMap<String, ShareFile> snapshotEntries;
+	private transient HashMap<String, ShareFile> snapshotUploads;
+	private transient HashMap<String, ShareFile> snapshotStriped;
+
+	private static final ShareFile NO_FILE = new ShareFile(null, null, null);
+
+	// files per section of a snapshot file; sections are decoded in parallel
+	private static final int SNAPSHOT_CHUNK = 65536;
+
+	// how object ids are written in a snapshot file: those made by
+	// FileServer.newObjectId as their 16 bytes, any other as a string
+	private static final byte NO_OBJECT = 0;
+	private static final byte HEX_OBJECT = 1;
+	private static final byte NAMED_OBJECT = 2;
+
+	// reads lists written by writeSnapshot, for SnapshotFile.load
+	public static final SnapshotFile.Decoder DECODER = new SnapshotFile.Decoder() {
+		public Object readSnapshot(SnapshotFile.Reader reader) throws IOException
+		{
+			return FileList.readSnapshot(reader);
+		}
+	};
 
 	public FileList()
 	{
-		list = new ArrayList<ShareFile>();
+		createIndexes();
+		uploads = new HashMap<String, ShareFile>();
+		striped = new HashMap<String, ShareFile>();
 	}
 
-	public synchronized void addFile(String owner, String group, String path)
+	private void createIndexes()
 	{
-		ShareFile newFile = new ShareFile(owner, group, path);
-		list.add(newFile);
+		files = new ConcurrentHashMap<String, ShareFile>();
+		sorted = new ConcurrentSkipListMap<String, ShareFile>();
+		groups = new ConcurrentHashMap<String, ConcurrentSkipListMap<String, ShareFile>>();
 	}
 
-	public synchronized void removeFile(String path)
+	/**
+	 * This method adds a file to the indexes, replacing any file at its path.
+	 * The caller holds the list's monitor.
+	 * @param file the file's entry
+	 */
+	private void index(ShareFile file)
 	{
-		for (int i = 0; i < list.size(); i++) {
-			if (list.get(i).getPath().compareTo(path)==0) {
-				list.remove(i);
+		keepForSnapshot(file.getPath());
+		ShareFile replaced = files.put(file.getPath(), file);
+		sorted.put(file.getPath(), file);
+
+		ConcurrentSkipListMap<String, ShareFile> group = groups.get(file.getGroup());
+		if (group == null) {
+			group = new ConcurrentSkipListMap<String, ShareFile>();
+			groups.put(file.getGroup(), group);
+		}
+		group.put(file.getPath(), file);
+
+		// only now, so readers never miss the path while it is replaced
+		if (replaced != null) {
+			unindex(replaced);
+		}
+	}
+
+	/**
+	 * This method removes a file's entry from the path-ordered and group
+	 * indexes, leaving whatever entry is in them now for its path. The caller
+	 * holds the list's monitor.
+	 * @param file the file's entry
+	 */
+	private void unindex(ShareFile file)
+	{
+		sorted.remove(file.getPath(), file);
+
+		ConcurrentSkipListMap<String, ShareFile> group = groups.get(file.getGroup());
+		if (group != null) {
+			group.remove(file.getPath(), file);
+			if (group.isEmpty()) {
+				groups.remove(file.getGroup());
 			}
 		}
 	}
 
-	public synchronized boolean checkFile(String path)
+	public void addFile(String owner, String group, String path) throws IOException
 	{
-		for (int i = 0; i < list.size(); i++) {
-			if (list.get(i).getPath().compareTo(path)==0) {
-				return true;
+		long sequence;
+		synchronized (this) {
+			index(new ShareFile(owner, group, path));
+			sequence = log(ADD_FILE, owner, group, path, null);
+		}
+		commit(sequence);
+	}
+
+	public void removeFile(String path) throws IOException
+	{
+		long sequence = 0;
+		synchronized (this) {
+			if (removeIndexed(path)) {
+				sequence = log(REMOVE_FILE, path);
 			}
 		}
-		return false;
+		commit(sequence);
 	}
 
-	public synchronized ArrayList<ShareFile> getFiles()
+	private boolean removeIndexed(String path)
 	{
-		Collections.sort(list);
+		keepForSnapshot(path);
+		ShareFile removed = files.remove(path);
+		if (removed != null) {
+			unindex(removed);
+		}
+		return removed != null;
+	}
+
+	public boolean checkFile(String path)
+	{
+		return files.containsKey(path);
+	}
+
+	/**
+	 * This method returns every file, in path order.
+	 * @return a copy of the entries
+	 */
+	public ArrayList<ShareFile> getFiles()
+	{
+		return new ArrayList<ShareFile>(sorted.values());
+	}
+
+	public int getFileCount()
+	{
+		return files.size();
+	}
+
+	public ShareFile getFile(String path)
+	{
+		return files.get(path);
+	}
+
+	/**
+	 * This method returns the files shared with a group, in path order.
+	 * @param groupname the group
+	 * @return a copy of the entries
+	 */
+	public List<ShareFile> getFilesForGroup(String groupname)
+	{
+		ConcurrentSkipListMap<String, ShareFile> group = groups.get(groupname);
+		if (group == null) {
+			return new ArrayList<ShareFile>();
+		}
+		return new ArrayList<ShareFile>(group.values());
+	}
+
+	/**
+	 * This method keeps the entry a path has when a snapshot is taken, before
+	 * the path is first changed after. The caller holds the list's monitor.
+	 * @param path the path about to change
+	 */
+	private void keepForSnapshot(String path)
+	{
+		if (snapshotEntries != null && !snapshotEntries.containsKey(path)) {
+			ShareFile kept = files.get(path);
+			snapshotEntries.put(path, kept == null ? NO_FILE : kept);
+		}
+	}
+
+	/**
+	 * This method takes a snapshot of the list: it starts a new journal
+	 * generation and marks the moment, so that serializing the list writes it
+	 * as it is now while changes go on. It takes the same time however many
+	 * files there are. One snapshot is taken at a time, and ended with
+	 * endSnapshot once it is written.
+	 * @return the new generation, which the snapshot is taken at
+	 */
+	public synchronized long snapshot() throws IOException
+	{
+		if (journal != null) {
+			journalGeneration = journal.roll();
+		}
+		snapshotEntries = new ConcurrentHashMap<String, ShareFile>();
+		snapshotUploads = uploads == null ? new HashMap<String, ShareFile>() : new HashMap<String, ShareFile>(uploads);
+		snapshotStriped = new HashMap<String, ShareFile>(striped);
+		return journalGeneration;
+	}
+
+	/**
+	 * This method ends a snapshot taken by snapshot, so changes stop keeping
+	 * the entries they replace.
+	 */
+	public synchronized void endSnapshot()
+	{
+		snapshotEntries = null;
+		snapshotUploads = null;
+		snapshotStriped = null;
+	}
+
+	/**
+	 * This method returns the entries as they were when the snapshot was taken.
+	 * The path-ordered index is read without locking: a path not changed
+	 * since is read as it was, and a changed path has its entry from then
+	 * kept before the change is made, so it is taken from there instead.
+	 * @return the entries, in path order but for the changed ones
+	 */
+	private ArrayList<ShareFile> snapshotFiles()
+	{
+		ArrayList<ShareFile> read = new ArrayList<ShareFile>(sorted.values());
+
+		// every path changed before this copy is in it, and every path changed
+		// after was read as it was when the snapshot was taken
+		HashMap<String, ShareFile> kept = new HashMap<String, ShareFile>(snapshotEntries);
+
+		ArrayList<ShareFile> list = new ArrayList<ShareFile>(read.size() + kept.size());
+		for (int i = 0; i < read.size(); i++) {
+			if (!kept.containsKey(read.get(i).getPath())) {
+				list.add(read.get(i));
+			}
+		}
+		for (ShareFile file : kept.values()) {
+			if (file != NO_FILE) {
+				list.add(file);
+			}
+		}
 		return list;
 	}
 
-	public synchronized ShareFile getFile(String path)
+	/**
+	 * This method writes the list in the compact form of SnapshotFile: a
+	 * section with the journal generation, the table of owners and groups and
+	 * the unfinished uploads, striped ones last, then the files in path order,
+	 * SNAPSHOT_CHUNK to a section. Each path is written as the length it
+	 * shares with the one before and the rest, starting afresh in each section
+	 * so that sections are decoded on their own. While a snapshot is taken, the
+	 * list is written as it was when it was taken.
+	 * @param writer the snapshot file
+	 */
+	public void writeSnapshot(SnapshotFile.Writer writer) throws IOException
 	{
+		ArrayList<ShareFile> list;
+		HashMap<String, ShareFile> unfinished;
+		HashMap<String, ShareFile> unfinishedStriped;
+		if (snapshotEntries != null) {
+			list = snapshotFiles();
+			unfinished = snapshotUploads;
+			unfinishedStriped = snapshotStriped;
+		}
+		else {
+			synchronized (this) {
+				list = new ArrayList<ShareFile>(sorted.values());
+				unfinished = uploads == null ? new HashMap<String, ShareFile>() : new HashMap<String, ShareFile>(uploads);
+				unfinishedStriped = new HashMap<String, ShareFile>(striped);
+			}
+		}
+		// the entries changed while the snapshot was read come last
+		Collections.sort(list);
+
+		SnapshotFile.StringTable strings = new SnapshotFile.StringTable();
 		for (int i = 0; i < list.size(); i++) {
-			if (list.get(i).getPath().compareTo(path)==0) {
-				return list.get(i);
+			strings.add(list.get(i).getOwner());
+			strings.add(list.get(i).getGroup());
+		}
+		for (ShareFile upload : unfinished.values()) {
+			strings.add(upload.getOwner());
+			strings.add(upload.getGroup());
+		}
+		for (ShareFile upload : unfinishedStriped.values()) {
+			strings.add(upload.getOwner());
+			strings.add(upload.getGroup());
+		}
+
+		DataOutputStream section = writer.section();
+		section.writeLong(journalGeneration);
+		section.writeInt(list.size());
+		section.writeInt((list.size() + SNAPSHOT_CHUNK - 1) / SNAPSHOT_CHUNK);
+		strings.write(section);
+		SnapshotFile.writeVarInt(section, unfinished.size());
+		for (ShareFile upload : unfinished.values()) {
+			SnapshotFile.writeText(section, upload.getPath());
+			writeEntry(section, strings, upload);
+		}
+		SnapshotFile.writeVarInt(section, unfinishedStriped.size());
+		for (ShareFile upload : unfinishedStriped.values()) {
+			SnapshotFile.writeText(section, upload.getPath());
+			writeEntry(section, strings, upload);
+		}
+		writer.endSection();
+
+		for (int start = 0; start < list.size(); start += SNAPSHOT_CHUNK) {
+			int end = Math.min(list.size(), start + SNAPSHOT_CHUNK);
+			SnapshotFile.writeVarInt(section, end - start);
+			String previous = "";
+			for (int i = start; i < end; i++) {
+				String path = list.get(i).getPath();
+				int common = 0;
+				int max = Math.min(previous.length(), path.length());
+				while (common < max && previous.charAt(common) == path.charAt(common)) {
+					common++;
+				}
+				// the rest is encoded on its own, so it cannot start inside a pair
+				if (common > 0 && Character.isHighSurrogate(path.charAt(common - 1))) {
+					common--;
+				}
+				SnapshotFile.writeVarInt(section, common);
+				SnapshotFile.writeText(section, path.substring(common));
+				writeEntry(section, strings, list.get(i));
+				previous = path;
 			}
+			writer.endSection();
 		}
-		return null;
 	}
 
-	public synchronized List<ShareFile> getFilesForGroup(String groupname)
+	private static void writeEntry(DataOutputStream out, SnapshotFile.StringTable strings, ShareFile file) throws IOException
 	{
-		//return list.stream().filter(file -> file.getGroup().equals(groupname))
-		//	.collect(Collectors.toList());
-		List<ShareFile> groupFiles = new ArrayList<ShareFile>();
-		for(int i=0; i<list.size(); i++)
-		{
-			if(list.get(i).getGroup().equals(groupname))
+		strings.writeId(out, file.getOwner());
+		strings.writeId(out, file.getGroup());
+
+		String objectId = file.getObjectId();
+		if (objectId == null) {
+			out.writeByte(NO_OBJECT);
+		}
+		else if (isHexObjectId(objectId)) {
+			out.writeByte(HEX_OBJECT);
+			for (int i = 0; i < 32; i += 2) {
+				out.writeByte(Character.digit(objectId.charAt(i), 16) << 4 | Character.digit(objectId.charAt(i + 1), 16));
+			}
+		}
+		else {
+			out.writeByte(NAMED_OBJECT);
+			SnapshotFile.writeText(out, objectId);
+		}
+	}
+
+	private static boolean isHexObjectId(String objectId)
+	{
+		if (objectId.length() != 32) {
+			return false;
+		}
+		for (int i = 0; i < 32; i++) {
+			char c = objectId.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static ShareFile readEntry(String path, DataInputStream in, String[] strings, int version) throws IOException
+	{
+		String owner = SnapshotFile.readString(in, strings);
+		String group = SnapshotFile.readString(in, strings);
+
+		String objectId;
+		byte kind = in.readByte();
+		if (kind == NO_OBJECT) {
+			objectId = null;
+		}
+		else if (kind == HEX_OBJECT) {
+			char[] hex = new char[32];
+			for (int i = 0; i < 32; i += 2) {
+				int b = in.readUnsignedByte();
+				hex[i] = Character.forDigit(b >> 4, 16);
+				hex[i + 1] = Character.forDigit(b & 0xf, 16);
+			}
+			objectId = new String(hex);
+		}
+		else if (kind == NAMED_OBJECT) {
+			objectId = SnapshotFile.readText(in, version);
+		}
+		else {
+			throw new IOException("Unknown object id kind " + kind + " in FileList snapshot");
+		}
+		return new ShareFile(owner, group, path, objectId);
+	}
+
+	/**
+	 * This method reads a list written by writeSnapshot. The sections of files
+	 * are read in turn and handed to SnapshotFile.loadThreads() threads, which
+	 * decode and index them at the same time; the indexes are concurrent maps
+	 * and the paths in a snapshot distinct, so they need no lock.
+	 * @param reader the snapshot file
+	 * @return the list, not yet journaled
+	 */
+	private static FileList readSnapshot(SnapshotFile.Reader reader) throws IOException
+	{
+		DataInputStream header = reader.nextSectionStream();
+		final FileList list = new FileList();
+		list.journalGeneration = header.readLong();
+		int count = header.readInt();
+		int chunks = header.readInt();
+		final int version = reader.getVersion();
+		final String[] strings = SnapshotFile.readStrings(header, version);
+		list.files = new ConcurrentHashMap<String, ShareFile>(Math.max(16, count));
+		int unfinished = SnapshotFile.readVarInt(header);
+		for (int i = 0; i < unfinished; i++) {
+			list.putUpload(readEntry(SnapshotFile.readText(header, version), header, strings, version));
+		}
+		// snapshots before version 3 have no striped uploads
+		int unfinishedStriped = version < 3 ? 0 : SnapshotFile.readVarInt(header);
+		for (int i = 0; i < unfinishedStriped; i++) {
+			list.putStripedUpload(readEntry(SnapshotFile.readText(header, version), header, strings, version));
+		}
+
+		int threads = Math.max(1, Math.min(chunks, SnapshotFile.loadThreads()));
+		final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(2 * threads);
+		final IOException[] failure = new IOException[1];
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						byte[] chunk;
+						// an empty array marks the end
+						while ((chunk = queue.take()).length > 0) {
+							try {
+								list.loadChunk(chunk, strings, version);
+							} catch (IOException e) {
+								synchronized (failure) {
+									if (failure[0] == null) {
+										failure[0] = e;
+									}
+								}
+							}
+						}
+					} catch (InterruptedException e) {
+						// the load is abandoned
+					}
+				}
+			}, "snapshot-loader-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+
+		try {
+			try {
+				for (int i = 0; i < chunks; i++) {
+					queue.put(reader.nextSection());
+				}
+			} finally {
+				for (int i = 0; i < threads; i++) {
+					queue.put(new byte[0]);
+				}
+				for (int i = 0; i < threads; i++) {
+					workers[i].join();
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted loading FileList snapshot");
+		}
+
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		if (list.files.size() != count) {
+			throw new IOException("FileList snapshot holds " + list.files.size() + " files instead of " + count);
+		}
+		return list;
+	}
+
+	/**
+	 * This method decodes a section of files and indexes them. It is called
+	 * on several threads at once while the list is loaded.
+	 * @param chunk the section
+	 * @param strings the snapshot's table of owners and groups
+	 * @param version the snapshot's version
+	 */
+	private void loadChunk(byte[] chunk, String[] strings, int version) throws IOException
+	{
+		DataInputStream in = SnapshotFile.open(chunk);
+		int count = SnapshotFile.readVarInt(in);
+		String previous = "";
+		for (int i = 0; i < count; i++) {
+			int common = SnapshotFile.readVarInt(in);
+			if (common > previous.length()) {
+				throw new IOException("Corrupt path in FileList snapshot");
+			}
+			String suffix = SnapshotFile.readText(in, version);
+			String path = common == 0 ? suffix : previous.substring(0, common).concat(suffix);
+			ShareFile file = readEntry(path, in, strings, version);
+
+			files.put(path, file);
+			sorted.put(path, file);
+			ConcurrentSkipListMap<String, ShareFile> group = groups.get(file.getGroup());
+			if (group == null) {
+				ConcurrentSkipListMap<String, ShareFile> created = new ConcurrentSkipListMap<String, ShareFile>();
+				group = groups.putIfAbsent(file.getGroup(), created);
+				if (group == null) {
+					group = created;
+				}
+			}
+			group.put(path, file);
+			previous = path;
+		}
+	}
+
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException
+	{
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("list", new ArrayList<ShareFile>(sorted.values()));
+		fields.put("uploads", uploads);
+		fields.put("journalGeneration", journalGeneration);
+		fields.put("striped", striped);
+		out.writeFields();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream.GetField fields = in.readFields();
+		ArrayList<ShareFile> list = (ArrayList<ShareFile>) fields.get("list", null);
+		uploads = (HashMap<String, ShareFile>) fields.get("uploads", null);
+		journalGeneration = fields.get("journalGeneration", 0L);
+		striped = (HashMap<String, ShareFile>) fields.get("striped", null);
+		if (striped == null) {
+			striped = new HashMap<String, ShareFile>();
+		}
+
+		createIndexes();
+		for (int i = 0; list != null && i < list.size(); i++) {
+			index(list.get(i));
+		}
+	}
+
+	/**
+	 * This method brings a loaded list up to date from its journal, then
+	 * journals every further change. Lists saved before there was a journal
+	 * are snapshots at generation 0.
+	 * @param base the journal's file name
+	 */
+	public synchronized void replayJournal(String base) throws IOException
+	{
+		long last = Journal.replay(base, journalGeneration, new Journal.Replayer() {
+			public void replay(long generation, DataInputStream record) throws IOException
 			{
-				groupFiles.add(list.get(i));
+				apply(record);
+			}
+		});
+		journal = new Journal(base, last);
+		journalGeneration = last;
+	}
+
+	/**
+	 * This method returns how many changes were journaled since the last
+	 * snapshot.
+	 * @return the number of changes, or 0 if changes are not journaled
+	 */
+	public long getJournaledChanges()
+	{
+		return journal == null ? 0 : journal.getRecordCount();
+	}
+
+	/**
+	 * This method appends a change to the journal, if there is one. The caller
+	 * holds the list's monitor, so changes are journaled in the order they are
+	 * made.
+	 * @param kind the kind of change
+	 * @param fields its fields, any of which may be null
+	 * @return the record's sequence number for commit, or 0 if not journaled
+	 */
+	private long log(byte kind, String... fields)
+	{
+		if (journal == null) {
+			return 0;
+		}
+
+		Object[] record = new Object[fields.length + 1];
+		record[0] = kind;
+		System.arraycopy(fields, 0, record, 1, fields.length);
+		return journal.append(Journal.record(record));
+	}
+
+	/**
+	 * This method waits for a journaled change to be on disk. It is called
+	 * without holding the list's monitor, so that the changes of concurrent
+	 * connections are committed together.
+	 * @param sequence the sequence number from log
+	 * @throws IOException if the journal could not be written; the change is
+	 *         not durable, and neither is any change after it
+	 */
+	private void commit(long sequence) throws IOException
+	{
+		if (sequence == 0) {
+			return;
+		}
+		journal.commit(sequence);
+	}
+
+	private void apply(DataInputStream record) throws IOException
+	{
+		byte kind = record.readByte();
+		if (kind == ADD_FILE) {
+			index(readShareFile(record));
+		}
+		else if (kind == REMOVE_FILE) {
+			removeIndexed(Journal.readString(record));
+		}
+		else if (kind == ADD_UPLOAD) {
+			putUpload(readShareFile(record));
+		}
+		else if (kind == REMOVE_UPLOAD) {
+			dropUpload(Journal.readString(record));
+		}
+		else if (kind == ADD_STRIPED_UPLOAD) {
+			putStripedUpload(readShareFile(record));
+		}
+		else if (kind == COMMIT_UPLOAD) {
+			ShareFile file = readShareFile(record);
+			dropUpload(file.getPath());
+			index(file);
+		}
+		else {
+			throw new IOException("Unknown FileList journal record " + kind);
+		}
+	}
+
+	private static ShareFile readShareFile(DataInputStream record) throws IOException
+	{
+		return new ShareFile(Journal.readString(record), Journal.readString(record), Journal.readString(record), Journal.readString(record));
+	}
+
+	/**
+	 * This method reserves a path for an upload, so that no other user writes
+	 * to its partial file at the same time. The user already holding it may
+	 * claim it again: after a dropped connection the client usually returns
+	 * before the server has noticed the old connection is gone.
+	 * @param owner the user starting the upload
+	 * @param path the path of the file being uploaded
+	 * @return the claim, or null if another user's upload to the path is running
+	 */
+	public synchronized Object claimUpload(String owner, String path)
+	{
+		if (activeUploads == null) {
+			activeUploads = new HashMap<String, ShareFile>();
+		}
+
+		ShareFile active = activeUploads.get(path);
+		if (active != null && !active.getOwner().equals(owner)) {
+			return null;
+		}
+
+		ShareFile claim = new ShareFile(owner, null, path);
+		activeUploads.put(path, claim);
+		return claim;
+	}
+
+	/**
+	 * This method checks whether a claim made by claimUpload still holds.
+	 * @param path the path of the file being uploaded
+	 * @param claim the claim returned by claimUpload
+	 * @return false if the path was claimed again since
+	 */
+	public synchronized boolean holdsUpload(String path, Object claim)
+	{
+		return activeUploads != null && activeUploads.get(path) == claim;
+	}
+
+	/**
+	 * This method ends a claim made by claimUpload, unless the path was
+	 * claimed again since.
+	 * @param path the path of the file being uploaded
+	 * @param claim the claim returned by claimUpload
+	 */
+	public synchronized void releaseUpload(String path, Object claim)
+	{
+		if (holdsUpload(path, claim)) {
+			activeUploads.remove(path);
+		}
+	}
+
+	/**
+	 * This method records who started an unfinished upload, replacing any
+	 * earlier unfinished upload to the same path.
+	 * @param objectId the object id the upload is stored under
+	 * @return the record of the upload
+	 */
+	public ShareFile addUpload(String owner, String group, String path, String objectId) throws IOException
+	{
+		ShareFile upload = new ShareFile(owner, group, path, objectId);
+		long sequence;
+		synchronized (this) {
+			putUpload(upload);
+			sequence = log(ADD_UPLOAD, owner, group, path, objectId);
+		}
+		commit(sequence);
+		return upload;
+	}
+
+	private void putUpload(ShareFile upload)
+	{
+		if (uploads == null) {
+			uploads = new HashMap<String, ShareFile>();
+		}
+		striped.remove(upload.getPath());
+		uploads.put(upload.getPath(), upload);
+	}
+
+	/**
+	 * This method records who started an unfinished striped upload, replacing
+	 * any earlier unfinished upload to the same path. The record is dropped by
+	 * commitUpload or removeUpload like that of any upload, but getUpload does
+	 * not return it, so it is never resumed.
+	 * @param objectId the object id the upload is stored under
+	 * @return the record of the upload
+	 */
+	public ShareFile addStripedUpload(String owner, String group, String path, String objectId) throws IOException
+	{
+		ShareFile upload = new ShareFile(owner, group, path, objectId);
+		long sequence;
+		synchronized (this) {
+			putStripedUpload(upload);
+			sequence = log(ADD_STRIPED_UPLOAD, owner, group, path, objectId);
+		}
+		commit(sequence);
+		return upload;
+	}
+
+	private void putStripedUpload(ShareFile upload)
+	{
+		if (uploads != null) {
+			uploads.remove(upload.getPath());
+		}
+		striped.put(upload.getPath(), upload);
+	}
+
+	/**
+	 * This method returns the unfinished striped upload to a path.
+	 * @param path the path of the file being uploaded
+	 * @return the record of the upload, or null if there is none
+	 */
+	public synchronized ShareFile getStripedUpload(String path)
+	{
+		return striped.get(path);
+	}
+
+	/**
+	 * This method returns the paths of the unfinished striped uploads.
+	 * @return a copy of the paths
+	 */
+	public synchronized List<String> getStripedUploadPaths()
+	{
+		return new ArrayList<String>(striped.keySet());
+	}
+
+	/**
+	 * This method returns the unfinished upload to a path.
+	 * @param path the path of the file being uploaded
+	 * @return the owner and group of the upload, or null if there is none
+	 */
+	public synchronized ShareFile getUpload(String path)
+	{
+		return uploads == null ? null : uploads.get(path);
+	}
+
+	/**
+	 * This method returns the paths of the unfinished uploads.
+	 * @return a copy of the paths
+	 */
+	public synchronized List<String> getUploadPaths()
+	{
+		return uploads == null ? new ArrayList<String>() : new ArrayList<String>(uploads.keySet());
+	}
+
+	/**
+	 * This method records a finished upload as a shared file and forgets the
+	 * unfinished upload in one step, so a saved list never holds both or neither.
+	 * A file already shared under the path is never replaced.
+	 * @param owner the user who uploaded the file
+	 * @param group the group the file is shared with
+	 * @param path the path of the file
+	 * @param objectId the object id the file is stored under
+	 * @return true if the file was recorded, false if the path already holds a
+	 *         file, in which case nothing is changed
+	 */
+	public boolean commitUpload(String owner, String group, String path, String objectId) throws IOException
+	{
+		long sequence;
+		synchronized (this) {
+			if (files.containsKey(path)) {
+				return false;
+			}
+			dropUpload(path);
+			index(new ShareFile(owner, group, path, objectId));
+			sequence = log(COMMIT_UPLOAD, owner, group, path, objectId);
+		}
+		commit(sequence);
+		return true;
+	}
+
+	/**
+	 * This method returns the files still stored under the flat naming of
+	 * earlier versions, which have no object id.
+	 * @return a copy of their entries
+	 */
+	public List<ShareFile> getLegacyFiles()
+	{
+		List<ShareFile> legacy = new ArrayList<ShareFile>();
+		for (ShareFile file : sorted.values()) {
+			if (file.getObjectId() == null) {
+				legacy.add(file);
+			}
+		}
+		return legacy;
+	}
+
+	/**
+	 * This method switches a file to the object id its data has been moved to.
+	 * @param file the entry of the file, as returned by getLegacyFiles
+	 * @param objectId the new object id
+	 * @return the new entry, or null if the entry is no longer in the list
+	 *         because the file was deleted meanwhile
+	 */
+	public ShareFile migrateFile(ShareFile file, String objectId) throws IOException
+	{
+		ShareFile migrated = new ShareFile(file.getOwner(), file.getGroup(), file.getPath(), objectId);
+		long sequence;
+		synchronized (this) {
+			if (files.get(file.getPath()) != file) {
+				return null;
+			}
+			index(migrated);
+			sequence = log(ADD_FILE, migrated.getOwner(), migrated.getGroup(), migrated.getPath(), objectId);
+		}
+		commit(sequence);
+		return migrated;
+	}
+
+	/**
+	 * This method forgets an unfinished upload, striped or not, once it is
+	 * finished or abandoned.
+	 * @param path the path of the file being uploaded
+	 */
+	public void removeUpload(String path) throws IOException
+	{
+		long sequence = 0;
+		synchronized (this) {
+			if (dropUpload(path)) {
+				sequence = log(REMOVE_UPLOAD, path);
 			}
 		}
-		return groupFiles;
+		commit(sequence);
+	}
+
+	private boolean dropUpload(String path)
+	{
+		boolean dropped = striped.remove(path) != null;
+		return (uploads != null && uploads.remove(path) != null) || dropped;
 	}
 }
@@ -1,15 +1,15 @@
 /* FileServer loads files from FileList.bin.  Stores files in shared_files directory. */
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.security.*;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.crypto.*;
 
 // bouncy castle provider
@@ -20,10 +20,29 @@ public class FileServer extends Server {
 	public static final int SERVER_PORT = 4321;
 	public static FileList fileList;
 
+	public static final String FILE_LIST_FILE = "FileList.bin";
+	public static final String FILE_LIST_JOURNAL = "FileList.journal";
+	public static final String SHARED_FILES_DIR = "shared_files";
+
+	// directories under SHARED_FILES_DIR holding stored objects and partial uploads
+	public static final String OBJECTS_DIR = "objects";
+	public static final String STAGING_DIR = "staging";
+
+	// prefix of the names of partial files of uploads without an object id
+	private static final String PARTIAL_PREFIX = ".part";
+
+	private static final SecureRandom random = new SecureRandom();
+
+	// held while the FileList is saved, see saveFileList
+	private static final Object saveLock = new Object();
+
 	// override locations of key file variables
 	public static String PUBLIC_KEY_FILE = "fs_public.key";
 	private static String PRIVATE_KEY_FILE = "fs_private.key";
 
+	// striped uploads in progress, by id; see StripedUpload
+	private final ConcurrentHashMap<String, StripedUpload> stripedUploads = new ConcurrentHashMap<String, StripedUpload>();
+
 	public FileServer() {
 		super(SERVER_PORT, "FilePile");
 
@@ -36,24 +55,108 @@ public class FileServer extends Server {
 		generateKeys(PUBLIC_KEY_FILE, PRIVATE_KEY_FILE);
 	}
 
-	public void start() {
-		String fileFile = "FileList.bin";
-		ObjectInputStream fileStream;
+	public ConcurrentHashMap<String, StripedUpload> getStripedUploads() {
+		return stripedUploads;
+	}
 
-		//This runs a thread that saves the lists on program exit
-		Runtime runtime = Runtime.getRuntime();
-		Thread catchExit = new Thread(new ShutDownListenerFS());
-		runtime.addShutdownHook(catchExit);
+	/**
+	 * This method makes a new object id: 128 random bits in hex, so ids never
+	 * collide in practice and no lookup is needed to pick one.
+	 * @return the object id
+	 */
+	public static String newObjectId() {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		StringBuilder id = new StringBuilder(32);
+		for (int i = 0; i < bytes.length; i++) {
+			id.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+			id.append(Character.forDigit(bytes[i] & 0xf, 16));
+		}
+		return id.toString();
+	}
 
-		// initialize Bouncy Castle Provider
-		Security.addProvider(new BouncyCastleProvider());
+	/**
+	 * This method returns where a shared file is stored. Files with an object id
+	 * are stored as objects/ab/cd/abcd..., fanned out over two levels of 256
+	 * directories by the first four digits of the id, so no directory grows
+	 * past a few thousand entries. Files without one keep the flat naming of
+	 * earlier versions, see legacyFile, until StorageMigration moves them.
+	 * @param file the FileList entry of the file
+	 * @return the stored file
+	 */
+	public static File storedFile(ShareFile file) {
+		if (file.getObjectId() == null) {
+			return legacyFile(file.getPath());
+		}
+		return objectFile(file.getObjectId());
+	}
+
+	/**
+	 * This method returns where the object with the given id is stored.
+	 * @param objectId the object id
+	 * @return the stored file, whose directories may not exist yet
+	 */
+	public static File objectFile(String objectId) {
+		File dir = new File(new File(new File(SHARED_FILES_DIR, OBJECTS_DIR), objectId.substring(0, 2)), objectId.substring(2, 4));
+		return new File(dir, objectId);
+	}
+
+	/**
+	 * This method returns where a file without an object id is stored: under
+	 * its path with every slash replaced by an underscore.
+	 * @param path the path of the file, starting with a slash
+	 * @return the stored file
+	 */
+	public static File legacyFile(String path) {
+		return new File(SHARED_FILES_DIR, path.replace('/', '_'));
+	}
+
+	/**
+	 * This method returns the file an upload is written to until it finishes.
+	 * Uploads with an object id are staged under that id in one flat staging
+	 * directory, on the same file system as the objects so they are published
+	 * by a rename. Uploads recorded by earlier versions have no object id and
+	 * keep their partial file next to the flat names, with a prefix no flat
+	 * name starts with.
+	 * @param upload the upload's record
+	 * @return the partial file
+	 */
+	public static File partialFile(ShareFile upload) {
+		if (upload.getObjectId() == null) {
+			return new File(SHARED_FILES_DIR, PARTIAL_PREFIX + upload.getPath().replace('/', '_'));
+		}
+		return new File(new File(SHARED_FILES_DIR, STAGING_DIR), upload.getObjectId());
+	}
 
+	/**
+	 * This method creates the directories an object is stored in, forcing the
+	 * new directory entries to disk as the upload durability policy requires.
+	 * @param stored the stored file, from objectFile
+	 */
+	public static void createObjectDirectory(File stored) {
+		File dir = stored.getParentFile();
+		if (dir.isDirectory()) {
+			return;
+		}
+
+		File fanout = dir.getParentFile();
+		boolean newFanout = !fanout.isDirectory();
+		dir.mkdirs();
+		UploadWriter.syncDirectory(fanout);
+		if (newFanout) {
+			UploadWriter.syncDirectory(fanout.getParentFile());
+		}
+	}
+
+	/**
+	 * This method loads the FileList: its last snapshot, brought up to date
+	 * from the journal. Changes made from now on are journaled.
+	 */
+	public static void loadFileList() {
 		//Open user file to get user list
 		try
 		{
-			FileInputStream fis = new FileInputStream(fileFile);
-			fileStream = new ObjectInputStream(fis);
-			fileList = (FileList)fileStream.readObject();
+			fileList = (FileList) SnapshotFile.load(FILE_LIST_FILE, FileList.DECODER);
 		}
 		catch(FileNotFoundException e)
 		{
@@ -73,7 +176,142 @@ public class FileServer extends Server {
 			System.exit(-1);
 		}
 
-		File file = new File("shared_files");
+		try
+		{
+			fileList.replayJournal(FILE_LIST_JOURNAL);
+		}
+		catch(IOException e)
+		{
+			System.out.println("Error replaying FileList journal: " + e.getMessage());
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * This method compacts the FileList journal into a new snapshot. The
+	 * snapshot is taken at the start of a new journal generation, see
+	 * FileList.snapshot, and saved while connections go on changing the list,
+	 * see SnapshotFile.save. Only once it is on disk are the older generations
+	 * deleted, so a crash at any point leaves a snapshot and the journal that
+	 * completes it. Saves made at the same time are made one after the other.
+	 */
+	public static void saveFileList() throws IOException {
+		synchronized (saveLock) {
+			long generation = fileList.snapshot();
+			try {
+				SnapshotFile.save(FILE_LIST_FILE, fileList);
+			} finally {
+				fileList.endSnapshot();
+			}
+
+			Journal.syncDirectory(new File(FILE_LIST_FILE));
+			Journal.deleteBefore(FILE_LIST_JOURNAL, generation);
+		}
+	}
+
+	/**
+	 * This method cleans up after the uploads that were running when the server
+	 * last stopped. An upload whose partial file was already renamed into place,
+	 * but whose FileList entry was never saved, is finished from its upload
+	 * record. The partial files of recorded uploads are kept so they can be
+	 * resumed; every other partial file, in the staging directory or under the
+	 * old prefix, is deleted, along with the records of uploads whose partial
+	 * file is gone. Striped uploads cannot be resumed, so their records are
+	 * dropped unless the upload is finished. An upload whose path was taken by
+	 * another file is never finished, and its object is deleted.
+	 * @throws IOException if the FileList journal could not be written
+	 */
+	private void recoverUploads() throws IOException {
+		Set<String> kept = new HashSet<String>();
+		int finished = 0;
+		int dropped = 0;
+		int deleted = 0;
+
+		List<String> paths = fileList.getUploadPaths();
+		for (int i = 0; i < paths.size(); i++) {
+			String path = paths.get(i);
+			ShareFile upload = fileList.getUpload(path);
+			File part = partialFile(upload);
+			if (part.exists()) {
+				kept.add(part.getPath());
+			}
+			else if (storedFile(upload).exists() && fileList.commitUpload(upload.getOwner(), upload.getGroup(), path, upload.getObjectId())) {
+				finished++;
+			}
+			else {
+				deleted += deleteRefusedObject(upload);
+				fileList.removeUpload(path);
+				dropped++;
+			}
+		}
+
+		List<String> stripedPaths = fileList.getStripedUploadPaths();
+		for (int i = 0; i < stripedPaths.size(); i++) {
+			String path = stripedPaths.get(i);
+			ShareFile upload = fileList.getStripedUpload(path);
+			if (storedFile(upload).exists() && fileList.commitUpload(upload.getOwner(), upload.getGroup(), path, upload.getObjectId())) {
+				finished++;
+			}
+			else {
+				deleted += deleteRefusedObject(upload);
+				fileList.removeUpload(path);
+				dropped++;
+			}
+		}
+
+		File[] stored = new File(SHARED_FILES_DIR).listFiles();
+		for (int i = 0; stored != null && i < stored.length; i++) {
+			String name = stored[i].getName();
+			if (name.startsWith(PARTIAL_PREFIX) && !kept.contains(stored[i].getPath()) && stored[i].delete()) {
+				deleted++;
+			}
+		}
+
+		File[] staged = new File(SHARED_FILES_DIR, STAGING_DIR).listFiles();
+		for (int i = 0; staged != null && i < staged.length; i++) {
+			if (!kept.contains(staged[i].getPath()) && staged[i].delete()) {
+				deleted++;
+			}
+		}
+
+		System.out.printf("Upload recovery: %d finished, %d kept to resume, %d records dropped, %d partial or refused files deleted\n",
+			finished, kept.size(), dropped, deleted);
+	}
+
+	/**
+	 * This method deletes the object of an upload that was renamed into place
+	 * but whose path was taken by another file before it was committed. Uploads
+	 * without an object id are stored under the path itself, so they are left alone.
+	 * @param upload the record of the upload being dropped
+	 * @return 1 if the object was deleted, 0 otherwise
+	 */
+	private int deleteRefusedObject(ShareFile upload) {
+		if (upload.getObjectId() == null) {
+			return 0;
+		}
+		ShareFile current = fileList.getFile(upload.getPath());
+		if (current != null && upload.getObjectId().equals(current.getObjectId())) {
+			return 0;
+		}
+		return objectFile(upload.getObjectId()).delete() ? 1 : 0;
+	}
+
+	ServerThread createConnection(Socket sock) {
+		return new FileThread(sock, this);
+	}
+
+	public void start() {
+		//This runs a thread that saves the lists on program exit
+		Runtime runtime = Runtime.getRuntime();
+		Thread catchExit = new Thread(new ShutDownListenerFS());
+		runtime.addShutdownHook(catchExit);
+
+		// initialize Bouncy Castle Provider
+		Security.addProvider(new BouncyCastleProvider());
+
+		loadFileList();
+
+		File file = new File(SHARED_FILES_DIR);
 		if (file.mkdir()) {
 			System.out.println("Created new shared_files directory");
 		}
@@ -84,27 +322,35 @@ public class FileServer extends Server {
 			System.out.println("Error creating shared_files directory");
 		}
 
+		new File(SHARED_FILES_DIR, OBJECTS_DIR).mkdir();
+		new File(SHARED_FILES_DIR, STAGING_DIR).mkdir();
+		try
+		{
+			recoverUploads();
+		}
+		catch(IOException e)
+		{
+			System.out.println("Error writing FileList journal: " + e.getMessage());
+			System.exit(-1);
+		}
+
+		// files still under the flat names of earlier versions are moved into the
+		// object layout in the background while the server runs
+		if (Boolean.getBoolean(StorageMigration.MIGRATE_PROPERTY)) {
+			Thread migration = new Thread(new StorageMigration(StorageMigration.DEFAULT_GRACE_MS), "StorageMigration");
+			migration.setDaemon(true);
+			migration.start();
+		}
+
 		//Autosave Daemon. Saves lists every 5 minutes
 		AutoSaveFS aSave = new AutoSaveFS();
 		aSave.setDaemon(true);
 		aSave.start();
 
-		boolean running = true;
-
 		try
 		{
-			final ServerSocket serverSock = new ServerSocket(port);
 			System.out.printf("%s up and running\n", this.getClass().getName());
-
-			Socket sock = null;
-			Thread thread = null;
-
-			while(running)
-			{
-				sock = serverSock.accept();
-				thread = new FileThread(sock, this);
-				thread.start();
-			}
+			serve();
 
 			System.out.printf("%s shut down\n", this.getClass().getName());
 		}
@@ -122,12 +368,12 @@ class ShutDownListenerFS implements Runnable
 	public void run()
 	{
 		System.out.println("Shutting down server");
-		ObjectOutputStream outStream;
 
 		try
 		{
-			outStream = new ObjectOutputStream(new FileOutputStream("FileList.bin"));
-			outStream.writeObject(FileServer.fileList);
+			if (FileServer.fileList != null && FileServer.fileList.getJournaledChanges() > 0) {
+				FileServer.saveFileList();
+			}
 		}
 		catch(Exception e)
 		{
@@ -139,19 +385,27 @@ class ShutDownListenerFS implements Runnable
 
 class AutoSaveFS extends Thread
 {
+	// journaled changes below which the journal is never compacted
+	private static final long MIN_COMPACTION = 1000;
+
 	public void run()
 	{
 		do
 		{
 			try
 			{
-				Thread.sleep(300000); //Save group and user lists every 5 minutes
-				System.out.println("Autosave file list...");
-				ObjectOutputStream outStream;
+				Thread.sleep(300000); //Check the file list journal every 5 minutes
+
+				// every change is already in the journal; it is compacted once
+				// replaying it would cost a good part of loading the snapshot
+				long changes = FileServer.fileList.getJournaledChanges();
+				if (changes < MIN_COMPACTION || changes < FileServer.fileList.getFileCount() / 10) {
+					continue;
+				}
+				System.out.println("Compacting file list journal...");
 				try
 				{
-					outStream = new ObjectOutputStream(new FileOutputStream("FileList.bin"));
-					outStream.writeObject(FileServer.fileList);
+					FileServer.saveFileList();
 				}
 				catch(Exception e)
 				{
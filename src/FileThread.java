@@ -4,12 +4,20 @@ import java.lang.Thread;
 import java.net.Socket;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 import java.security.*;
 import java.security.Signature;
@@ -21,285 +29,1175 @@ public class FileThread extends ServerThread
 	private final Socket socket;
 	private final FileServer server;
 
+	// whether the client accepted this server's public key
+	private boolean publicKeyConfirmed = false;
+
+	// transfers in progress, keyed by the stream they run on
+	private final HashMap<Integer, Transfer> transfers = new HashMap<Integer, Transfer>();
+
+	// ids of the striped uploads this connection opened and has not committed
+	private final List<String> stripedUploads = new ArrayList<String>();
+
 	public FileThread(Socket _socket, FileServer _server)
 	{
 		socket = _socket;
 		server = _server;
 		privateKey = server.getPrivateKey();
 		publicKey = server.getPublicKey();
+		ticketKeys = server.getTicketKeys();
+		handshakeSigner = server.getHandshakeSigner();
+	}
 
-		try {
-			input = new ObjectInputStream(socket.getInputStream());
-			output = new ObjectOutputStream(socket.getOutputStream());
-		} catch (Exception e) {
-			System.err.println("Error creating socket input and output streams.");
-			System.exit(1);
+	public boolean openSession()
+	{
+		if (input == null) {
+			try {
+				input = new ObjectInputStream(socket.getInputStream());
+				output = new ObjectOutputStream(socket.getOutputStream());
+			} catch (Exception e) {
+				System.err.println("Error creating socket input and output streams.");
+				return false;
+			}
+
+			System.out.println("*** New connection from " + socket.getInetAddress() + ":" + socket.getPort() + "***");
+			return sendPublicKey();
 		}
+
+		// confirm public key with client
+		if (!publicKeyConfirmed) {
+			if (!confirmPublicKey()) {
+				System.err.println("Error occurred while attempting to establish public key.");
+				return false;
+			}
+
+			publicKeyConfirmed = true;
+			return true;
+		}
+
+		// establish session key with client
+		if (!establishSessionKey()) {
+			System.err.println("Error occurred while attempting to establish session key.");
+			return false;
+		}
+
+		return true;
 	}
 
-	public void run()
+	public boolean handleMessage()
 	{
 		boolean proceed = true;
 		Envelope message = null, response = null;
 		try
 		{
-			System.out.println("*** New connection from " + socket.getInetAddress() + ":" + socket.getPort() + "***");
+			message = readAndDecryptMessage();
+			System.out.println("Request received: " + message.getMessage());
 
-			// confirm public key with client
-			if (!establishPublicKey()) {
-				System.err.println("Error occurred while attempting to establish public key.");
-				return;
-			}
+			// messages on a stream with a transfer in progress belong to that transfer
+			Transfer transfer = transfers.get(streamId);
+			if (transfer != null)
+			{
+				response = transfer.handle(message);
+				if (transfer.isFinished()) {
+					transfers.remove(streamId);
+				}
 
-			// establish session key with client
-			if (!establishSessionKey()) {
-				System.err.println("Error occurred while attempting to establish session key.");
-				return;
+				if (response != null) {
+					encryptAndWriteResponse(response);
+				}
 			}
-
-			do
+			// Handler to list files that this user is allowed to see
+			else if(message.getMessage().equals("LFILES"))
 			{
-				message = readAndDecryptMessage();
-				System.out.println("Request received: " + message.getMessage());
+				response = new Envelope("FAIL-BADTOKEN");
 
-				// Handler to list files that this user is allowed to see
-				if(message.getMessage().equals("LFILES"))
-				{
-					response = new Envelope("FAIL-BADTOKEN");
+				if (isValidMessage(message, 2)) {
+					List<String> userFiles = new ArrayList<String>();
 
-					if (isValidMessage(message, 2)) {
-						List<String> userFiles = new ArrayList<String>();
+					// get the groups for this user
+					UserToken yourToken = (UserToken) message.getObjContents().get(0);
 
-						// get the groups for this user
-						UserToken yourToken = (UserToken) message.getObjContents().get(0);
+					if (!verifyTokenSignature(yourToken)) {
+						System.err.println("TOKEN SIGNATURE NOT VALID");
+						System.exit(1);
+					} 
+					
+					List<String> userGroups = yourToken.getGroups();
 
-						if (!verifyTokenSignature(yourToken)) {
-							System.err.println("TOKEN SIGNATURE NOT VALID");
-							System.exit(1);
-						} 
-						
-						List<String> userGroups = yourToken.getGroups();
+					// iterate through user's groups
+					Iterator<String> groupIter = userGroups.iterator();
+					while (groupIter.hasNext())
+					{
+						// get the files for this group
+						List<ShareFile> groupFiles = server.fileList.getFilesForGroup((String) groupIter.next());
 
-						// iterate through user's groups
-						Iterator<String> groupIter = userGroups.iterator();
-						while (groupIter.hasNext())
+						// add each of the files for this group to userFiles
+						Iterator<ShareFile> fileIter = groupFiles.iterator();
+						while (fileIter.hasNext())
 						{
-							// get the files for this group
-							List<ShareFile> groupFiles = server.fileList.getFilesForGroup((String) groupIter.next());
-
-							// add each of the files for this group to userFiles
-							Iterator<ShareFile> fileIter = groupFiles.iterator();
-							while (fileIter.hasNext())
-							{
-								ShareFile nextFile = (ShareFile) fileIter.next();
-								userFiles.add(nextFile.getPath());
-							}
+							ShareFile nextFile = (ShareFile) fileIter.next();
+							userFiles.add(nextFile.getPath());
 						}
-
-						response = new Envelope("OK");
-						response.addObject(userFiles);
 					}
 
-					encryptAndWriteResponse(response);
+					response = new Envelope("OK");
+					response.addObject(userFiles);
 				}
-				if(message.getMessage().equals("UPLOADF"))
+
+				encryptAndWriteResponse(response);
+			}
+			else if(message.getMessage().equals("UPLOADF"))
+			{
+				response = new Envelope("FAIL-BADCONTENTS");
+
+				// after the token a client with resumable transfers says where to
+				// start, 0 or -1 to resume, and with large chunks asks for a chunk size
+				boolean resumable = ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_RESUMABLE_TRANSFERS);
+				boolean largeChunks = ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_LARGE_CHUNKS);
+				int size = 4 + (resumable ? 1 : 0) + (largeChunks ? 1 : 0);
+				if(message.getObjContents().size() == size && (size == 4 || isValidMessage(message, size)))
 				{
-					response = new Envelope("FAIL-BADCONTENTS");
+					if(!ProtocolConstants.isValidName((String)message.getObjContents().get(0))) {
+						response = new Envelope("FAIL-BADPATH");
+					}
+					else if (message.getObjContents().get(1) == null) {
+						response = new Envelope("FAIL-BADGROUP");
+					}
+					else if (message.getObjContents().get(2) == null) {
+						response = new Envelope("FAIL-BADTOKEN");
+					}
+					else {
+						String remotePath = (String)message.getObjContents().get(0);
+						String group = (String)message.getObjContents().get(1);
+						UserToken yourToken = (UserToken)message.getObjContents().get(2); //Extract token
+						Object claim;
+						// verifyTokenSignature(yourToken);
 
-					if(message.getObjContents().size() == 4)
-					{
-						if(message.getObjContents().get(0) == null) {
-							response = new Envelope("FAIL-BADPATH");
+						if (FileServer.fileList.checkFile(remotePath)) {
+							System.out.printf("Error: file already exists at %s\n", remotePath);
+							response = new Envelope("FAIL-FILEEXISTS"); //Success
 						}
-						else if (message.getObjContents().get(1) == null) {
-							response = new Envelope("FAIL-BADGROUP");
+						else if (!yourToken.getGroups().contains(group)) {
+							System.out.printf("Error: user missing valid token for group %s\n", group);
+							response = new Envelope("FAIL-UNAUTHORIZED"); //Success
 						}
-						else if (message.getObjContents().get(2) == null) {
-							response = new Envelope("FAIL-BADTOKEN");
+						else if ((claim = FileServer.fileList.claimUpload(yourToken.getSubject(), remotePath)) == null) {
+							System.out.printf("Error: file %s is being uploaded\n", remotePath);
+							response = new Envelope("FAIL-UPLOADACTIVE");
 						}
-						else {
-							String remotePath = (String)message.getObjContents().get(0);
-							String group = (String)message.getObjContents().get(1);
-							UserToken yourToken = (UserToken)message.getObjContents().get(2); //Extract token
-							// verifyTokenSignature(yourToken);
-
-							if (FileServer.fileList.checkFile(remotePath)) {
-								System.out.printf("Error: file already exists at %s\n", remotePath);
-								response = new Envelope("FAIL-FILEEXISTS"); //Success
+						else  {
+							int index = 3;
+							boolean resume = resumable && (Long)message.getObjContents().get(index++) < 0;
+							int chunkSize = ProtocolConstants.CHUNK_SIZE;
+							if (largeChunks) {
+								chunkSize = ProtocolConstants.chunkSize((Integer)message.getObjContents().get(index++));
 							}
-							else if (!yourToken.getGroups().contains(group)) {
-								System.out.printf("Error: user missing valid token for group %s\n", group);
-								response = new Envelope("FAIL-UNAUTHORIZED"); //Success
+
+							// data goes to a partial file until EOF; an unfinished upload
+							// is continued only by the user who started it, for the same group,
+							// and otherwise replaced by one under a new object id
+							ShareFile partial = FileServer.fileList.getUpload(remotePath);
+							resume = resume && partial != null && FileServer.partialFile(partial).exists()
+								&& partial.getOwner().equals(yourToken.getSubject()) && partial.getGroup().equals(group);
+							if (!resume) {
+								if (partial != null) {
+									FileServer.partialFile(partial).delete();
+								}
+								ShareFile stripedPartial = FileServer.fileList.getStripedUpload(remotePath);
+								if (stripedPartial != null) {
+									FileServer.partialFile(stripedPartial).delete();
+								}
+								try {
+									partial = FileServer.fileList.addUpload(yourToken.getSubject(), group, remotePath, FileServer.newObjectId());
+								} catch (IOException e) {
+									System.err.println("Error writing FileList journal: " + e.getMessage());
+									partial = null;
+								}
 							}
-							else  {
-								File file = new File("shared_files/"+remotePath.replace('/', '_'));
-								file.createNewFile();
-								FileOutputStream fos = new FileOutputStream(file);
-								System.out.printf("Successfully created file %s\n", remotePath.replace('/', '_'));
 
-								response = new Envelope("READY"); //Success
-								encryptAndWriteResponse(response);
-
-								message = readAndDecryptMessage();
-								while (message.getMessage().compareTo("CHUNK")==0) {
-									fos.write((byte[])message.getObjContents().get(0), 0, (Integer)message.getObjContents().get(1));
-									response = new Envelope("READY"); //Success
-									encryptAndWriteResponse(response);
-									message = readAndDecryptMessage();
+							if (partial == null) {
+								FileServer.fileList.releaseUpload(remotePath, claim);
+								response = new Envelope("ERROR-JOURNAL");
+							}
+							else {
+								File part = FileServer.partialFile(partial);
+
+								AsynchronousFileChannel channel;
+								try {
+									channel = resume
+										? AsynchronousFileChannel.open(part.toPath(), StandardOpenOption.WRITE)
+										: AsynchronousFileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+								} catch (IOException e) {
+									FileServer.fileList.releaseUpload(remotePath, claim);
+									throw e;
+								}
+								long offset = channel.size();
+								if (resume) {
+									System.out.printf("Resuming upload of file %s at byte %d\n", remotePath, offset);
+								} else {
+									System.out.printf("Successfully created file %s\n", remotePath.replace('/', '_'));
 								}
 
-								if(message.getMessage().compareTo("EOF")==0) {
-									System.out.printf("Transfer successful file %s\n", remotePath);
-									FileServer.fileList.addFile(yourToken.getSubject(), group, remotePath);
-									response = new Envelope("OK"); //Success
+								// the chunks that follow on this stream go to the new transfer
+								boolean streaming = ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_STREAMING_UPLOAD);
+								int credit = ProtocolConstants.creditFor(chunkSize, ProtocolConstants.UPLOAD_CREDIT);
+								transfers.put(streamId, new UploadTransfer(channel, offset, part, partial, claim, streaming ? credit : 0, resumable));
+								response = new Envelope("READY"); //Success
+								if (streaming) {
+									response.addObject(Integer.valueOf(credit));
 								}
-								else {
-									System.out.printf("Error reading file %s from client\n", remotePath);
-									response = new Envelope("ERROR-TRANSFER"); //Success
+								if (largeChunks) {
+									response.addObject(Integer.valueOf(chunkSize));
+								}
+								if (resumable) {
+									response.addObject(Long.valueOf(offset));
 								}
-								fos.close();
 							}
 						}
 					}
-
-					encryptAndWriteResponse(response);
 				}
-				else if (message.getMessage().compareTo("DOWNLOADF")==0)
-				{
-					if (isValidMessage(message, 3)) {
-						String remotePath = (String)message.getObjContents().get(0);
-						Token t = (Token)message.getObjContents().get(1);
-						ShareFile sf = FileServer.fileList.getFile("/"+remotePath);
-						if (sf == null) {
-							System.out.printf("Error: File %s doesn't exist\n", remotePath);
-							response = new Envelope("ERROR_FILEMISSING");
-							encryptAndWriteResponse(response);
+
+				encryptAndWriteResponse(response);
+			}
+			else if (message.getMessage().compareTo("DOWNLOADF")==0)
+			{
+				response = new Envelope("FAIL-BADCONTENTS");
+
+				// a pushed or resumable download may be limited to a byte range: offset,
+				// then length or -1; with large chunks the client then asks for a chunk size
+				boolean streaming = ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_STREAMING_DOWNLOAD);
+				boolean resumable = ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_RESUMABLE_TRANSFERS);
+				boolean largeChunks = ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_LARGE_CHUNKS);
+				int size = message.getObjContents().size();
+				boolean ranged = (streaming || resumable) && (size == 5 || size == 6);
+				boolean sized = largeChunks && size == (ranged ? 6 : 4);
+				if (isValidMessage(message, 3 + (ranged ? 2 : 0) + (sized ? 1 : 0))) {
+					String remotePath = (String)message.getObjContents().get(0);
+					Token t = (Token)message.getObjContents().get(1);
+					int chunkSize = ProtocolConstants.CHUNK_SIZE;
+					if (sized) {
+						chunkSize = ProtocolConstants.chunkSize((Integer)message.getObjContents().get(size - 2));
+					}
+					ShareFile sf = FileServer.fileList.getFile("/"+remotePath);
+					if (sf == null) {
+						System.out.printf("Error: File %s doesn't exist\n", remotePath);
+						response = new Envelope("ERROR_FILEMISSING");
+					}
+					else if (!t.getGroups().contains(sf.getGroup())){
+						System.out.printf("Error user %s doesn't have permission\n", t.getSubject());
+						response = new Envelope("ERROR_PERMISSION");
+					}
+					else {
+						File f = FileServer.storedFile(sf);
+						if (!f.exists()) {
+							System.out.printf("Error file %s missing from disk\n", f.getName());
+							response = new Envelope("ERROR_NOTONDISK");
 						}
-						else if (!t.getGroups().contains(sf.getGroup())){
-							System.out.printf("Error user %s doesn't have permission\n", t.getSubject());
-							response = new Envelope("ERROR_PERMISSION");
-							encryptAndWriteResponse(response);
+						else if (ranged && ((Long)message.getObjContents().get(2) < 0 || (Long)message.getObjContents().get(2) > f.length())) {
+							System.out.printf("Error: invalid range of file %s\n", remotePath);
+							response = new Envelope("ERROR_RANGE");
 						}
 						else {
+							long offset = 0;
+							long length = -1;
+							if (ranged) {
+								offset = (Long)message.getObjContents().get(2);
+								length = (Long)message.getObjContents().get(3);
+							}
+							long available = f.length() - offset;
+							length = length < 0 ? available : Math.min(length, available);
 
-							try
-							{
-								File f = new File("shared_files/_"+remotePath.replace('/', '_'));
-								if (!f.exists()) {
-									System.out.printf("Error file %s missing from disk\n", "_"+remotePath.replace('/', '_'));
-									response = new Envelope("ERROR_NOTONDISK");
-									encryptAndWriteResponse(response);
-								}
-								else {
-									FileInputStream fis = new FileInputStream(f);
-
-									do {
-										byte[] buf = new byte[4096];
-										if (message.getMessage().compareTo("DOWNLOADF")!=0) {
-											System.out.printf("Server error: %s\n", message.getMessage());
-											break;
-										}
-										response = new Envelope("CHUNK");
-										int n = fis.read(buf); //can throw an IOException
-										if (n > 0) {
-											System.out.printf(".");
-										} else if (n < 0) {
-											System.out.println("Read error");
-
-										}
-
-										response.addObject(buf);
-										response.addObject(new Integer(n));
-
-										encryptAndWriteResponse(response);
-
-										message = readAndDecryptMessage();
-									}
-									while (fis.available()>0);
-
-									//If server indicates success, return the member list
-									if(message.getMessage().compareTo("DOWNLOADF")==0)
-									{
-										response = new Envelope("EOF");
-										encryptAndWriteResponse(response);
-
-										message = readAndDecryptMessage();
-										if(message.getMessage().compareTo("OK")==0) {
-											System.out.printf("File data upload successful\n");
-										}
-										else {
-											System.out.printf("Upload failed: %s\n", message.getMessage());
-										}
-									}
-									else {
-										System.out.printf("Upload failed: %s\n", message.getMessage());
-									}
+							if (streaming) {
+								PushTransfer download = new PushTransfer(f, offset, length, chunkSize, sized);
+								download.push();
+								if (!download.isFinished()) {
+									transfers.put(streamId, download);
 								}
+								response = null;
 							}
-							catch(Exception e1)
-							{
-								System.err.println("Error: " + message.getMessage());
-								e1.printStackTrace(System.err);
+							else {
+								// the first chunk is sent right away, the rest on request
+								DownloadTransfer download = new DownloadTransfer(f, offset, length, chunkSize);
+								transfers.put(streamId, download);
+								response = download.nextChunk();
 							}
 						}
 					}
 				}
-				else if (message.getMessage().compareTo("DELETEF")==0)
-				{
-					if (isValidMessage(message, 3)) {
-						String remotePath = (String)message.getObjContents().get(0);
-						Token t = (Token)message.getObjContents().get(1);
-						ShareFile sf = FileServer.fileList.getFile("/"+remotePath);
-						if (sf == null) {
-							System.out.printf("Error: File %s doesn't exist\n", remotePath);
-							response = new Envelope("ERROR_DOESNTEXIST");
+
+				if (response != null) {
+					encryptAndWriteResponse(response);
+				}
+			}
+			else if (message.getMessage().compareTo("STATF")==0)
+			{
+				response = new Envelope("FAIL-BADCONTENTS");
+
+				if (isValidMessage(message, 3)) {
+					String remotePath = (String)message.getObjContents().get(0);
+					Token t = (Token)message.getObjContents().get(1);
+					ShareFile sf = FileServer.fileList.getFile("/"+remotePath);
+					if (sf == null) {
+						System.out.printf("Error: File %s doesn't exist\n", remotePath);
+						response = new Envelope("ERROR_FILEMISSING");
+					}
+					else if (!t.getGroups().contains(sf.getGroup())){
+						System.out.printf("Error user %s doesn't have permission\n", t.getSubject());
+						response = new Envelope("ERROR_PERMISSION");
+					}
+					else {
+						File f = FileServer.storedFile(sf);
+						if (!f.exists()) {
+							System.out.printf("Error file %s missing from disk\n", f.getName());
+							response = new Envelope("ERROR_NOTONDISK");
 						}
-						else if (!t.getGroups().contains(sf.getGroup())){
-							System.out.printf("Error user %s doesn't have permission\n", t.getSubject());
-							response = new Envelope("ERROR_PERMISSION");
+						else {
+							response = new Envelope("OK");
+							response.addObject(Long.valueOf(f.length()));
+						}
+					}
+				}
+
+				encryptAndWriteResponse(response);
+			}
+			else if (message.getMessage().compareTo("UPLOADS")==0)
+			{
+				response = new Envelope("FAIL-BADCONTENTS");
+
+				if (isValidMessage(message, 5)) {
+					String remotePath = (String)message.getObjContents().get(0);
+					String group = (String)message.getObjContents().get(1);
+					UserToken yourToken = (UserToken)message.getObjContents().get(2);
+					long size = (Long)message.getObjContents().get(3);
+					Object claim;
+
+					if (!ProtocolConstants.isValidName(remotePath)) {
+						response = new Envelope("FAIL-BADPATH");
+					}
+					else if (FileServer.fileList.checkFile(remotePath)) {
+						System.out.printf("Error: file already exists at %s\n", remotePath);
+						response = new Envelope("FAIL-FILEEXISTS");
+					}
+					else if (!yourToken.getGroups().contains(group)) {
+						System.out.printf("Error: user missing valid token for group %s\n", group);
+						response = new Envelope("FAIL-UNAUTHORIZED");
+					}
+					else if (size < 0) {
+						response = new Envelope("FAIL-BADCONTENTS");
+					}
+					else if ((claim = FileServer.fileList.claimUpload(yourToken.getSubject(), remotePath)) == null) {
+						System.out.printf("Error: file %s is being uploaded\n", remotePath);
+						response = new Envelope("FAIL-UPLOADACTIVE");
+					}
+					else {
+						// the ranges of a striped upload arrive out of order, so its partial
+						// file cannot be resumed by length and replaces any unfinished upload;
+						// its record is only for finishing an interrupted commit
+						ShareFile partial = FileServer.fileList.getUpload(remotePath);
+						if (partial != null) {
+							FileServer.partialFile(partial).delete();
+						}
+						partial = FileServer.fileList.getStripedUpload(remotePath);
+						if (partial != null) {
+							FileServer.partialFile(partial).delete();
+						}
+						try {
+							partial = FileServer.fileList.addStripedUpload(yourToken.getSubject(), group, remotePath, FileServer.newObjectId());
+						} catch (IOException e) {
+							System.err.println("Error writing FileList journal: " + e.getMessage());
+							partial = null;
+						}
+
+						if (partial == null) {
+							FileServer.fileList.releaseUpload(remotePath, claim);
+							response = new Envelope("ERROR-JOURNAL");
 						}
 						else {
-							try
-							{
-								File f = new File("shared_files/"+"_"+remotePath.replace('/', '_'));
+							byte[] idBytes = new byte[16];
+							crypto.getRandom().nextBytes(idBytes);
+							String id = new BigInteger(1, idBytes).toString(16);
 
-								if (!f.exists()) {
-									System.out.printf("Error file %s missing from disk\n", "_"+remotePath.replace('/', '_'));
-									response = new Envelope("ERROR_FILEMISSING");
-								}
-								else if (f.delete()) {
-									System.out.printf("File %s deleted from disk\n", "_"+remotePath.replace('/', '_'));
-									FileServer.fileList.removeFile("/"+remotePath);
-									response = new Envelope("OK");
+							StripedUpload upload;
+							try {
+								upload = new StripedUpload(id, partial, claim, FileServer.partialFile(partial), size);
+							} catch (IOException e) {
+								FileServer.fileList.removeUpload(remotePath);
+								FileServer.fileList.releaseUpload(remotePath, claim);
+								throw e;
+							}
+							server.getStripedUploads().put(id, upload);
+							stripedUploads.add(id);
+							System.out.printf("Successfully created striped upload of file %s\n", remotePath);
+
+							response = new Envelope("OK");
+							response.addObject(id);
+						}
+					}
+				}
+
+				encryptAndWriteResponse(response);
+			}
+			else if (message.getMessage().compareTo("UPLOADR")==0)
+			{
+				response = new Envelope("FAIL-BADCONTENTS");
+
+				// a range of a striped upload: its id, offset and length, then the
+				// token and, with large chunks, the chunk size asked for
+				boolean largeChunks = ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_LARGE_CHUNKS);
+				if (isValidMessage(message, largeChunks ? 6 : 5)) {
+					String id = (String)message.getObjContents().get(0);
+					long offset = (Long)message.getObjContents().get(1);
+					long length = (Long)message.getObjContents().get(2);
+					UserToken yourToken = (UserToken)message.getObjContents().get(3);
+					StripedUpload upload = server.getStripedUploads().get(id);
+
+					if (upload == null) {
+						System.out.printf("Error: no striped upload %s\n", id);
+						response = new Envelope("FAIL-BADUPLOAD");
+					}
+					else if (!upload.getOwner().equals(yourToken.getSubject())) {
+						System.out.printf("Error: user %s did not start upload of file %s\n", yourToken.getSubject(), upload.getPath());
+						response = new Envelope("FAIL-UNAUTHORIZED");
+					}
+					else if (offset < 0 || offset > upload.getSize() || length < 0 || length > upload.getSize() - offset) {
+						System.out.printf("Error: invalid range of file %s\n", upload.getPath());
+						response = new Envelope("ERROR_RANGE");
+					}
+					else {
+						int chunkSize = ProtocolConstants.CHUNK_SIZE;
+						if (largeChunks) {
+							chunkSize = ProtocolConstants.chunkSize((Integer)message.getObjContents().get(4));
+						}
+
+						boolean streaming = ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_STREAMING_UPLOAD);
+						int credit = ProtocolConstants.creditFor(chunkSize, ProtocolConstants.UPLOAD_CREDIT);
+						transfers.put(streamId, new RangeTransfer(upload, offset, length, streaming ? credit : 0));
+						response = new Envelope("READY");
+						if (streaming) {
+							response.addObject(Integer.valueOf(credit));
+						}
+						if (largeChunks) {
+							response.addObject(Integer.valueOf(chunkSize));
+						}
+					}
+				}
+
+				encryptAndWriteResponse(response);
+			}
+			else if (message.getMessage().compareTo("UPLOADC")==0)
+			{
+				response = new Envelope("FAIL-BADCONTENTS");
+
+				if (isValidMessage(message, 3)) {
+					String id = (String)message.getObjContents().get(0);
+
+					// only the connection that opened an upload commits it
+					if (!stripedUploads.remove(id)) {
+						System.out.printf("Error: no striped upload %s\n", id);
+						response = new Envelope("FAIL-BADUPLOAD");
+					}
+					else {
+						StripedUpload upload = server.getStripedUploads().remove(id);
+						String remotePath = upload.getPath();
+						boolean synced = false;
+						try {
+							if (upload.isComplete()) {
+								upload.sync();
+								synced = true;
+							}
+						} catch (IOException e) {
+							System.err.println("Error writing upload of " + remotePath + ": " + e.getMessage());
+						} finally {
+							upload.close();
+						}
+
+						if (!upload.isComplete()) {
+							System.out.printf("Error: striped upload of file %s is incomplete\n", remotePath);
+							abortStripedUpload(upload);
+							response = new Envelope("ERROR-INCOMPLETE");
+						}
+						else if (!synced) {
+							abortStripedUpload(upload);
+							response = new Envelope("ERROR-TRANSFER");
+						}
+						else if (!FileServer.fileList.holdsUpload(remotePath, upload.getClaim())) {
+							System.out.printf("Error: upload of file %s was taken over by another connection\n", remotePath);
+							response = new Envelope("ERROR-TRANSFER");
+						}
+						else {
+							try {
+								response = publishUpload(upload.getFile(), upload.getRecord());
+							} catch (IOException e) {
+								System.err.println("Error writing FileList journal: " + e.getMessage());
+								response = new Envelope("ERROR-JOURNAL");
+							} finally {
+								FileServer.fileList.releaseUpload(remotePath, upload.getClaim());
+							}
+						}
+					}
+				}
+
+				encryptAndWriteResponse(response);
+			}
+			else if (message.getMessage().compareTo("DELETEF")==0)
+			{
+				response = new Envelope("FAIL-BADCONTENTS");
+
+				if (isValidMessage(message, 3)) {
+					String remotePath = (String)message.getObjContents().get(0);
+					Token t = (Token)message.getObjContents().get(1);
+					ShareFile sf = FileServer.fileList.getFile("/"+remotePath);
+					if (sf == null) {
+						System.out.printf("Error: File %s doesn't exist\n", remotePath);
+						response = new Envelope("ERROR_DOESNTEXIST");
+					}
+					else if (!t.getGroups().contains(sf.getGroup())){
+						System.out.printf("Error user %s doesn't have permission\n", t.getSubject());
+						response = new Envelope("ERROR_PERMISSION");
+					}
+					else {
+						try
+						{
+							File f = FileServer.storedFile(sf);
+
+							if (!f.exists()) {
+								System.out.printf("Error file %s missing from disk\n", f.getName());
+								response = new Envelope("ERROR_FILEMISSING");
+							}
+							else {
+								// journal the removal before deleting the data, so a journal
+								// failure leaves the listed file intact rather than missing
+								FileServer.fileList.removeFile("/"+remotePath);
+								if (f.delete()) {
+									System.out.printf("File %s deleted from disk\n", f.getName());
 								}
 								else {
-									System.out.printf("Error deleting file %s from disk\n", "_"+remotePath.replace('/', '_'));
-									response = new Envelope("ERROR_DELETE");
+									// the file is already gone from the list; only its space is lost
+									System.err.printf("Error deleting unlisted file %s from disk\n", f.getName());
 								}
+								response = new Envelope("OK");
 							}
-							catch(Exception e1)
-							{
-								System.err.println("Error: " + e1.getMessage());
-								e1.printStackTrace(System.err);
-								response = new Envelope(e1.getMessage());
-							}
+						}
+						catch(IOException e1)
+						{
+							System.err.println("Error writing FileList journal: " + e1.getMessage());
+							response = new Envelope("ERROR-JOURNAL");
+						}
+						catch(Exception e1)
+						{
+							System.err.println("Error: " + e1.getMessage());
+							e1.printStackTrace(System.err);
+							response = new Envelope(e1.getMessage());
 						}
 					}
-
-					encryptAndWriteResponse(response);
 				}
-				else if(message.getMessage().equals("DISCONNECT"))
-				{
-					socket.close();
-					proceed = false;
-				}
-			} while(proceed);
+
+				encryptAndWriteResponse(response);
+			}
+			else if(message.getMessage().equals("DISCONNECT"))
+			{
+				socket.close();
+				proceed = false;
+			}
+			else
+			{
+				// every request gets exactly one response so pipelining clients stay in step
+				response = new Envelope("FAIL"); //Server does not understand client request
+				encryptAndWriteResponse(response);
+			}
 		}
 		catch(Exception e)
 		{
-			System.err.println("Error: " + message.getMessage());
+			System.err.println("Error: " + e.getMessage());
 			e.printStackTrace(System.err);
+			return false;
+		}
+
+		return proceed;
+	}
+
+	public void closeSession()
+	{
+		// release the files of transfers the client abandoned
+		Iterator<Transfer> transferIter = transfers.values().iterator();
+		while (transferIter.hasNext())
+		{
+			transferIter.next().abort();
+		}
+		transfers.clear();
+
+		// and of striped uploads that were never committed
+		Iterator<String> idIter = stripedUploads.iterator();
+		while (idIter.hasNext())
+		{
+			StripedUpload upload = server.getStripedUploads().remove(idIter.next());
+			try {
+				upload.close();
+			} catch (Exception e) {
+				System.err.println("Error closing abandoned upload of " + upload.getPath());
+			}
+			abortStripedUpload(upload);
+		}
+		stripedUploads.clear();
+
+		try {
+			socket.close();
+		} catch (Exception e) {
+			System.err.println("Error closing the socket: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * A Transfer is a multi-message exchange in progress on one stream. Keeping
+	 * its state here rather than in a nested read loop lets the transfers and
+	 * requests of several streams interleave on a single connection: the
+	 * connection handles whichever message arrives next, and since clients keep one request
+	 * per stream outstanding, streams are served in turn.
+	 */
+	private abstract class Transfer
+	{
+		private boolean finished = false;
+
+		public boolean isFinished()
+		{
+			return finished;
+		}
+
+		protected void finish()
+		{
+			finished = true;
+		}
+
+		/**
+		 * This method handles the next message of the transfer.
+		 * @param message the message received on this transfer's stream
+		 * @return the response to send, or null if none is expected
+		 */
+		public abstract Envelope handle(Envelope message) throws Exception;
+
+		/**
+		 * This method releases the transfer's resources when the connection ends
+		 * before the transfer finishes.
+		 */
+		public abstract void abort();
+	}
+
+	/**
+	 * Receives the CHUNK messages of an upload until EOF. With
+	 * CAP_STREAMING_UPLOAD the client does not wait for a READY after each chunk;
+	 * instead every half credit of chunks is acknowledged with an ACK holding the
+	 * number of chunks written so far, and EOF with the final OK.
+	 */
+	private abstract class ReceiveTransfer extends Transfer
+	{
+		private final int credit;
+		private int chunks = 0;
+
+		/**
+		 * @param _credit the credit granted to a streaming upload, or 0 if every
+		 *        chunk is answered with READY
+		 */
+		public ReceiveTransfer(int _credit)
+		{
+			credit = _credit;
+		}
+
+		public Envelope handle(Envelope message) throws Exception
+		{
+			if (message.getMessage().compareTo("CHUNK")==0) {
+				write((byte[])message.getObjContents().get(0), (Integer)message.getObjContents().get(1));
+				if (credit == 0) {
+					return new Envelope("READY"); //Success
+				}
+
+				chunks++;
+				if (chunks % Math.max(1, credit / 2) == 0) {
+					Envelope ack = new Envelope("ACK");
+					ack.addObject(Integer.valueOf(chunks));
+					return ack;
+				}
+
+				skipResponse();
+				return null;
+			}
+
+			finish();
+			return complete(message.getMessage().compareTo("EOF")==0);
+		}
+
+		/**
+		 * This method stores the data of one chunk, taking over its array.
+		 * @param buf the chunk, released to the shared BufferPool once written
+		 * @param n the number of bytes of data in it
+		 */
+		protected abstract void write(byte[] buf, int n) throws IOException;
+
+		/**
+		 * This method ends the transfer when the client sends EOF or gives up.
+		 * @param eof true if the client sent EOF
+		 * @return the final response
+		 */
+		protected abstract Envelope complete(boolean eof) throws Exception;
+	}
+
+	/**
+	 * Receives the chunks of an UPLOADF. The data is written to a partial file
+	 * through an UploadWriter, and the file becomes the shared file at EOF once
+	 * it is on disk. With CAP_RESUMABLE_TRANSFERS the partial file is kept when
+	 * the connection ends early, so the upload can be resumed from its length.
+	 */
+	private class UploadTransfer extends ReceiveTransfer
+	{
+		private final AsynchronousFileChannel channel;
+		private final UploadWriter writer;
+		private final File part;
+		private final ShareFile record;
+		private final String remotePath;
+		private final Object claim;
+		private final boolean resumable;
+
+		/**
+		 * @param _channel the partial file, open
+		 * @param offset the offset in the partial file of the first chunk
+		 * @param _part the partial file
+		 * @param _record the upload's record, from FileList.addUpload
+		 * @param _claim the claim on the path, from FileList.claimUpload
+		 * @param _credit the credit granted to a streaming upload, or 0 if every
+		 *        chunk is answered with READY
+		 * @param _resumable true to keep the partial file if the connection ends
+		 */
+		public UploadTransfer(AsynchronousFileChannel _channel, long offset, File _part, ShareFile _record, Object _claim, int _credit, boolean _resumable)
+		{
+			super(_credit);
+			channel = _channel;
+			writer = new UploadWriter(_channel, offset);
+			part = _part;
+			record = _record;
+			remotePath = _record.getPath();
+			claim = _claim;
+			resumable = _resumable;
 		}
+
+		protected void write(byte[] buf, int n) throws IOException
+		{
+			writer.write(buf, n);
+		}
+
+		protected Envelope complete(boolean eof) throws Exception
+		{
+			boolean written = false;
+			try {
+				if (eof) {
+					writer.finish();
+				} else {
+					writer.drain();
+				}
+				written = true;
+			} catch (IOException e) {
+				System.err.println("Error writing upload of " + remotePath + ": " + e.getMessage());
+			} finally {
+				channel.close();
+			}
+
+			if (!FileServer.fileList.holdsUpload(remotePath, claim)) {
+				System.out.printf("Error: upload of file %s was taken over by another connection\n", remotePath);
+				return new Envelope("ERROR-TRANSFER");
+			}
+
+			try {
+				if (eof && written) {
+					return publishUpload(part, record);
+				}
+				else {
+					System.out.printf("Error reading file %s from client\n", remotePath);
+					part.delete();
+					FileServer.fileList.removeUpload(remotePath);
+					return new Envelope("ERROR-TRANSFER"); //Success
+				}
+			} catch (IOException e) {
+				System.err.println("Error writing FileList journal: " + e.getMessage());
+				return new Envelope("ERROR-JOURNAL");
+			} finally {
+				FileServer.fileList.releaseUpload(remotePath, claim);
+			}
+		}
+
+		public void abort()
+		{
+			// what has arrived is written out, so a resumed upload continues after it
+			try {
+				writer.drain();
+			} catch (Exception e) {
+				System.err.println("Error writing abandoned upload of " + remotePath);
+			}
+			try {
+				channel.close();
+			} catch (Exception e) {
+				System.err.println("Error closing abandoned upload of " + remotePath);
+			}
+
+			if (!resumable && FileServer.fileList.holdsUpload(remotePath, claim)) {
+				part.delete();
+				try {
+					FileServer.fileList.removeUpload(remotePath);
+				} catch (IOException e) {
+					System.err.println("Error writing FileList journal: " + e.getMessage());
+				}
+			}
+			FileServer.fileList.releaseUpload(remotePath, claim);
+		}
+	}
+
+	/**
+	 * Receives the chunks of an UPLOADR, writing them in place in the partial
+	 * file of a striped upload through an UploadWriter of its own. The range
+	 * counts as received once EOF arrives after exactly its length and its data
+	 * is written; the file itself is left to the connection that opened the
+	 * upload.
+	 */
+	private class RangeTransfer extends ReceiveTransfer
+	{
+		private final StripedUpload upload;
+		private final UploadWriter writer;
+		private final long offset;
+		private final long end;
+		private long position;
+
+		public RangeTransfer(StripedUpload _upload, long _offset, long length, int _credit)
+		{
+			super(_credit);
+			upload = _upload;
+			writer = new UploadWriter(_upload.getChannel(), _offset);
+			offset = _offset;
+			end = _offset + length;
+			position = _offset;
+		}
+
+		protected void write(byte[] buf, int n) throws IOException
+		{
+			if (n > end - position) {
+				BufferPool.shared().release(buf);
+				throw new IOException("Chunk beyond the end of range of file " + upload.getPath());
+			}
+
+			writer.write(buf, n);
+			position += n;
+		}
+
+		protected Envelope complete(boolean eof)
+		{
+			try {
+				writer.drain();
+				if (eof && position == end) {
+					upload.addRange(offset, end - offset);
+					return new Envelope("OK");
+				}
+			} catch (IOException e) {
+				System.err.println("Error writing upload of " + upload.getPath() + ": " + e.getMessage());
+			}
+
+			System.out.printf("Error reading range of file %s from client\n", upload.getPath());
+			return new Envelope("ERROR-TRANSFER");
+		}
+
+		public void abort()
+		{
+			// the range is simply not recorded; the upload belongs to its opener
+			try {
+				writer.drain();
+			} catch (Exception e) {
+				System.err.println("Error writing abandoned range of " + upload.getPath());
+			}
+		}
+	}
+
+	/**
+	 * Sends a CHUNK for every DOWNLOADF request, then EOF, and waits for the
+	 * client's final OK.
+	 */
+	private class DownloadTransfer extends Transfer
+	{
+		private final FileChannel channel;
+		private final int chunkSize;
+		private ByteBuffer buf;
+		private long position;
+		private long remaining;
+		private boolean sentEOF = false;
+
+		public DownloadTransfer(File file, long offset, long length, int _chunkSize) throws IOException
+		{
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			chunkSize = _chunkSize;
+			buf = BufferPool.shared().acquireDirect(chunkSize);
+			position = offset;
+			remaining = length;
+		}
+
+		/**
+		 * This method reads the next chunk of the file, or EOF once the range
+		 * is exhausted.
+		 * @return the CHUNK or EOF response
+		 */
+		public Envelope nextChunk() throws Exception
+		{
+			int n = readChunk(channel, position, buf, (int) Math.min(chunkSize, remaining)); //can throw an IOException
+			if (n <= 0) {
+				sentEOF = true;
+				return new Envelope("EOF");
+			}
+			position += n;
+			remaining -= n;
+
+			System.out.printf(".");
+			return chunkMessage(buf);
+		}
+
+		public Envelope handle(Envelope message) throws Exception
+		{
+			if (!sentEOF && message.getMessage().compareTo("DOWNLOADF")==0) {
+				return nextChunk();
+			}
+
+			finish();
+			close();
+			if (sentEOF && message.getMessage().compareTo("OK")==0) {
+				System.out.printf("File data download successful\n");
+			}
+			else {
+				System.out.printf("Download failed: %s\n", message.getMessage());
+			}
+
+			// the client does not wait for a response to its final message
+			return null;
+		}
+
+		private void close() throws IOException
+		{
+			BufferPool.shared().release(buf);
+			buf = null;
+			channel.close();
+		}
+
+		public void abort()
+		{
+			try {
+				close();
+			} catch (Exception e) {
+				System.err.println("Error closing abandoned download");
+			}
+		}
+	}
+
+	/**
+	 * Pushes a file, or a byte range of it, with CAP_STREAMING_DOWNLOAD: a READY
+	 * holding the length, the credit, and the chunk size if the client asked for
+	 * one, then full CHUNKs for as long as the client has credit left, then an
+	 * OK holding the SHA-256 of the bytes sent. The client extends the credit
+	 * with MORE messages, which get no response of their own.
+	 */
+	private class PushTransfer extends Transfer
+	{
+		private final FileChannel channel;
+		private final MessageDigest digest;
+		private final int chunkSize;
+		private final boolean announceChunkSize;
+		private ByteBuffer buf;
+		private long position;
+		private long remaining;
+		private int credit;
+		private boolean sentReady = false;
+
+		public PushTransfer(File file, long offset, long length, int _chunkSize, boolean _announceChunkSize) throws Exception
+		{
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			digest = MessageDigest.getInstance("SHA-256");
+			chunkSize = _chunkSize;
+			announceChunkSize = _announceChunkSize;
+			buf = BufferPool.shared().acquireDirect(chunkSize);
+			position = offset;
+			remaining = length;
+			credit = ProtocolConstants.creditFor(chunkSize, ProtocolConstants.DOWNLOAD_CREDIT);
+		}
+
+		/**
+		 * This method sends as much of the file as the credit allows, and the
+		 * final OK once all of it is sent.
+		 */
+		public void push() throws Exception
+		{
+			if (!sentReady) {
+				Envelope ready = new Envelope("READY");
+				ready.addObject(Long.valueOf(remaining));
+				ready.addObject(Integer.valueOf(credit));
+				if (announceChunkSize) {
+					ready.addObject(Integer.valueOf(chunkSize));
+				}
+				writeUnansweredResponse(ready);
+				sentReady = true;
+			}
+
+			while (credit > 0 && remaining > 0) {
+				int want = (int) Math.min(chunkSize, remaining);
+				int n = readChunk(channel, position, buf, want);
+				if (n < want) {
+					throw new IOException("File shorter than expected");
+				}
+				digest.update(buf);
+				buf.rewind();
+
+				writeUnansweredResponse(chunkMessage(buf));
+				credit--;
+				position += n;
+				remaining -= n;
+			}
+
+			if (remaining == 0) {
+				finish();
+				close();
+				System.out.printf("File data download successful\n");
+
+				Envelope ok = new Envelope("OK");
+				ok.addObject(digest.digest());
+				writeUnansweredResponse(ok);
+			}
+		}
+
+		public Envelope handle(Envelope message) throws Exception
+		{
+			if (message.getMessage().compareTo("MORE")==0) {
+				credit += (Integer)message.getObjContents().get(0);
+				push();
+				return null;
+			}
+
+			finish();
+			close();
+			System.out.printf("Download failed: %s\n", message.getMessage());
+			return null;
+		}
+
+		private void close() throws IOException
+		{
+			BufferPool.shared().release(buf);
+			buf = null;
+			channel.close();
+		}
+
+		public void abort()
+		{
+			try {
+				close();
+			} catch (Exception e) {
+				System.err.println("Error closing abandoned download");
+			}
+		}
+	}
+
+	/**
+	 * This method builds the CHUNK message for the data in a chunk buffer. On a
+	 * framed connection the message holds the buffer itself, and the data is
+	 * encrypted straight from it as the message is written; otherwise the data
+	 * is copied into an array that can be serialized.
+	 * @param buf the chunk buffer, holding the data from its position to its limit
+	 * @return the CHUNK message, to be written before the buffer is reused
+	 */
+	private Envelope chunkMessage(ByteBuffer buf)
+	{
+		int n = buf.remaining();
+		Envelope chunk = new Envelope("CHUNK");
+		if (ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_FRAMING)) {
+			chunk.addObject(buf);
+		}
+		else {
+			byte[] bytes = new byte[n];
+			buf.duplicate().get(bytes);
+			chunk.addObject(bytes);
+		}
+		chunk.addObject(Integer.valueOf(n));
+		return chunk;
+	}
+
+	/**
+	 * This method makes a finished upload visible. The partial file is moved to
+	 * the stored file's name in one atomic rename, then the FileList records the
+	 * file and drops the upload's record in one step. If the server stops in
+	 * between, FileServer.recoverUploads finishes the commit from the record.
+	 * If the path was taken by another file meanwhile, the new object is
+	 * deleted instead; either way the upload's record is dropped.
+	 * @param part the partial file, already on disk as the durability policy requires
+	 * @param record the upload's record, naming the file, its owner and group
+	 *        and the object id it is stored under
+	 * @return the response: OK if the file was published, FAIL-FILEEXISTS if
+	 *         the path holds another file, ERROR-TRANSFER if it could not be stored
+	 * @throws IOException if the FileList journal could not be written, so the
+	 *         file is only published once recoverUploads finishes the commit
+	 */
+	private static Envelope publishUpload(File part, ShareFile record) throws IOException
+	{
+		File stored = FileServer.storedFile(record);
+		try {
+			FileServer.createObjectDirectory(stored);
+			Files.move(part.toPath(), stored.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Error publishing file " + record.getPath() + ": " + e.getMessage());
+			part.delete();
+			FileServer.fileList.removeUpload(record.getPath());
+			return new Envelope("ERROR-TRANSFER");
+		}
+
+		UploadWriter.syncDirectory(stored.getParentFile());
+		if (!FileServer.fileList.commitUpload(record.getOwner(), record.getGroup(), record.getPath(), record.getObjectId())) {
+			System.out.printf("Error: file %s was created while it was uploaded\n", record.getPath());
+			stored.delete();
+			FileServer.fileList.removeUpload(record.getPath());
+			return new Envelope("FAIL-FILEEXISTS");
+		}
+		System.out.printf("Transfer successful file %s\n", record.getPath());
+		return new Envelope("OK");
+	}
+
+	/**
+	 * This method gives up a striped upload: it deletes the partial file and
+	 * the upload's record, unless the path has been taken over since, and
+	 * releases the claim on the path. The upload must already be closed.
+	 * @param upload the upload to give up
+	 */
+	private static void abortStripedUpload(StripedUpload upload)
+	{
+		if (FileServer.fileList.holdsUpload(upload.getPath(), upload.getClaim())) {
+			upload.getFile().delete();
+			try {
+				FileServer.fileList.removeUpload(upload.getPath());
+			} catch (IOException e) {
+				System.err.println("Error writing FileList journal: " + e.getMessage());
+			}
+		}
+		FileServer.fileList.releaseUpload(upload.getPath(), upload.getClaim());
+	}
+
+	/**
+	 * This method reads part of a file into a chunk buffer with positional
+	 * reads, which leave no file position to keep track of, until the buffer
+	 * holds the bytes wanted or the file ends, so that every chunk but the last
+	 * is full.
+	 * @param channel the file being sent
+	 * @param position the offset in the file of the first byte to read
+	 * @param buf the chunk buffer, which is cleared first
+	 * @param max the number of bytes wanted
+	 * @return the number of bytes read, with buf flipped to hold them, or -1 if
+	 *         nothing was wanted or the file had already ended
+	 */
+	private static int readChunk(FileChannel channel, long position, ByteBuffer buf, int max) throws IOException
+	{
+		buf.clear();
+		buf.limit(Math.max(max, 0));
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) < 0) {
+				break;
+			}
+		}
+
+		buf.flip();
+		return buf.hasRemaining() ? buf.remaining() : -1;
 	}
 
 	public boolean verifyTokenSignature(UserToken token) throws Exception {
@@ -0,0 +1,178 @@
+/* A Frame is a single length-prefixed message of the binary wire protocol. Once
+* the client and server have negotiated framing, every Envelope is encoded with
+* EnvelopeCodec, encrypted, and sent as one Frame instead of a serialized
+* SealedObject wrapped in a signed Envelope.
+*
+* Layout: opcode (1) | IV length (1) | MAC length (1) | ciphertext length (4) |
+*         IV | ciphertext | MAC
+*
+* Ciphertexts of transfer size are held in arrays from the shared BufferPool,
+* which may be longer than the ciphertext; release() hands them back once the
+* frame has been written or opened.
+*/
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import javax.crypto.Mac;
+
+public class Frame {
+
+	// opcode for an Envelope encrypted with AES-CBC and authenticated with HMAC
+	public static final byte OP_MESSAGE = 0x01;
+
+	// opcode for an Envelope sealed with AES-GCM; the tag is part of the
+	// ciphertext and the MAC field is empty
+	public static final byte OP_MESSAGE_GCM = 0x02;
+
+	// upper bound on the ciphertext length to guard against corrupt length fields
+	public static final int MAX_CIPHERTEXT_LENGTH = 16 * 1024 * 1024;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private byte opcode;
+	private byte[] iv;
+	private byte[] ciphertext;
+	private int ciphertextLength;
+	private byte[] mac;
+
+	public Frame(byte _opcode, byte[] _iv, byte[] _ciphertext)
+	{
+		this(_opcode, _iv, _ciphertext, _ciphertext.length);
+	}
+
+	public Frame(byte _opcode, byte[] _iv, byte[] _ciphertext, int _ciphertextLength)
+	{
+		opcode = _opcode;
+		iv = _iv;
+		ciphertext = _ciphertext;
+		ciphertextLength = _ciphertextLength;
+		mac = EMPTY;
+	}
+
+	public byte getOpcode()
+	{
+		return opcode;
+	}
+
+	public byte[] getIV()
+	{
+		return iv;
+	}
+
+	/**
+	 * This method returns the array holding the ciphertext, which may be longer
+	 * than the ciphertext itself.
+	 * @return the ciphertext array
+	 */
+	public byte[] getCiphertext()
+	{
+		return ciphertext;
+	}
+
+	public int getCiphertextLength()
+	{
+		return ciphertextLength;
+	}
+
+	public byte[] getMac()
+	{
+		return mac;
+	}
+
+	public void setMac(byte[] _mac)
+	{
+		mac = _mac;
+	}
+
+	/**
+	 * This method computes a MAC over everything in the frame except the MAC
+	 * itself, i.e. the header, the IV, and the ciphertext.
+	 * @param hmac an initialized Mac instance
+	 * @return the MAC of this frame
+	 */
+	public byte[] computeMac(Mac hmac)
+	{
+		hmac.update(header(opcode, iv.length, hmac.getMacLength(), ciphertextLength));
+		hmac.update(iv);
+		hmac.update(ciphertext, 0, ciphertextLength);
+
+		return hmac.doFinal();
+	}
+
+	/**
+	 * This method encodes the fixed-size header that precedes the IV on the
+	 * wire. It is authenticated as part of the MAC, or as additional
+	 * authenticated data for AES-GCM frames.
+	 * @param opcode the opcode of the frame
+	 * @param ivLength the length of the IV
+	 * @param macLength the length of the MAC that follows the ciphertext
+	 * @param ciphertextLength the length of the ciphertext
+	 * @return the encoded header
+	 */
+	public static byte[] header(byte opcode, int ivLength, int macLength, int ciphertextLength)
+	{
+		return new byte[] {
+			opcode,
+			(byte) ivLength,
+			(byte) macLength,
+			(byte) (ciphertextLength >>> 24),
+			(byte) (ciphertextLength >>> 16),
+			(byte) (ciphertextLength >>> 8),
+			(byte) ciphertextLength
+		};
+	}
+
+	/**
+	 * This method writes the frame to a stream. The caller is responsible for
+	 * flushing the stream.
+	 * @param out the stream to write to
+	 */
+	public void write(DataOutput out) throws IOException
+	{
+		out.writeByte(opcode);
+		out.writeByte(iv.length);
+		out.writeByte(mac.length);
+		out.writeInt(ciphertextLength);
+		out.write(iv);
+		out.write(ciphertext, 0, ciphertextLength);
+		out.write(mac);
+	}
+
+	/**
+	 * This method gives the ciphertext array back to the shared BufferPool. The
+	 * frame must not be used afterwards.
+	 */
+	public void release()
+	{
+		BufferPool.shared().release(ciphertext);
+		ciphertext = null;
+	}
+
+	/**
+	 * This method reads a single frame from a stream.
+	 * @param in the stream to read from
+	 * @return the frame that was read
+	 */
+	public static Frame read(DataInput in) throws IOException
+	{
+		byte opcode = in.readByte();
+		int ivLength = in.readUnsignedByte();
+		int macLength = in.readUnsignedByte();
+		int length = in.readInt();
+		if (length < 0 || length > MAX_CIPHERTEXT_LENGTH) {
+			throw new IOException("Invalid frame length: " + length);
+		}
+
+		byte[] iv = new byte[ivLength];
+		in.readFully(iv);
+		byte[] ciphertext = BufferPool.shared().acquire(length);
+		in.readFully(ciphertext, 0, length);
+		byte[] mac = new byte[macLength];
+		in.readFully(mac);
+
+		Frame frame = new Frame(opcode, iv, ciphertext, length);
+		frame.setMac(mac);
+		return frame;
+	}
+}
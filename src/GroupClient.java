@@ -330,6 +330,45 @@ public class GroupClient extends Client implements GroupClientInterface {
     }
   }
   
+  /**
+   * This method fetches several keys of one group, pipelining the GETKEY
+   * requests when the server supports it.
+   * @param groupname the group whose keys to fetch
+   * @param indices the key indices to fetch, "-1" meaning the most recent key
+   * @param token the token of the requester
+   * @return the keys in the order of indices, with null for any that failed,
+   *         or null if the exchange itself failed
+   */
+  public List<Key> getKeys(String groupname, List<String> indices, UserToken token)
+  {
+    List<Envelope> requests = new ArrayList<Envelope>();
+    for (int i = 0; i < indices.size(); i++) {
+      Envelope message = new Envelope("GETKEY");
+      message.addObject(groupname);
+      message.addObject(indices.get(i));
+      message.addObject(token);
+      requests.add(message);
+    }
+
+    List<Envelope> responses = pipeline(requests);
+    if (responses == null) {
+      return null;
+    }
+
+    List<Key> keys = new ArrayList<Key>();
+    for (int i = 0; i < responses.size(); i++) {
+      Envelope response = responses.get(i);
+      setResponseMessage(response.getMessage());
+      if (isValidMessage(response, 2) && response.getMessage().equals(ResponseConstants.SUCCESS_GKEY)) {
+        keys.add((Key) response.getObjContents().get(0));
+      } else {
+        keys.add(null);
+      }
+    }
+
+    return keys;
+  }
+
   public byte[] getTokenSignature(UserToken token) {
     try {
       // System.err.println("token: " + token.getGroups());
@@ -1,18 +1,62 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.*;
 
-public class GroupList implements java.io.Serializable
+public class GroupList implements java.io.Serializable, SnapshotFile.Writable
 {
 	private static final long serialVersionUID = -3640596306597345734L;
 	private ArrayList<String> groupList = new ArrayList<String>();
 
+	// marks this list's records in the group server's journal
+	public static final byte JOURNAL_TAG = 2;
+
+	// kinds of journal records
+	private static final byte ADD_GROUP = 1;
+	private static final byte REMOVE_GROUP = 2;
+
+	// the journal changes are appended to, or null if they are not journaled
+	private transient Journal journal;
+
+	// the journal generation this list is a snapshot at; 0 in lists saved
+	// before there was a journal
+	private long journalGeneration;
+
+	// while a snapshot is taken, the list it holds, which is copied before it
+	// is first changed
+	private transient ArrayList<String> snapshotGroups;
+
+	// reads lists written by writeSnapshot, for SnapshotFile.load
+	public static final SnapshotFile.Decoder DECODER = new SnapshotFile.Decoder() {
+		public Object readSnapshot(SnapshotFile.Reader reader) throws IOException
+		{
+			DataInputStream in = reader.nextSectionStream();
+			GroupList list = new GroupList();
+			list.journalGeneration = in.readLong();
+			int count = SnapshotFile.readVarInt(in);
+			for (int i = 0; i < count; i++) {
+				list.groupList.add(SnapshotFile.readText(in, reader.getVersion()));
+			}
+			return list;
+		}
+	};
+
 	public synchronized void addGroup(String groupname)
 	{
+		copyOnWrite();
 		groupList.add(groupname);
+		if (journal != null) {
+			journal.append(Journal.record(JOURNAL_TAG, ADD_GROUP, groupname));
+		}
 	}
 
 	public synchronized void removeGroup(String groupname)
 	{
+		copyOnWrite();
 		groupList.remove(groupname);
+		if (journal != null) {
+			journal.append(Journal.record(JOURNAL_TAG, REMOVE_GROUP, groupname));
+		}
 	}
 
 	public synchronized ArrayList<String> getGroupList()
@@ -29,4 +73,90 @@ public class GroupList implements java.io.Serializable
 		else
 		return false;
 	}
+
+	/**
+	 * This method journals every further change to the list.
+	 * @param _journal the journal
+	 */
+	public synchronized void attachJournal(Journal _journal)
+	{
+		journal = _journal;
+	}
+
+	public synchronized long getJournalGeneration()
+	{
+		return journalGeneration;
+	}
+
+	/**
+	 * This method takes a snapshot of the list, so that serializing the list
+	 * writes it as it is now while changes go on, until endSnapshot.
+	 * @param generation the journal generation the snapshot is taken at
+	 */
+	public synchronized void snapshot(long generation)
+	{
+		journalGeneration = generation;
+		snapshotGroups = groupList;
+	}
+
+	public synchronized void endSnapshot()
+	{
+		snapshotGroups = null;
+	}
+
+	private void copyOnWrite()
+	{
+		if (snapshotGroups != null && groupList == snapshotGroups) {
+			groupList = new ArrayList<String>(groupList);
+		}
+	}
+
+	/**
+	 * This method writes the list in the compact form, in one section: the
+	 * journal generation and the group names. While a snapshot is taken, the
+	 * list is written as it was when it was taken.
+	 * @param writer the snapshot file
+	 */
+	public void writeSnapshot(SnapshotFile.Writer writer) throws IOException
+	{
+		if (snapshotGroups != null) {
+			writeGroups(writer, snapshotGroups);
+			return;
+		}
+
+		synchronized (this) {
+			writeGroups(writer, groupList);
+		}
+	}
+
+	private void writeGroups(SnapshotFile.Writer writer, ArrayList<String> groups) throws IOException
+	{
+		DataOutputStream out = writer.section();
+		out.writeLong(journalGeneration);
+		SnapshotFile.writeVarInt(out, groups.size());
+		for (int i = 0; i < groups.size(); i++) {
+			SnapshotFile.writeText(out, groups.get(i));
+		}
+		writer.endSection();
+	}
+
+	/**
+	 * This method replays a change from the journal, after the JOURNAL_TAG.
+	 * @param record the record
+	 */
+	public synchronized void apply(DataInputStream record) throws IOException
+	{
+		byte kind = record.readByte();
+		if (kind == ADD_GROUP) {
+			copyOnWrite();
+			groupList.add(Journal.readString(record));
+		}
+		else if (kind == REMOVE_GROUP) {
+			copyOnWrite();
+			groupList.remove(Journal.readString(record));
+		}
+		else {
+			throw new IOException("Unknown GroupList journal record " + kind);
+		}
+	}
 }
@@ -1,6 +1,12 @@
 /* Group server. Server loads the users from UserList.bin.
 * If user list does not exists, it creates a new list and makes the user the server administrator.
-* On exit, the server saves the user list to file.
+*
+* Every change to the user, group and key lists is appended to one journal,
+* GroupServer.journal, and the journal is committed before the request that
+* made the change is answered; the commits of concurrent connections are
+* grouped into one write. The lists' .bin files are snapshots that the journal
+* brings up to date on startup. The journal is compacted into new snapshots
+* in the background after startup, every five minutes while it grows, and on exit.
 */
 
 import java.net.ServerSocket;
@@ -24,6 +30,18 @@ public class GroupServer extends Server {
 	public static final String PUBLIC_KEY_FILE = "gs_public.key";
 	private static final String PRIVATE_KEY_FILE = "gs_private.key";
 
+	public static final String USER_LIST_FILE = "UserList.bin";
+	public static final String GROUP_LIST_FILE = "GroupList.bin";
+	public static final String KEY_LIST_FILE = "KeyList.bin";
+	public static final String JOURNAL_FILE = "GroupServer.journal";
+
+	private Journal journal;
+
+	// changes replayed from the journal at startup
+	private long replayed = 0;
+
+	private final Object saveLock = new Object();
+
 	public GroupServer() {
 		super(SERVER_PORT, "ALPHA");
 
@@ -36,16 +54,115 @@ public class GroupServer extends Server {
 		generateKeys(PUBLIC_KEY_FILE, PRIVATE_KEY_FILE);
 	}
 
+	ServerThread createConnection(Socket sock) {
+		return new GroupThread(sock, this);
+	}
+
+	/**
+	 * This method waits until the changes made so far are on disk. Connections
+	 * call it before answering a request.
+	 */
+	public void commitChanges() throws IOException {
+		if (journal != null) {
+			journal.commitAll();
+		}
+	}
+
+	public long getReplayedChanges() {
+		return replayed;
+	}
+
+	/**
+	 * This method returns how many changes were journaled since the last
+	 * snapshot.
+	 * @return the number of changes
+	 */
+	public long getJournaledChanges() {
+		return journal == null ? 0 : journal.getRecordCount();
+	}
+
+	/**
+	 * This method brings the loaded lists up to date from the journal, then
+	 * journals every further change. Each list skips the records from before
+	 * its own snapshot, in case the server stopped between saving one list
+	 * and the next.
+	 */
+	private void replayJournal() throws IOException {
+		final long userGeneration = userList.getJournalGeneration();
+		final long groupGeneration = groupList.getJournalGeneration();
+		final long keyGeneration = keyList.getJournalGeneration();
+		long from = Math.min(userGeneration, Math.min(groupGeneration, keyGeneration));
+
+		long last = Journal.replay(JOURNAL_FILE, from, new Journal.Replayer() {
+			public void replay(long generation, DataInputStream record) throws IOException
+			{
+				byte tag = record.readByte();
+				if (tag == UserList.JOURNAL_TAG && generation >= userGeneration) {
+					userList.apply(record);
+				}
+				else if (tag == GroupList.JOURNAL_TAG && generation >= groupGeneration) {
+					groupList.apply(record);
+				}
+				else if (tag == KeyList.JOURNAL_TAG && generation >= keyGeneration) {
+					keyList.apply(record);
+				}
+				else {
+					return;
+				}
+				replayed++;
+			}
+		});
+
+		journal = new Journal(JOURNAL_FILE, Math.max(last, Math.max(userGeneration, Math.max(groupGeneration, keyGeneration))));
+		userList.attachJournal(journal);
+		groupList.attachJournal(journal);
+		keyList.attachJournal(journal);
+	}
+
+	/**
+	 * This method compacts the journal into new snapshots of the lists. A new
+	 * journal generation is started and the snapshots taken while all three
+	 * lists are locked, so they hold exactly the changes journaled before that
+	 * generation; taking them only marks the lists, see UserList.snapshot, and
+	 * they are written while connections go on changing the lists. Each is
+	 * forced to disk and renamed over its file, and only then are the older
+	 * generations deleted.
+	 */
+	public void saveLists() throws IOException {
+		synchronized (saveLock) {
+			long generation;
+			synchronized (userList) {
+				synchronized (groupList) {
+					synchronized (keyList) {
+						generation = journal.roll();
+						userList.snapshot(generation);
+						groupList.snapshot(generation);
+						keyList.snapshot(generation);
+					}
+				}
+			}
+
+			try {
+				SnapshotFile.save(USER_LIST_FILE, userList);
+				SnapshotFile.save(GROUP_LIST_FILE, groupList);
+				SnapshotFile.save(KEY_LIST_FILE, keyList);
+			} finally {
+				userList.endSnapshot();
+				groupList.endSnapshot();
+				keyList.endSnapshot();
+			}
+			Journal.syncDirectory(new File(USER_LIST_FILE));
+			Journal.deleteBefore(JOURNAL_FILE, generation);
+		}
+	}
+
 	public void start() {
 		// Overwrote server.start() because if no user file exists, initial admin account needs to be created
 
-		String userFile = "UserList.bin";
-		String groupFile = "GroupList.bin";
-		String keyFile = "KeyList.bin";
+		String userFile = USER_LIST_FILE;
+		String groupFile = GROUP_LIST_FILE;
+		String keyFile = KEY_LIST_FILE;
 		Scanner console = new Scanner(System.in);
-		ObjectInputStream userStream;
-		ObjectInputStream groupStream;
-		ObjectInputStream keyStream;
 
 		//This runs a thread that saves the lists on program exit
 		Runtime runtime = Runtime.getRuntime();
@@ -58,22 +175,44 @@ public class GroupServer extends Server {
 		try
 		{
 			//try to read UserList file an write it to UserList object
-			FileInputStream fis = new FileInputStream(userFile);
-			userStream = new ObjectInputStream(fis);
-			userList = (UserList)userStream.readObject();
+			userList = (UserList) SnapshotFile.load(userFile, UserList.DECODER);
 
 			//try to read GroupList file and write it to GroupList object
-			FileInputStream fis2 = new FileInputStream(groupFile);
-			groupStream = new ObjectInputStream(fis2);
-			groupList = (GroupList)groupStream.readObject();
+			groupList = (GroupList) SnapshotFile.load(groupFile, GroupList.DECODER);
 			
 			//try to read KeyList file and write it to KeyList object
-			FileInputStream fis3 = new FileInputStream(keyFile);
-			keyStream = new ObjectInputStream(fis3);
-			keyList = (KeyList) keyStream.readObject();
+			keyList = (KeyList) SnapshotFile.load(keyFile, KeyList.DECODER);
 		}
 		// if the userList file doesn't exist, then groupList doesn't either
 		catch(FileNotFoundException e)
+		{
+			userList = new UserList();
+			groupList = new GroupList();
+			keyList = new KeyList();
+		}
+		catch(IOException e)
+		{
+			System.out.println("Error reading from UserList file");
+			System.exit(-1);
+		}
+		catch(ClassNotFoundException e)
+		{
+			System.out.println("Error reading from UserList file");
+			System.exit(-1);
+		}
+
+		try
+		{
+			replayJournal();
+		}
+		catch(IOException e)
+		{
+			System.out.println("Error replaying group server journal: " + e.getMessage());
+			System.exit(-1);
+		}
+
+		// a server that stopped before its first snapshot has its users in the journal
+		if (userList.getUsers().isEmpty())
 		{
 			System.out.println("UserList File Does Not Exist. Creating UserList...");
 			System.out.println("No users currently exist. Your account will be the administrator.");
@@ -83,31 +222,28 @@ public class GroupServer extends Server {
 			String password = console.nextLine();
 
 			//Create a new list, add current user to the ADMIN group. They now own the ADMIN group.
-			userList = new UserList();
 			userList.addUser(username, password);
 			userList.addGroup(username, "ADMIN");
 			userList.addOwnership(username, "ADMIN");
-			groupList = new GroupList();
 			groupList.addGroup("ADMIN"); //add the first group the the grouplist
-			keyList = new KeyList();
 			try	{
 				keyList.addGroupKey("ADMIN"); //add the first group to the keyList
 			} catch (NoSuchAlgorithmException ex) {
 
 			}
-		}
-		catch(IOException e)
-		{
-			System.out.println("Error reading from UserList file");
-			System.exit(-1);
-		}
-		catch(ClassNotFoundException e)
-		{
-			System.out.println("Error reading from UserList file");
-			System.exit(-1);
+
+			try
+			{
+				commitChanges();
+			}
+			catch(IOException e)
+			{
+				System.out.println("Error writing group server journal: " + e.getMessage());
+				System.exit(-1);
+			}
 		}
 
-		//Autosave Daemon. Saves lists every 5 minutes
+		//Autosave Daemon. Compacts the journal after startup and every 5 minutes
 		AutoSave aSave = new AutoSave(this);
 		aSave.setDaemon(true);
 		aSave.start();
@@ -116,18 +252,7 @@ public class GroupServer extends Server {
 		try
 		{
 			System.out.println("ServerStarted...");
-
-			final ServerSocket serverSock = new ServerSocket(port);
-
-			Socket sock = null;
-			GroupThread thread = null;
-
-			while(true)
-			{
-				sock = serverSock.accept();
-				thread = new GroupThread(sock, this);
-				thread.start();
-			}
+			serve();
 		}
 		catch(Exception e)
 		{
@@ -149,15 +274,11 @@ class ShutDownListener extends Thread
 	public void run()
 	{
 		System.out.println("Shutting down server");
-		ObjectOutputStream outStream;
 		try
 		{
-			outStream = new ObjectOutputStream(new FileOutputStream("UserList.bin"));
-			outStream.writeObject(my_gs.userList);
-			outStream = new ObjectOutputStream(new FileOutputStream("GroupList.bin")); //write the grouplist to GroupList.bin
-			outStream.writeObject(my_gs.groupList);
-			outStream = new ObjectOutputStream(new FileOutputStream("KeyList.bin"));
-			outStream.writeObject(my_gs.keyList);
+			if (my_gs.getJournaledChanges() > 0) {
+				my_gs.saveLists();
+			}
 		}
 		catch(Exception e)
 		{
@@ -177,51 +298,19 @@ class AutoSave extends Thread
 
 	public void run()
 	{
+		// what was replayed at startup is compacted right away, off the
+		// connections' path
+		if (my_gs.getReplayedChanges() > 0) {
+			compact();
+		}
+
 		do
 		{
 			try
 			{
-				Thread.sleep(300000); //Save group and user lists every 5 minutes
-				System.out.println("Autosave group and user lists...");
-				ObjectOutputStream outStream;
-				try
-				{
-					//save user list
-					outStream = new ObjectOutputStream(new FileOutputStream("UserList.bin"));
-					outStream.writeObject(my_gs.userList);
-
-				}
-				catch(Exception e)
-				{
-					System.err.println("Error: " + e.getMessage());
-					e.printStackTrace(System.err);
-				}
-
-				try
-				{
-
-					//save group list
-					outStream = new ObjectOutputStream(new FileOutputStream("GroupList.bin")); //write the grouplist to GroupList.bin
-					outStream.writeObject(my_gs.groupList);
-
-				}
-				catch(Exception e1)
-				{
-					System.err.println("Error: " + e1.getMessage());
-					e1.printStackTrace(System.err);
-				}
-				try
-				{
-
-					//save key list
-					outStream = new ObjectOutputStream(new FileOutputStream("KeyList.bin")); //write the grouplist to GroupList.bin
-					outStream.writeObject(my_gs.keyList);
-
-				}
-				catch(Exception e1)
-				{
-					System.err.println("Error: " + e1.getMessage());
-					e1.printStackTrace(System.err);
+				Thread.sleep(300000); //Compact group and user lists every 5 minutes
+				if (my_gs.getJournaledChanges() > 0) {
+					compact();
 				}
 			}
 			catch(Exception e)
@@ -230,4 +319,18 @@ class AutoSave extends Thread
 			}
 		}while(true);
 	}
+
+	private void compact()
+	{
+		System.out.println("Autosave group and user lists...");
+		try
+		{
+			my_gs.saveLists();
+		}
+		catch(Exception e)
+		{
+			System.err.println("Error: " + e.getMessage());
+			e.printStackTrace(System.err);
+		}
+	}
 }
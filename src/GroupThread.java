@@ -28,239 +28,260 @@ public class GroupThread extends ServerThread
 		server = _gs;
 		responseType = "";
 		privateKey = server.getPrivateKey();
+		ticketKeys = server.getTicketKeys();
+		handshakeSigner = server.getHandshakeSigner();
+	}
 
-		try {
-			input = new ObjectInputStream(socket.getInputStream());
-			output = new ObjectOutputStream(socket.getOutputStream());
-		} catch (Exception e) {
-			System.err.println("Error creating socket input and output streams.");
-			System.exit(1);
+	public boolean openSession()
+	{
+		if (input == null) {
+			try {
+				input = new ObjectInputStream(socket.getInputStream());
+				output = new ObjectOutputStream(socket.getOutputStream());
+			} catch (Exception e) {
+				System.err.println("Error creating socket input and output streams.");
+				return false;
+			}
+
+			//Announces connection and opens object streams
+			System.out.println("*** New connection from " + socket.getInetAddress() + ":" + socket.getPort() + "***");
+			return true;
 		}
+
+		// establish session key with client
+		if (!establishSessionKey()) {
+			System.err.println("Error occurred while attempting to establish session key.");
+			return false;
+		}
+
+		return true;
 	}
 
-	public void run()
+	public boolean handleMessage()
 	{
 		boolean proceed = true;
 		Envelope message = null, response = null;
 
 		try
 		{
-			//Announces connection and opens object streams
-			System.out.println("*** New connection from " + socket.getInetAddress() + ":" + socket.getPort() + "***");
+			// read Envelope from client, decrypt with shared AES key
+			message = readAndDecryptMessage();
+			System.out.println("Request received: " + message.getMessage());
 
-			// establish session key with client
-			if (!establishSessionKey()) {
-				System.err.println("Error occurred while attempting to establish session key.");
-				return;
+			if (message.getMessage().equals("GET"))//Client wants a token
+			{
+				if (isValidMessage(message, 5)) {
+					String username = (String) message.getObjContents().get(0); // Get the username
+					String password = (String) message.getObjContents().get(1); // get password
+					String fs_ip = (String) message.getObjContents().get(2);
+					int fs_port = (int) message.getObjContents().get(3);
+					UserToken yourToken = createToken(username, password, fs_ip, fs_port); //Create a token
+					if (yourToken != null) {
+						response = new Envelope(ResponseConstants.SUCCESS_GET);
+						response.addObject(yourToken);
+					} else {
+						response = new Envelope(ResponseConstants.FAIL_USER_NO_EXIST);
+					}
+				}
+				else
+				{
+					response = new Envelope(ResponseConstants.FAIL_GET);
+					response.addObject(null);
+				}
 			}
-
-			do
+			else if (message.getMessage().equals("CUSER")) //Client wants to create a user
 			{
-				// read Envelope from client, decrypt with shared AES key
-				message = readAndDecryptMessage();
-				System.out.println("Request received: " + message.getMessage());
+				response = new Envelope(ResponseConstants.FAIL_CUSER);
 
-				if (message.getMessage().equals("GET"))//Client wants a token
-				{
-					if (isValidMessage(message, 5)) {
-						String username = (String) message.getObjContents().get(0); // Get the username
-						String password = (String) message.getObjContents().get(1); // get password
-						String fs_ip = (String) message.getObjContents().get(2);
-						int fs_port = (int) message.getObjContents().get(3);
-						UserToken yourToken = createToken(username, password, fs_ip, fs_port); //Create a token
-						if (yourToken != null) {
-							response = new Envelope(ResponseConstants.SUCCESS_GET);
-							response.addObject(yourToken);
-						} else {
-							response = new Envelope(ResponseConstants.FAIL_USER_NO_EXIST);
-						}
+				if (isValidMessage(message, 4)) {
+					String username = (String) message.getObjContents().get(0); // Extract the username
+					String password = (String) message.getObjContents().get(1);
+					UserToken yourToken = (UserToken) message.getObjContents().get(2); // Extract the token
+
+					if (createUser(username, password, yourToken))
+					{
+						response = new Envelope(ResponseConstants.SUCCESS_CUSER); //Success
 					}
 					else
 					{
-						response = new Envelope(ResponseConstants.FAIL_GET);
-						response.addObject(null);
+						// responseType set by createUser
+						response = new Envelope(responseType);
 					}
 				}
-				else if (message.getMessage().equals("CUSER")) //Client wants to create a user
-				{
-					response = new Envelope(ResponseConstants.FAIL_CUSER);
+			}
+			else if(message.getMessage().equals("DUSER")) //Client wants to delete a user
+			{
+				response = new Envelope(ResponseConstants.FAIL_DUSER);
 
-					if (isValidMessage(message, 4)) {
-						String username = (String) message.getObjContents().get(0); // Extract the username
-						String password = (String) message.getObjContents().get(1);
-						UserToken yourToken = (UserToken) message.getObjContents().get(2); // Extract the token
+				if (isValidMessage(message, 3)) {
+					String username = (String)message.getObjContents().get(0); //Extract the username
+					UserToken yourToken = (UserToken)message.getObjContents().get(1); //Extract the token
 
-						if (createUser(username, password, yourToken))
-						{
-							response = new Envelope(ResponseConstants.SUCCESS_CUSER); //Success
-						}
-						else
-						{
-							// responseType set by createUser
-							response = new Envelope(responseType);
-						}
+					if (deleteUser(username, yourToken))
+					{
+						response = new Envelope(ResponseConstants.SUCCESS_DUSER); //Success
 					}
-				}
-				else if(message.getMessage().equals("DUSER")) //Client wants to delete a user
-				{
-					response = new Envelope(ResponseConstants.FAIL_DUSER);
-
-					if (isValidMessage(message, 3)) {
-						String username = (String)message.getObjContents().get(0); //Extract the username
-						UserToken yourToken = (UserToken)message.getObjContents().get(1); //Extract the token
-
-						if (deleteUser(username, yourToken))
-						{
-							response = new Envelope(ResponseConstants.SUCCESS_DUSER); //Success
-						}
-						else
-						{
-							// responseType set by deleteUser
-							response = new Envelope(responseType);
-						}
+					else
+					{
+						// responseType set by deleteUser
+						response = new Envelope(responseType);
 					}
 				}
-				else if (message.getMessage().equals("CGROUP")) //Client wants to create a group
-				{
-					response = new Envelope(ResponseConstants.FAIL_CGROUP);
+			}
+			else if (message.getMessage().equals("CGROUP")) //Client wants to create a group
+			{
+				response = new Envelope(ResponseConstants.FAIL_CGROUP);
 
-					if (isValidMessage(message, 3)) {
-						String groupname = (String) message.getObjContents().get(0);
-						UserToken yourToken = (UserToken) message.getObjContents().get(1);
+				if (isValidMessage(message, 3)) {
+					String groupname = (String) message.getObjContents().get(0);
+					UserToken yourToken = (UserToken) message.getObjContents().get(1);
 
-						if (createGroup(groupname, yourToken))
-						{
-							response = new Envelope(ResponseConstants.SUCCESS_CGROUP); //Success
-						}
-						else
-						{
-							// responseType is set by createGroup
-							response = new Envelope(responseType);
-						}
+					if (createGroup(groupname, yourToken))
+					{
+						response = new Envelope(ResponseConstants.SUCCESS_CGROUP); //Success
+					}
+					else
+					{
+						// responseType is set by createGroup
+						response = new Envelope(responseType);
 					}
 				}
-				else if(message.getMessage().equals("DGROUP")) //Client wants to delete a group
-				{
-					response = new Envelope(ResponseConstants.FAIL_DGROUP);
+			}
+			else if(message.getMessage().equals("DGROUP")) //Client wants to delete a group
+			{
+				response = new Envelope(ResponseConstants.FAIL_DGROUP);
 
-					if (isValidMessage(message, 3)) {
-						String groupname = (String) message.getObjContents().get(0);
-						UserToken yourToken = (UserToken) message.getObjContents().get(1);
+				if (isValidMessage(message, 3)) {
+					String groupname = (String) message.getObjContents().get(0);
+					UserToken yourToken = (UserToken) message.getObjContents().get(1);
 
-						if (deleteGroup(groupname, yourToken))
-						{
-							response = new Envelope(ResponseConstants.SUCCESS_DGROUP); //Success
-						}
-						else
-						{
-							// responseType is set by deleteGroup
-							response = new Envelope(responseType);
-						}
+					if (deleteGroup(groupname, yourToken))
+					{
+						response = new Envelope(ResponseConstants.SUCCESS_DGROUP); //Success
+					}
+					else
+					{
+						// responseType is set by deleteGroup
+						response = new Envelope(responseType);
 					}
 				}
-				else if(message.getMessage().equals("LMEMBERS")) //Client wants a list of members in a group
-				{
-					response = new Envelope(ResponseConstants.FAIL_LIST_MEMBERS);
+			}
+			else if(message.getMessage().equals("LMEMBERS")) //Client wants a list of members in a group
+			{
+				response = new Envelope(ResponseConstants.FAIL_LIST_MEMBERS);
 
-					if (isValidMessage(message, 3)) {
-						String groupname = (String) message.getObjContents().get(0);
-						UserToken yourToken = (UserToken) message.getObjContents().get(1);
+				if (isValidMessage(message, 3)) {
+					String groupname = (String) message.getObjContents().get(0);
+					UserToken yourToken = (UserToken) message.getObjContents().get(1);
 
-						List<String> members = listMembers(groupname, yourToken);
-						if (members != null)
-						{
-							response = new Envelope(ResponseConstants.SUCCESS_LIST_MEMBERS); //Success
-							response.addObject(members);
-						}
-						else
-						{
-							// responseType set by listMembers
-							response = new Envelope(responseType);
-						}
+					List<String> members = listMembers(groupname, yourToken);
+					if (members != null)
+					{
+						response = new Envelope(ResponseConstants.SUCCESS_LIST_MEMBERS); //Success
+						response.addObject(members);
+					}
+					else
+					{
+						// responseType set by listMembers
+						response = new Envelope(responseType);
 					}
 				}
-				else if(message.getMessage().equals("AUSERTOGROUP")) //Client wants to add user to a group
-				{
-					response = new Envelope(ResponseConstants.FAIL_ADD_USER_TO_GROUP);
+			}
+			else if(message.getMessage().equals("AUSERTOGROUP")) //Client wants to add user to a group
+			{
+				response = new Envelope(ResponseConstants.FAIL_ADD_USER_TO_GROUP);
 
-					if (isValidMessage(message, 4)) {
-						String username = (String) message.getObjContents().get(0);
-						String groupname = (String) message.getObjContents().get(1);
-						UserToken yourToken = (UserToken) message.getObjContents().get(2);
+				if (isValidMessage(message, 4)) {
+					String username = (String) message.getObjContents().get(0);
+					String groupname = (String) message.getObjContents().get(1);
+					UserToken yourToken = (UserToken) message.getObjContents().get(2);
 
-						if (addUserToGroup(username, groupname, yourToken))
-						{
-							response = new Envelope(ResponseConstants.SUCCESS_ADD_USER_TO_GROUP); //Success
-						}
-						else
-						{
-							// responseType set by addUserToGroup
-							response = new Envelope(responseType);
-						}
+					if (addUserToGroup(username, groupname, yourToken))
+					{
+						response = new Envelope(ResponseConstants.SUCCESS_ADD_USER_TO_GROUP); //Success
+					}
+					else
+					{
+						// responseType set by addUserToGroup
+						response = new Envelope(responseType);
 					}
 				}
-				else if(message.getMessage().equals("RUSERFROMGROUP")) //Client wants to remove user from a group
-				{
-					response = new Envelope(ResponseConstants.FAIL_DELETE_USER_FROM_GROUP);
+			}
+			else if(message.getMessage().equals("RUSERFROMGROUP")) //Client wants to remove user from a group
+			{
+				response = new Envelope(ResponseConstants.FAIL_DELETE_USER_FROM_GROUP);
 
-					if (isValidMessage(message, 4)) {
-						String username = (String) message.getObjContents().get(0);
-						String groupname = (String) message.getObjContents().get(1);
-						UserToken yourToken = (UserToken) message.getObjContents().get(2);
+				if (isValidMessage(message, 4)) {
+					String username = (String) message.getObjContents().get(0);
+					String groupname = (String) message.getObjContents().get(1);
+					UserToken yourToken = (UserToken) message.getObjContents().get(2);
 
-						if (removeUserFromGroup(username, groupname, yourToken))
-						{
-							response = new Envelope(ResponseConstants.SUCCESS_DELETE_USER_FROM_GROUP); //Success
-						}
-						else
-						{
-							// responseType set by removeUserFromGroup
-							response = new Envelope(responseType);
-						}
+					if (removeUserFromGroup(username, groupname, yourToken))
+					{
+						response = new Envelope(ResponseConstants.SUCCESS_DELETE_USER_FROM_GROUP); //Success
+					}
+					else
+					{
+						// responseType set by removeUserFromGroup
+						response = new Envelope(responseType);
 					}
 				}
-				else if(message.getMessage().equals("GETKEY")) //Client wants to get a key for a group
-				{
-					response = new Envelope(ResponseConstants.FAIL_GKEY);
+			}
+			else if(message.getMessage().equals("GETKEY")) //Client wants to get a key for a group
+			{
+				response = new Envelope(ResponseConstants.FAIL_GKEY);
 
-					if (isValidMessage(message, 4)) {
-						String groupname = (String) message.getObjContents().get(0);
-						String index = (String) message.getObjContents().get(1);
-						UserToken yourToken = (UserToken) message.getObjContents().get(2);
+				if (isValidMessage(message, 4)) {
+					String groupname = (String) message.getObjContents().get(0);
+					String index = (String) message.getObjContents().get(1);
+					UserToken yourToken = (UserToken) message.getObjContents().get(2);
 
-						Key tempKey = getKey(groupname, index, yourToken);
-						if (tempKey!=null)
-						{
-							response = new Envelope(ResponseConstants.SUCCESS_GKEY); //Success
-							response.addObject(tempKey);
-						}
-						else
-						{
-							// responseType set 
-							response = new Envelope(responseType);
-						}
+					Key tempKey = getKey(groupname, index, yourToken);
+					if (tempKey!=null)
+					{
+						response = new Envelope(ResponseConstants.SUCCESS_GKEY); //Success
+						response.addObject(tempKey);
+					}
+					else
+					{
+						// responseType set 
+						response = new Envelope(responseType);
 					}
 				}
-				else if(message.getMessage().equals("DISCONNECT")) //Client wants to disconnect
-				{
-					socket.close(); //Close the socket
-					proceed = false; //End this communication loop
-				}
-				else
-				{
-					response = new Envelope("FAIL"); //Server does not understand client request
-				}
+			}
+			else if(message.getMessage().equals("DISCONNECT")) //Client wants to disconnect
+			{
+				socket.close(); //Close the socket
+				proceed = false; //End this communication loop
+			}
+			else
+			{
+				response = new Envelope("FAIL"); //Server does not understand client request
+			}
 
-				// encrypt the response and send it
-				if (proceed) {
-					encryptAndWriteResponse(response);
-				}
-			} while(proceed);
+			// encrypt the response and send it, once the changes made for it are
+			// on disk
+			if (proceed) {
+				server.commitChanges();
+				encryptAndWriteResponse(response);
+			}
 		}
 		catch(Exception e)
 		{
 			System.err.println("Error: " + e.getMessage());
 			e.printStackTrace(System.err);
+			return false;
+		}
+
+		return proceed;
+	}
+
+	public void closeSession()
+	{
+		try {
+			socket.close();
+		} catch (Exception e) {
+			System.err.println("Error closing the socket: " + e.getMessage());
 		}
 	}
 
@@ -305,6 +326,11 @@ public class GroupThread extends ServerThread
 					responseType = ResponseConstants.FAIL_USER_EXIST;
 					return false; //User already exists
 				}
+				else if (!ProtocolConstants.isValidName(username))
+				{
+					responseType = ResponseConstants.FAIL_CUSER;
+					return false; //User name cannot be stored
+				}
 				else
 				{
 					server.userList.addUser(username, password);
@@ -396,8 +422,14 @@ public class GroupThread extends ServerThread
 		// Check if requester has a valid token
 		if(server.validateToken(yourToken))
 		{
+			if (!ProtocolConstants.isValidName(groupname))
+			{
+				responseType = ResponseConstants.FAIL_CGROUP;
+				// the groupname cannot be stored
+				return false;
+			}
 			// should perform a check here to make sure group doesn't already exist, need to get a list of groups
-			if(!server.groupList.hasGroup(groupname))
+			else if(!server.groupList.hasGroup(groupname))
 			{
 				String requester = yourToken.getSubject();
 				// Since user is valid they are allowed to create a group, no special permissions needed here
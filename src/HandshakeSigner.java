@@ -0,0 +1,89 @@
+/* A HandshakeSigner signs the ephemeral keys a server sends during an ECDHE
+* handshake. It holds an Ed25519 key pair generated when the server starts,
+* together with an RSA signature over the Ed25519 public key made once with the
+* server's long-term RSA key. Clients check that certificate with the RSA public
+* key they already trust, so each handshake costs the server an Ed25519
+* signature instead of an RSA-4096 private-key operation.
+*
+* Instances are shared by all of a server's connection threads.
+*/
+
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+
+public class HandshakeSigner {
+
+	public static final String SIGNING_ALGORITHM = "Ed25519";
+	public static final String CERTIFICATE_ALGORITHM = "SHA256withRSA";
+
+	private final PrivateKey signingKey;
+	private final byte[] encodedPublicKey;
+	private final byte[] certificate;
+
+	/**
+	 * This method creates a new signing key and certifies it.
+	 * @param rsaKey the server's long-term RSA private key
+	 */
+	public HandshakeSigner(PrivateKey rsaKey) throws GeneralSecurityException
+	{
+		KeyPair keyPair = KeyPairGenerator.getInstance(SIGNING_ALGORITHM).generateKeyPair();
+		signingKey = keyPair.getPrivate();
+		encodedPublicKey = keyPair.getPublic().getEncoded();
+
+		Signature rsa = Signature.getInstance(CERTIFICATE_ALGORITHM);
+		rsa.initSign(rsaKey);
+		rsa.update(encodedPublicKey);
+		certificate = rsa.sign();
+	}
+
+	public byte[] getEncodedPublicKey()
+	{
+		return encodedPublicKey;
+	}
+
+	public byte[] getCertificate()
+	{
+		return certificate;
+	}
+
+	/**
+	 * This method signs handshake data with the Ed25519 key.
+	 * @param data the data to sign
+	 * @return the signature
+	 */
+	public byte[] sign(byte[] data) throws GeneralSecurityException
+	{
+		Signature signature = Signature.getInstance(SIGNING_ALGORITHM);
+		signature.initSign(signingKey);
+		signature.update(data);
+
+		return signature.sign();
+	}
+
+	/**
+	 * This method checks, on the client, that handshake data was signed by a
+	 * signing key certified with a server's RSA key.
+	 * @param rsaKey the RSA public key of the server
+	 * @param encodedPublicKey the Ed25519 public key sent by the server
+	 * @param certificate the RSA signature over encodedPublicKey
+	 * @param data the signed data
+	 * @param signature the Ed25519 signature over data
+	 * @return true if both signatures are valid
+	 */
+	public static boolean verify(PublicKey rsaKey, byte[] encodedPublicKey, byte[] certificate, byte[] data, byte[] signature) throws GeneralSecurityException
+	{
+		Signature rsa = Signature.getInstance(CERTIFICATE_ALGORITHM);
+		rsa.initVerify(rsaKey);
+		rsa.update(encodedPublicKey);
+		if (!rsa.verify(certificate)) {
+			return false;
+		}
+
+		PublicKey publicKey = KeyFactory.getInstance(SIGNING_ALGORITHM).generatePublic(new X509EncodedKeySpec(encodedPublicKey));
+		Signature ed25519 = Signature.getInstance(SIGNING_ALGORITHM);
+		ed25519.initVerify(publicKey);
+		ed25519.update(data);
+
+		return ed25519.verify(signature);
+	}
+}
@@ -0,0 +1,614 @@
+/* A Journal is an append-only log of changes, so that state held in memory is
+* made durable by writing each change once instead of rewriting the whole
+* state. Its owner appends a record per change, in the order the changes are
+* applied, and waits for it with commit() before acknowledging the change.
+*
+* Commits are grouped: the first thread to commit writes and forces every
+* record appended so far, and threads that commit while it does so wait for
+* it and then write all the records that accumulated meanwhile in one go. A
+* burst of concurrent changes thus costs a few forces instead of one each.
+*
+* The records are kept in numbered generations, files named <base>.<n>. The
+* owner compacts the journal by calling roll(), which starts a new generation,
+* and saving a snapshot of its state as of that moment; once the snapshot is
+* safely on disk, the generations before it are deleted. On startup the owner
+* loads its snapshot and replays the generations from the one it was taken at.
+*
+* Each record is framed by its length and a CRC32 of its contents, so that a
+* record torn by a crash is recognised, and replay cuts the journal off before
+* it. Whether
+* commits are forced to disk is set for the whole process by the journal.sync
+* property (default true).
+*/
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+public class Journal {
+
+	public static final String SYNC_PROPERTY = "journal.sync";
+
+	private static final boolean SYNC = Boolean.parseBoolean(System.getProperty(SYNC_PROPERTY, "true"));
+
+	// records longer than this are taken to be torn
+	private static final int MAX_RECORD = 16 * 1024 * 1024;
+
+	private final String base;
+	private long generation;
+	private FileChannel channel;
+
+	// guards the fields below. A lock rather than the monitor, so that threads
+	// waiting for a commit, virtual ones included, park instead of holding on
+	// to a carrier; files are only written with it released
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition flushed = lock.newCondition();
+
+	// records appended but not yet written, framed
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private long appended = 0;
+	private long durable = 0;
+	private long records = 0;
+	private boolean flushing = false;
+	private IOException failure = null;
+
+	/**
+	 * This method opens a generation of a journal for appending.
+	 * @param _base the journal's file name, to which the generation is appended
+	 * @param _generation the generation, from replay
+	 */
+	public Journal(String _base, long _generation) throws IOException
+	{
+		base = _base;
+		generation = _generation;
+		channel = open(base, generation);
+	}
+
+	/**
+	 * This method returns the file a generation of a journal is kept in.
+	 * @param base the journal's file name
+	 * @param generation the generation
+	 * @return the file
+	 */
+	public static File file(String base, long generation)
+	{
+		return new File(base + "." + generation);
+	}
+
+	private static FileChannel open(String base, long generation) throws IOException
+	{
+		File file = file(base, generation);
+		FileChannel opened = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		if (SYNC) {
+			syncDirectory(file);
+		}
+		return opened;
+	}
+
+	public long getGeneration()
+	{
+		lock.lock();
+		try {
+			return generation;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * This method returns how many records were appended since the current
+	 * generation was started.
+	 * @return the number of records
+	 */
+	public long getRecordCount()
+	{
+		lock.lock();
+		try {
+			return records;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * This method appends a record, without waiting for it to be written.
+	 * @param record the record's contents
+	 * @return the record's sequence number, to pass to commit
+	 */
+	public long append(byte[] record)
+	{
+		// replay would take a longer record to be torn and cut the journal off there
+		if (record.length > MAX_RECORD) {
+			throw new IllegalArgumentException("Journal record of " + record.length + " bytes is too long");
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(record, 0, record.length);
+
+		lock.lock();
+		try {
+			DataOutputStream out = new DataOutputStream(pending);
+			try {
+				out.writeInt(record.length);
+				out.writeInt((int) crc.getValue());
+				out.write(record);
+			} catch (IOException e) {
+				// not thrown by a ByteArrayOutputStream
+			}
+
+			records++;
+			return ++appended;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * This method waits until a record, and every record before it, is written
+	 * and forced to disk, writing them itself unless another thread already is.
+	 * @param sequence the sequence number from append
+	 * @throws IOException if the journal could not be written
+	 */
+	public void commit(long sequence) throws IOException
+	{
+		byte[] batch;
+		long last;
+		FileChannel target;
+		lock.lock();
+		try {
+			while (true) {
+				if (failure != null) {
+					throw failure;
+				}
+				if (durable >= sequence) {
+					return;
+				}
+				if (!flushing) {
+					break;
+				}
+				waitForFlush();
+			}
+
+			flushing = true;
+			batch = pending.toByteArray();
+			pending.reset();
+			last = appended;
+			target = channel;
+		} finally {
+			lock.unlock();
+		}
+
+		IOException error = null;
+		try {
+			write(target, batch);
+		} catch (IOException e) {
+			error = e;
+		}
+		endFlush(last, error);
+	}
+
+	/**
+	 * This method waits until every record appended so far is on disk.
+	 * @throws IOException if the journal could not be written
+	 */
+	public void commitAll() throws IOException
+	{
+		long last;
+		lock.lock();
+		try {
+			last = appended;
+		} finally {
+			lock.unlock();
+		}
+		commit(last);
+	}
+
+	/**
+	 * This method starts a new generation. The records appended so far are
+	 * written to the current generation first, so a snapshot of the owner's
+	 * state taken before any further change holds everything up to the new one.
+	 * Records appended meanwhile go to the new generation.
+	 * @return the new generation
+	 */
+	public long roll() throws IOException
+	{
+		byte[] batch;
+		long last;
+		FileChannel old;
+		long rolled;
+		lock.lock();
+		try {
+			startFlush();
+			batch = pending.toByteArray();
+			pending.reset();
+			last = appended;
+			old = channel;
+			generation++;
+			rolled = generation;
+			records = 0;
+		} finally {
+			lock.unlock();
+		}
+
+		IOException error = null;
+		FileChannel opened = null;
+		try {
+			write(old, batch);
+			old.close();
+			opened = open(base, rolled);
+		} catch (IOException e) {
+			error = e;
+		}
+
+		lock.lock();
+		try {
+			if (opened != null) {
+				channel = opened;
+			}
+		} finally {
+			lock.unlock();
+		}
+		endFlush(last, error);
+		return rolled;
+	}
+
+	/**
+	 * This method writes out the records appended so far and closes the journal.
+	 */
+	public void close() throws IOException
+	{
+		byte[] batch;
+		long last;
+		FileChannel target;
+		lock.lock();
+		try {
+			startFlush();
+			batch = pending.toByteArray();
+			pending.reset();
+			last = appended;
+			target = channel;
+		} finally {
+			lock.unlock();
+		}
+
+		IOException error = null;
+		try {
+			write(target, batch);
+			target.close();
+		} catch (IOException e) {
+			error = e;
+		}
+		endFlush(last, error);
+	}
+
+	/**
+	 * This method waits for the write under way, if any, and then takes the
+	 * turn to write, so no other thread writes until endFlush. It is called
+	 * with the lock held.
+	 * @throws IOException if the journal could not be written earlier
+	 */
+	private void startFlush() throws IOException
+	{
+		while (flushing) {
+			waitForFlush();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		flushing = true;
+	}
+
+	/**
+	 * This method ends a write begun by commit or startFlush and wakes the
+	 * threads waiting for it. A failed write fails every later commit, since
+	 * records after the failed ones must not be taken to be durable.
+	 * @param last the sequence number of the last record written
+	 * @param error the error the write failed with, or null
+	 * @throws IOException the error, if there was one
+	 */
+	private void endFlush(long last, IOException error) throws IOException
+	{
+		lock.lock();
+		try {
+			flushing = false;
+			if (error != null) {
+				failure = error;
+			} else {
+				durable = last;
+			}
+			flushed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private void waitForFlush() throws IOException
+	{
+		try {
+			flushed.await();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted waiting for the journal");
+		}
+	}
+
+	private static void write(FileChannel channel, byte[] batch) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(batch);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		if (SYNC) {
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * This method builds the contents of a record from its fields: Bytes,
+	 * Strings, which may be null, and byte arrays. They are read back with
+	 * DataInputStream.readByte, readString and readBytes.
+	 * @param fields the fields
+	 * @return the record's contents
+	 */
+	public static byte[] record(Object... fields)
+	{
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(record);
+		try {
+			for (int i = 0; i < fields.length; i++) {
+				if (fields[i] instanceof Byte) {
+					out.writeByte((Byte) fields[i]);
+				} else if (fields[i] instanceof byte[]) {
+					out.writeInt(((byte[]) fields[i]).length);
+					out.write((byte[]) fields[i]);
+				} else {
+					out.writeBoolean(fields[i] != null);
+					if (fields[i] != null) {
+						writeUTF8(out, (String) fields[i]);
+					}
+				}
+			}
+		} catch (IOException e) {
+			// a record that was cut short would still be framed as valid
+			throw new IllegalStateException("Error building journal record", e);
+		}
+		return record.toByteArray();
+	}
+
+	/**
+	 * This method reads a String field written by record.
+	 * @param record the record
+	 * @return the string, which may be null
+	 */
+	public static String readString(DataInputStream record) throws IOException
+	{
+		return record.readBoolean() ? readUTF8(record) : null;
+	}
+
+	/**
+	 * This method writes a string as the int length of its UTF-8 encoding
+	 * followed by the encoding. Unlike DataOutputStream.writeUTF it takes
+	 * strings of any length.
+	 * @param out the stream
+	 * @param s the string, not null
+	 */
+	public static void writeUTF8(DataOutputStream out, String s) throws IOException
+	{
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * This method reads a string written by writeUTF8 from a record or other
+	 * contents held in memory, whose length is known.
+	 * @param in the contents
+	 * @return the string
+	 * @throws IOException if the length does not fit in what is left
+	 */
+	public static String readUTF8(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0 || length > in.available()) {
+			throw new IOException("Corrupt string of " + length + " bytes");
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * This method reads a byte array field written by record.
+	 * @param record the record
+	 * @return the bytes
+	 */
+	public static byte[] readBytes(DataInputStream record) throws IOException
+	{
+		byte[] bytes = new byte[record.readInt()];
+		record.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * This method replays the records of a journal, generation by generation.
+	 * Each generation is replayed up to the first record that is torn or
+	 * corrupt, and cut off there, so that records appended later follow the
+	 * ones replayed.
+	 * @param base the journal's file name
+	 * @param from the first generation to replay, which the owner's snapshot
+	 *        was taken at
+	 * @param replayer applies each record
+	 * @return the generation to open for appending: the last one replayed, or
+	 *         from if there is none
+	 */
+	public static long replay(String base, long from, Replayer replayer) throws IOException
+	{
+		long last = from;
+		List<Long> generations = generations(base);
+		for (int i = 0; i < generations.size(); i++) {
+			long replayed = generations.get(i);
+			if (replayed < from) {
+				continue;
+			}
+
+			File file = file(base, replayed);
+			long valid = 0;
+			RecordInput record = new RecordInput();
+			DataInputStream recordIn = new DataInputStream(record);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024));
+			try {
+				while (record.readFrom(in)) {
+					replayer.replay(replayed, recordIn);
+					valid += 8 + record.length();
+				}
+			} finally {
+				in.close();
+			}
+
+			if (file.length() > valid) {
+				System.out.printf("Discarding torn end of %s after byte %d\n", file.getName(), valid);
+				FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+				try {
+					channel.truncate(valid);
+					channel.force(false);
+				} finally {
+					channel.close();
+				}
+			}
+			last = replayed;
+		}
+		return last;
+	}
+
+	/**
+	 * This method deletes the generations of a journal that a snapshot has
+	 * made unnecessary.
+	 * @param base the journal's file name
+	 * @param generation the generation the snapshot was taken at
+	 */
+	public static void deleteBefore(String base, long generation)
+	{
+		List<Long> generations = generations(base);
+		for (int i = 0; i < generations.size() && generations.get(i) < generation; i++) {
+			file(base, generations.get(i)).delete();
+		}
+	}
+
+	private static List<Long> generations(String base)
+	{
+		List<Long> generations = new ArrayList<Long>();
+		File dir = new File(base).getAbsoluteFile().getParentFile();
+		String prefix = new File(base).getName() + ".";
+		String[] names = dir.list();
+		for (int i = 0; names != null && i < names.length; i++) {
+			if (names[i].startsWith(prefix)) {
+				try {
+					generations.add(Long.valueOf(names[i].substring(prefix.length())));
+				} catch (NumberFormatException e) {
+					// not a generation of this journal
+				}
+			}
+		}
+		Collections.sort(generations);
+		return generations;
+	}
+
+	/**
+	 * This method forces the entry of a new file in its directory to disk,
+	 * so that the file is still there after a crash. Directories cannot be
+	 * opened on every platform; there it does nothing.
+	 * @param file the file
+	 */
+	public static void syncDirectory(File file)
+	{
+		try {
+			FileChannel dir = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ);
+			try {
+				dir.force(true);
+			} finally {
+				dir.close();
+			}
+		} catch (IOException e) {
+			// the file is still created, just not forced to disk
+		}
+	}
+
+	/**
+	 * Applies the records of a journal to its owner's state as they are replayed.
+	 */
+	public interface Replayer
+	{
+		/**
+		 * @param generation the generation the record is in
+		 * @param record the record's contents, valid only until the method returns
+		 */
+		void replay(long generation, DataInputStream record) throws IOException;
+	}
+
+	/**
+	 * The record being replayed. One is read after another into the same
+	 * array, so replaying millions of records does not allocate for each.
+	 */
+	private static class RecordInput extends ByteArrayInputStream
+	{
+		private final CRC32 crc = new CRC32();
+
+		public RecordInput()
+		{
+			super(new byte[256]);
+		}
+
+		public int length()
+		{
+			return count;
+		}
+
+		/**
+		 * This method reads the next record.
+		 * @param in the journal
+		 * @return false at the end of the journal or at a torn or corrupt record
+		 */
+		public boolean readFrom(DataInputStream in) throws IOException
+		{
+			try {
+				int length = in.readInt();
+				int checksum = in.readInt();
+				if (length < 0 || length > MAX_RECORD) {
+					return false;
+				}
+
+				if (buf.length < length) {
+					buf = new byte[Math.max(length, 2 * buf.length)];
+				}
+				in.readFully(buf, 0, length);
+				crc.reset();
+				crc.update(buf, 0, length);
+				pos = 0;
+				count = length;
+				return (int) crc.getValue() == checksum;
+			} catch (EOFException e) {
+				return false;
+			}
+		}
+	}
+}
@@ -1,12 +1,17 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.security.*;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 
 import javax.crypto.*;
+import javax.crypto.spec.SecretKeySpec;
 /*
  * This is a file the group server will maintain to keep track of the keys for certain groups 
  */
-public class KeyList implements java.io.Serializable
+public class KeyList implements java.io.Serializable, SnapshotFile.Writable
 {
 	/**
 	 * 
@@ -15,13 +20,75 @@ public class KeyList implements java.io.Serializable
 	private HashMap<String, ArrayList<Key>> keyList = new HashMap<String,ArrayList<Key>>();
 	protected final String AES_ALGORITHM = "AES";
 	protected Key newKey;
-	
-	
+
+	// marks this list's records in the group server's journal
+	public static final byte JOURNAL_TAG = 3;
+
+	// kinds of journal records
+	private static final byte ADD_KEY = 1;
+
+	// the journal changes are appended to, or null if they are not journaled
+	private transient Journal journal;
+
+	// the journal generation this list is a snapshot at; 0 in lists saved
+	// before there was a journal
+	private long journalGeneration;
+
+	// while a snapshot is taken: the map it holds and its newest key, and the
+	// groups whose key lists were copied since it was
+	private transient HashMap<String, ArrayList<Key>> snapshotKeys;
+	private transient Key snapshotNewKey;
+	private transient HashSet<String> copiedGroups;
+
+	// reads lists written by writeSnapshot, for SnapshotFile.load
+	public static final SnapshotFile.Decoder DECODER = new SnapshotFile.Decoder() {
+		public Object readSnapshot(SnapshotFile.Reader reader) throws IOException
+		{
+			DataInputStream in = reader.nextSectionStream();
+			int version = reader.getVersion();
+			KeyList list = new KeyList();
+			list.journalGeneration = in.readLong();
+			int groups = SnapshotFile.readVarInt(in);
+			for (int i = 0; i < groups; i++) {
+				String groupName = SnapshotFile.readText(in, version);
+				int keys = SnapshotFile.readVarInt(in);
+				for (int j = 0; j < keys; j++) {
+					list.addKey(groupName, readKey(in, version));
+				}
+			}
+			// addKey left the last key read as the newest; restore the one written
+			list.newKey = in.readBoolean() ? readKey(in, version) : null;
+			return list;
+		}
+	};
 	
 	public synchronized void addGroupKey(String groupName) throws NoSuchAlgorithmException
 	{
 		KeyGenerator keyGen = KeyGenerator.getInstance(AES_ALGORITHM);
-		newKey = keyGen.generateKey();
+		addKey(groupName, keyGen.generateKey());
+
+		// the key itself is journaled: files encrypted under it must stay readable
+		if (journal != null) {
+			journal.append(Journal.record(JOURNAL_TAG, ADD_KEY, groupName, newKey.getAlgorithm(), newKey.getEncoded()));
+		}
+	}
+
+	private void addKey(String groupName, Key key)
+	{
+		newKey = key;
+		// a snapshot being written keeps the map and key lists it was taken with
+		if (snapshotKeys != null)
+		{
+			if (keyList == snapshotKeys)
+			{
+				keyList = new HashMap<String, ArrayList<Key>>(keyList);
+			}
+			if (keyList.containsKey(groupName) && copiedGroups.add(groupName))
+			{
+				keyList.put(groupName, new ArrayList<Key>(keyList.get(groupName)));
+			}
+		}
+
 		// check to see if this group already has a key list
 		if(!keyList.containsKey(groupName))
 		{
@@ -51,4 +118,110 @@ public class KeyList implements java.io.Serializable
 			return keyList.get(groupname).get(index1);
 		}
 	}
+
+	/**
+	 * This method journals every further change to the list.
+	 * @param _journal the journal
+	 */
+	public synchronized void attachJournal(Journal _journal)
+	{
+		journal = _journal;
+	}
+
+	public synchronized long getJournalGeneration()
+	{
+		return journalGeneration;
+	}
+
+	/**
+	 * This method takes a snapshot of the list, so that serializing the list
+	 * writes it as it is now while keys go on being added, until endSnapshot.
+	 * @param generation the journal generation the snapshot is taken at
+	 */
+	public synchronized void snapshot(long generation)
+	{
+		journalGeneration = generation;
+		snapshotKeys = keyList;
+		snapshotNewKey = newKey;
+		copiedGroups = new HashSet<String>();
+	}
+
+	public synchronized void endSnapshot()
+	{
+		snapshotKeys = null;
+		snapshotNewKey = null;
+		copiedGroups = null;
+	}
+
+	/**
+	 * This method writes the list in the compact form, in one section: the
+	 * journal generation, then each group's keys, each as its algorithm and
+	 * encoded bytes. While a snapshot is taken, the list is written as it was
+	 * when it was taken.
+	 * @param writer the snapshot file
+	 */
+	public void writeSnapshot(SnapshotFile.Writer writer) throws IOException
+	{
+		if (snapshotKeys != null) {
+			writeKeys(writer, snapshotKeys, snapshotNewKey);
+			return;
+		}
+
+		synchronized (this) {
+			writeKeys(writer, keyList, newKey);
+		}
+	}
+
+	private void writeKeys(SnapshotFile.Writer writer, HashMap<String, ArrayList<Key>> keys, Key newest) throws IOException
+	{
+		DataOutputStream out = writer.section();
+		out.writeLong(journalGeneration);
+		SnapshotFile.writeVarInt(out, keys.size());
+		for (String groupName : keys.keySet()) {
+			ArrayList<Key> groupKeys = keys.get(groupName);
+			SnapshotFile.writeText(out, groupName);
+			SnapshotFile.writeVarInt(out, groupKeys.size());
+			for (int i = 0; i < groupKeys.size(); i++) {
+				writeKey(out, groupKeys.get(i));
+			}
+		}
+		out.writeBoolean(newest != null);
+		if (newest != null) {
+			writeKey(out, newest);
+		}
+		writer.endSection();
+	}
+
+	private static void writeKey(DataOutputStream out, Key key) throws IOException
+	{
+		byte[] encoded = key.getEncoded();
+		SnapshotFile.writeText(out, key.getAlgorithm());
+		SnapshotFile.writeVarInt(out, encoded.length);
+		out.write(encoded);
+	}
+
+	private static Key readKey(DataInputStream in, int version) throws IOException
+	{
+		String algorithm = SnapshotFile.readText(in, version);
+		byte[] encoded = new byte[SnapshotFile.readVarInt(in)];
+		in.readFully(encoded);
+		return new SecretKeySpec(encoded, algorithm);
+	}
+
+	/**
+	 * This method replays a change from the journal, after the JOURNAL_TAG.
+	 * @param record the record
+	 */
+	public synchronized void apply(DataInputStream record) throws IOException
+	{
+		byte kind = record.readByte();
+		if (kind == ADD_KEY) {
+			String groupName = Journal.readString(record);
+			String algorithm = Journal.readString(record);
+			addKey(groupName, new SecretKeySpec(Journal.readBytes(record), algorithm));
+		}
+		else {
+			throw new IOException("Unknown KeyList journal record " + kind);
+		}
+	}
 }
@@ -43,6 +43,10 @@ public class MyClientApp {
 	private final int SWITCH_TO_GROUP_SERVER = 5;
 	private final int QUIT_APPF = 6;
 
+	// system property giving the number of connections a file is uploaded or
+	// downloaded over at once (default 1)
+	public static final String STRIPES_PROPERTY = "client.stripes";
+
 	private FileClient fc = new FileClient();
 	private GroupClient gc = new GroupClient();
 	private Scanner in = new Scanner(System.in);
@@ -61,6 +65,18 @@ public class MyClientApp {
 
 	public MyClientApp() {
 
+		// request the binary wire protocol with AES-GCM, session tickets so that
+		// switching servers skips the full handshake, ECDHE key agreement where
+		// the server offers it, and transfers that do not wait for the other
+		// side after every chunk and can be resumed after a dropped connection
+		// or striped over several
+		int caps = ProtocolConstants.CAP_FRAMING | ProtocolConstants.CAP_AES_GCM | ProtocolConstants.CAP_RESUMPTION
+			| ProtocolConstants.CAP_ECDHE | ProtocolConstants.CAP_STREAMING_UPLOAD
+			| ProtocolConstants.CAP_STREAMING_DOWNLOAD | ProtocolConstants.CAP_LARGE_CHUNKS
+			| ProtocolConstants.CAP_RESUMABLE_TRANSFERS | ProtocolConstants.CAP_STRIPED_TRANSFERS;
+		gc.setRequestedCapabilities(caps);
+		fc.setRequestedCapabilities(caps);
+
 		// connect to group server by default, user always needs a token first
 		if (!gc.connect(groupServerIp, groupServerPort, false)) {
 			System.exit(1);
@@ -393,7 +409,8 @@ public class MyClientApp {
 
 				String en_file = "en_".concat(sourceFile);
 				encryptFile(sourceFile, userKey);
-				if (fc.upload(en_file, destFile, groupName, userToken)) {
+				int stripes = Integer.getInteger(STRIPES_PROPERTY, 1).intValue();
+				if (fc.uploadStriped(en_file, destFile, groupName, userToken, stripes)) {
 					System.out.println("File uploaded successfully.");
 					new File(en_file).delete();
 				}
@@ -409,7 +426,15 @@ public class MyClientApp {
 				System.out.print("Enter the destination path of the file: ");
 				String destFile = in.nextLine();
 
-				if (fc.download(sourceFile, destFile, userToken)) {
+				// a download that was cut off leaves its beginning behind
+				boolean resume = false;
+				if (new File(destFile).exists()) {
+					System.out.print("The destination exists. Resume the download into it? (y/n) ");
+					resume = in.nextLine().trim().equalsIgnoreCase("y");
+				}
+
+				int stripes = Integer.getInteger(STRIPES_PROPERTY, 1).intValue();
+				if (resume ? fc.resumeDownload(sourceFile, destFile, userToken) : fc.downloadStriped(sourceFile, destFile, userToken, stripes)) {
 					System.out.println("File downloaded successfully.");
 				}
 				else {
@@ -0,0 +1,179 @@
+/* This class encapsulates the optional protocol features that a client and
+* server can negotiate while establishing a session key.
+*/
+
+public final class ProtocolConstants {
+
+  private ProtocolConstants() {
+    // restrict instantiation
+  }
+
+  // capability flags requested by the client in the CONNECT message; the server
+  // answers with the subset it accepts in the SUCCESS_CONNECT response
+  public static final int CAP_FRAMING = 1;
+
+  // authenticated encryption of framed messages with AES-GCM instead of
+  // AES-CBC plus HMAC-SHA1; only meaningful together with CAP_FRAMING
+  public static final int CAP_AES_GCM = 2;
+
+  // unframed messages carry their IV as one byte[] object instead of sixteen
+  // boxed Bytes; clients always request it since servers accept both forms
+  public static final int CAP_IV_ARRAY = 4;
+
+  // the client may keep several requests in flight at once, up to a window
+  // negotiated alongside the flags; only meaningful together with CAP_FRAMING
+  public static final int CAP_PIPELINING = 8;
+
+  // every message carries a logical stream id so that several operations can
+  // be interleaved on one connection; only meaningful together with CAP_FRAMING
+  public static final int CAP_STREAMS = 16;
+
+  // the server issues a session ticket with which the client can resume the
+  // session on a later connection without the RSA handshake
+  public static final int CAP_RESUMPTION = 32;
+
+  // the session keys are agreed on with an ephemeral X25519 exchange signed by
+  // the server instead of being sent under its RSA key; servers that predate
+  // it cannot parse the handshake, so only request it from servers that do
+  public static final int CAP_ECDHE = 64;
+
+  // an upload's chunks are sent back to back within a credit granted by the
+  // server, which acknowledges them periodically instead of answering each one
+  // with READY; only meaningful together with CAP_FRAMING
+  public static final int CAP_STREAMING_UPLOAD = 128;
+
+  // a download is pushed by the server, optionally limited to a byte range,
+  // within a credit the client extends with MORE messages, instead of being
+  // fetched chunk by chunk; only meaningful together with CAP_FRAMING
+  public static final int CAP_STREAMING_DOWNLOAD = 256;
+
+  // every upload and download agrees on its own chunk size between
+  // MIN_CHUNK_SIZE and MAX_CHUNK_SIZE instead of using CHUNK_SIZE; only
+  // meaningful together with CAP_FRAMING
+  public static final int CAP_LARGE_CHUNKS = 512;
+
+  // an upload that ends early is kept so the client can resume it where the
+  // server's copy ends, and downloads without CAP_STREAMING_DOWNLOAD may also
+  // be limited to a byte range
+  public static final int CAP_RESUMABLE_TRANSFERS = 1024;
+
+  // a file may be sent in byte ranges over several connections at once:
+  // STATF gives a file's size so its ranges can be downloaded in parallel, and
+  // UPLOADS, UPLOADR and UPLOADC upload one as ranges written in place
+  public static final int CAP_STRIPED_TRANSFERS = 2048;
+
+  // every capability this version of the servers knows how to speak
+  public static final int SUPPORTED_CAPABILITIES =
+    CAP_FRAMING | CAP_AES_GCM | CAP_IV_ARRAY | CAP_PIPELINING | CAP_STREAMS | CAP_RESUMPTION
+    | CAP_ECDHE | CAP_STREAMING_UPLOAD | CAP_STREAMING_DOWNLOAD | CAP_LARGE_CHUNKS
+    | CAP_RESUMABLE_TRANSFERS | CAP_STRIPED_TRANSFERS;
+
+  // largest number of outstanding requests a server agrees to
+  public static final int MAX_PIPELINE_WINDOW = 64;
+
+  // number of unacknowledged chunks a streaming upload may have in flight; the
+  // server acknowledges every half credit, so the client rarely has to stop
+  public static final int UPLOAD_CREDIT = 64;
+
+  // number of chunks a pushed download may send before the client extends the
+  // credit; the client extends it by half whenever it has read half
+  public static final int DOWNLOAD_CREDIT = 64;
+
+  // bytes of file data in a full CHUNK; a pushed download fills every chunk
+  // but the last, so the client can count them from the length
+  public static final int CHUNK_SIZE = 4096;
+
+  // bounds on a chunk size agreed with CAP_LARGE_CHUNKS, which is always a
+  // whole number of BufferPool size classes so chunk buffers can be pooled
+  public static final int MIN_CHUNK_SIZE = 64 * 1024;
+  public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+
+  // chunk size clients ask for with CAP_LARGE_CHUNKS
+  public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+  // bytes a streaming transfer with large chunks may have in flight; its
+  // credit shrinks as its chunks grow, but never below two chunks
+  public static final int TRANSFER_WINDOW = 16 * 1024 * 1024;
+
+  // longest path, user name or group name, in chars, that a server stores;
+  // they are kept in memory and journaled with every change to them
+  public static final int MAX_NAME_LENGTH = 4096;
+
+  /**
+   * This method determines which of the capabilities requested by a client
+   * a server will accept, dropping any whose prerequisites are missing.
+   * @param requested the flags sent by the client
+   * @param supported the flags offered by the server
+   * @return the accepted capability flags
+   */
+  public static int negotiate(int requested, int supported) {
+    int accepted = requested & supported;
+
+    if (!hasCapability(accepted, CAP_FRAMING)) {
+      accepted &= ~(CAP_AES_GCM | CAP_PIPELINING | CAP_STREAMS | CAP_STREAMING_UPLOAD | CAP_STREAMING_DOWNLOAD
+        | CAP_LARGE_CHUNKS);
+    }
+
+    return accepted;
+  }
+
+  /**
+   * This method determines the chunk size a server agrees to for a transfer.
+   * @param requested the chunk size asked for by the client
+   * @return the requested size, clamped to MIN_CHUNK_SIZE and MAX_CHUNK_SIZE
+   *         and rounded down to a whole number of BufferPool size classes
+   */
+  public static int chunkSize(int requested) {
+    int size = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, requested));
+    return size / BufferPool.GRANULE * BufferPool.GRANULE;
+  }
+
+  /**
+   * This method determines the credit of a streaming transfer, in chunks.
+   * @param chunkSize the agreed chunk size
+   * @param credit the credit used with CHUNK_SIZE chunks
+   * @return the credit, which keeps at most about TRANSFER_WINDOW bytes in flight
+   */
+  public static int creditFor(int chunkSize, int credit) {
+    if (chunkSize <= CHUNK_SIZE) {
+      return credit;
+    }
+
+    return Math.max(2, Math.min(credit, TRANSFER_WINDOW / chunkSize));
+  }
+
+  /**
+   * This method checks whether a set of capability flags includes a feature.
+   * @param capabilities the negotiated capability flags
+   * @param capability the flag to check for
+   * @return true if the capability is present
+   */
+  public static boolean hasCapability(int capabilities, int capability) {
+    return (capabilities & capability) == capability;
+  }
+
+  /**
+   * This method checks a path, user name or group name sent by a client
+   * before a server stores it. It must be at most MAX_NAME_LENGTH chars, and
+   * every surrogate must be part of a pair, since names are saved as UTF-8,
+   * which has no form for a lone surrogate.
+   * @param name the name
+   * @return true if the name can be stored
+   */
+  public static boolean isValidName(String name) {
+    if (name == null || name.length() > MAX_NAME_LENGTH) {
+      return false;
+    }
+
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (Character.isHighSurrogate(c) && i + 1 < name.length() && Character.isLowSurrogate(name.charAt(i + 1))) {
+        i++;
+      }
+      else if (Character.isSurrogate(c)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
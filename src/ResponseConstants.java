@@ -40,10 +40,13 @@ public final class ResponseConstants {
   public static final String SUCCESS_LIST_MEMBERS = "SUCCESS_LIST_MEMBERS";
   public static final String FAIL_CONNECT = "FAIL_CONNECT";
   public static final String SUCCESS_CONNECT = "SUCCESS_CONNECT";
+  public static final String FAIL_RESUME = "FAIL_RESUME";
+  public static final String SUCCESS_RESUME = "SUCCESS_RESUME";
   public static final String FAIL_KEY = "FAIL_KEY";
   public static final String SUCCESS_KEY = "SUCCESS_KEY";
   public static final String FAIL_GKEY = "FAIL_GET_KEY";
   public static final String SUCCESS_GKEY = "SUCCESS_GET_KEY";
+  public static final String FAIL_BUSY = "FAIL_BUSY";
   
 
   // generic error for lack of admin permissions
@@ -103,6 +106,7 @@ public final class ResponseConstants {
   // for when the client attempts to connect to the server
   public static final String FAIL_CONNECT_MSG = "An error occurred while connecting to the server.";
   public static final String SUCCESS_CONNECT_MSG = "Secure connection to the server established.";
+  public static final String FAIL_BUSY_MSG = "The server is busy.";
   
   //GroupClient.getTokenSignature
   public static final String FAIL_SIGNTOKEN_MSG = "An error occurred while signing the token.";
@@ -148,6 +152,7 @@ public final class ResponseConstants {
     s.put("FAIL_SIGNTOKEN", 29);
     s.put("FAIL_GET_KEY", 30);
     s.put("SUCCESS_GET_KEY", 31);
+    s.put("FAIL_BUSY", 32);
     return s.get(responseType);
 
   }
@@ -186,6 +191,7 @@ public final class ResponseConstants {
       case 29: return FAIL_SIGNTOKEN_MSG;
       case 30: return FAIL_GET_KEY_MSG;
       case 31: return SUCCESS_GET_KEY_MSG;
+      case 32: return FAIL_BUSY_MSG;
       default: return "";
     }
   }
@@ -0,0 +1,342 @@
+/* The SelectorEngine serves a server's connections without a thread per
+* connection. One selector thread accepts connections and watches idle ones,
+* and a small pool of workers runs the protocol. When a request arrives on a
+* connection, a worker takes it over and drives its ServerThread one message
+* at a time (see ServerThread.handleMessage), then hands it back to the
+* selector. An idle client costs a registered channel instead of a blocked
+* thread and its stack.
+*
+* The handlers read and write through blocking object streams, so a channel is
+* switched to blocking mode while a worker owns it and back to non-blocking
+* mode before it is registered with the selector again. A connection is owned
+* by at most one worker at a time, so handlers need no locking of their own.
+*
+* Work on established sessions always goes ahead of handshakes, and at most
+* server.handshakeWorkers workers run handshake steps at once, so a burst of
+* new clients cannot starve the sessions already open. New connections go
+* through the server's AdmissionControl, which bounds how many handshakes wait,
+* and a handshake that is not finished within HANDSHAKE_TIMEOUT_MS is dropped.
+*
+* A connection is handed to a worker as soon as any of its input arrives, not
+* when a whole message has, because handshake messages are plain serialized
+* objects with no length in front of them. A worker therefore reads with a
+* timeout of server.readTimeout milliseconds, or less if that would take a
+* handshake past HANDSHAKE_TIMEOUT_MS. A client that sends part of a
+* message and stops is closed when the timeout expires instead of holding its
+* worker.
+*/
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class SelectorEngine {
+
+	// system properties that override the number of worker threads, and how
+	// many of them may run handshake steps at once
+	public static final String WORKERS_PROPERTY = "server.workers";
+	public static final String HANDSHAKE_WORKERS_PROPERTY = "server.handshakeWorkers";
+
+	// how long a client has to complete the handshake; long enough for a user
+	// to check a file server's fingerprint
+	public static final long HANDSHAKE_TIMEOUT_MS = 2 * 60 * 1000L;
+
+	// system property overriding how long a worker waits for the rest of a
+	// request that has started to arrive
+	public static final String READ_TIMEOUT_PROPERTY = "server.readTimeout";
+	public static final int DEFAULT_READ_TIMEOUT_MS = 30 * 1000;
+
+	private final Server server;
+	private final AdmissionControl admission;
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final int workerCount;
+	private final int handshakeWorkers;
+	private final int readTimeout;
+
+	// connections whose worker finished, waiting to be registered again
+	private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<Connection>();
+
+	// readable connections waiting for a worker, guarded by work
+	private final Object work = new Object();
+	private final ArrayDeque<Connection> sessionWork = new ArrayDeque<Connection>();
+	private final ArrayDeque<Connection> handshakeWork = new ArrayDeque<Connection>();
+	private int handshakesRunning = 0;
+
+	public SelectorEngine(Server _server, AdmissionControl _admission, ServerSocketChannel _serverChannel, int _workerCount) throws IOException
+	{
+		server = _server;
+		admission = _admission;
+		serverChannel = _serverChannel;
+		selector = Selector.open();
+		workerCount = _workerCount;
+		handshakeWorkers = Integer.getInteger(HANDSHAKE_WORKERS_PROPERTY, Math.max(1, workerCount / 2)).intValue();
+		readTimeout = Integer.getInteger(READ_TIMEOUT_PROPERTY, DEFAULT_READ_TIMEOUT_MS).intValue();
+	}
+
+	/**
+	 * This method returns the number of worker threads to use: the value of
+	 * the server.workers property if set, otherwise twice the number of
+	 * processors, since workers also block on disk and on slow clients.
+	 * @return the number of worker threads
+	 */
+	public static int defaultWorkerCount()
+	{
+		int processors = Runtime.getRuntime().availableProcessors();
+		return Integer.getInteger(WORKERS_PROPERTY, Math.max(4, 2 * processors)).intValue();
+	}
+
+	/**
+	 * This method accepts and serves connections until the process exits.
+	 */
+	public void run() throws IOException
+	{
+		for (int i = 0; i < workerCount; i++) {
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, "worker-" + i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		long nextSweep = System.currentTimeMillis() + HANDSHAKE_TIMEOUT_MS;
+		while (true) {
+			selector.select(HANDSHAKE_TIMEOUT_MS);
+
+			Connection connection;
+			while ((connection = idle.poll()) != null) {
+				try {
+					connection.channel.register(selector, SelectionKey.OP_READ, connection);
+				} catch (ClosedChannelException e) {
+					connection.close();
+				}
+			}
+
+			List<Connection> ready = collectReady();
+			while (!ready.isEmpty()) {
+				// cancelled keys are only deregistered by the next selection, and a
+				// channel has to be deregistered before a worker can make it blocking
+				selector.selectNow();
+				for (int i = 0; i < ready.size(); i++) {
+					submit(ready.get(i));
+				}
+
+				ready = collectReady();
+			}
+
+			if (System.currentTimeMillis() >= nextSweep) {
+				dropStalledHandshakes();
+				nextSweep = System.currentTimeMillis() + HANDSHAKE_TIMEOUT_MS;
+			}
+		}
+	}
+
+	/**
+	 * This method closes the connections that have sat in their handshake for
+	 * longer than HANDSHAKE_TIMEOUT_MS, freeing their pending handshake slots.
+	 */
+	private void dropStalledHandshakes()
+	{
+		long now = System.currentTimeMillis();
+		for (SelectionKey key : selector.keys()) {
+			Connection connection = (Connection) key.attachment();
+			if (connection != null && connection.handshakePending && now - connection.accepted > HANDSHAKE_TIMEOUT_MS) {
+				key.cancel();
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * This method queues a readable connection for the workers.
+	 */
+	private void submit(Connection connection)
+	{
+		synchronized (work) {
+			if (connection.handshakePending) {
+				handshakeWork.add(connection);
+			} else {
+				sessionWork.add(connection);
+			}
+
+			work.notify();
+		}
+	}
+
+	/**
+	 * This method runs queued connections until the process exits, taking
+	 * established sessions first and handshakes only while fewer than
+	 * handshakeWorkers are in progress.
+	 */
+	private void work()
+	{
+		while (true) {
+			Connection connection;
+			boolean handshake;
+			synchronized (work) {
+				while (sessionWork.isEmpty() && (handshakeWork.isEmpty() || handshakesRunning >= handshakeWorkers)) {
+					try {
+						work.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+
+				handshake = sessionWork.isEmpty();
+				if (handshake) {
+					connection = handshakeWork.poll();
+					handshakesRunning++;
+				} else {
+					connection = sessionWork.poll();
+				}
+			}
+
+			connection.run();
+
+			if (handshake) {
+				synchronized (work) {
+					handshakesRunning--;
+					work.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method accepts pending connections and takes readable ones away from
+	 * the selector.
+	 * @return the connections to hand to workers
+	 */
+	private List<Connection> collectReady() throws IOException
+	{
+		List<Connection> ready = new ArrayList<Connection>();
+
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			if (!key.isValid()) {
+				continue;
+			}
+
+			if (key.isAcceptable()) {
+				// the first step of a new connection reads the client's stream header
+				SocketChannel channel = serverChannel.accept();
+				if (channel != null && !admission.admitHandshake()) {
+					admission.reject(channel);
+				} else if (channel != null) {
+					channel.configureBlocking(false);
+					channel.register(selector, SelectionKey.OP_READ, new Connection(channel, server.createConnection(channel.socket())));
+				}
+			} else if (key.isReadable()) {
+				key.cancel();
+				ready.add((Connection) key.attachment());
+			}
+		}
+
+		return ready;
+	}
+
+	/**
+	 * A Connection is one accepted channel and the handler running its protocol.
+	 * Each run() is one turn of a worker: the handshake steps or requests whose
+	 * input has arrived.
+	 */
+	private class Connection implements Runnable
+	{
+		private final SocketChannel channel;
+		private final ServerThread handler;
+
+		// when the connection was accepted, and whether it still counts as a
+		// pending handshake with the AdmissionControl
+		private final long accepted = System.currentTimeMillis();
+		private volatile boolean handshakePending = true;
+
+		public Connection(SocketChannel _channel, ServerThread _handler)
+		{
+			channel = _channel;
+			handler = _handler;
+		}
+
+		public void run()
+		{
+			try {
+				channel.configureBlocking(true);
+				channel.socket().setSoTimeout(readTimeout());
+
+				boolean open = step();
+
+				// requests already read into the object stream's buffer would never
+				// wake the selector, so handle them now
+				while (open && handler.hasBufferedInput()) {
+					open = step();
+				}
+
+				if (open) {
+					channel.configureBlocking(false);
+					idle.add(this);
+					selector.wakeup();
+					return;
+				}
+			} catch (SocketTimeoutException e) {
+				System.err.println("Closing a connection that stopped sending mid-message.");
+			} catch (Exception e) {
+				System.err.println("Error serving connection: " + e.getMessage());
+			}
+
+			close();
+		}
+
+		/**
+		 * This method returns how long the worker may wait on a read: the
+		 * server's read timeout, cut short while the handshake is pending so the
+		 * handshake cannot outlive HANDSHAKE_TIMEOUT_MS.
+		 * @return the timeout in milliseconds, never 0 (which would mean forever)
+		 */
+		private int readTimeout()
+		{
+			if (!handshakePending) {
+				return readTimeout;
+			}
+
+			long left = HANDSHAKE_TIMEOUT_MS - (System.currentTimeMillis() - accepted);
+			return (int) Math.max(1, Math.min(readTimeout, left));
+		}
+
+		private boolean step()
+		{
+			if (!handshakePending) {
+				return handler.handleMessage();
+			}
+
+			boolean open = handler.openSession();
+			if (open && handler.isSessionOpen()) {
+				handshakePending = false;
+				admission.handshakeFinished();
+			}
+
+			return open;
+		}
+
+		public void close()
+		{
+			admission.connectionClosed(handshakePending);
+			handler.closeSession();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.err.println("Error closing the socket: " + e.getMessage());
+			}
+		}
+	}
+}
@@ -1,5 +1,8 @@
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.io.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.*;
 import javax.crypto.*;
 
@@ -15,8 +18,33 @@ public abstract class Server {
 	// this needs to be long enough to encrypt a sufficiently long AES key
 	private static final int RSA_KEY_SIZE = 4096;
 
+	// keys for the session tickets handed to clients, shared by all connections
+	private final SessionTicketKeys ticketKeys = new SessionTicketKeys();
+
+	// signs ECDHE handshakes, certified once with the RSA key
+	private HandshakeSigner handshakeSigner = null;
+
+	// system property selecting how connections are served: "selector" (the
+	// default) multiplexes them onto a small worker pool, "threads" gives each
+	// connection its own thread, "virtual" its own virtual thread
+	public static final String ENGINE_PROPERTY = "server.engine";
+	public static final String ENGINE_SELECTOR = "selector";
+	public static final String ENGINE_THREADS = "threads";
+	public static final String ENGINE_VIRTUAL = "virtual";
+
+	// limits on the connections this server takes on
+	private final AdmissionControl admission = new AdmissionControl();
+
 	abstract void start();
 
+	/**
+	 * This method creates the handler for a newly accepted connection. It must
+	 * not block; the handshake happens later in ServerThread.openSession.
+	 * @param sock the accepted socket
+	 * @return the handler for the connection
+	 */
+	abstract ServerThread createConnection(Socket sock);
+
 	public Server(int _SERVER_PORT, String _serverName) {
 		port = _SERVER_PORT;
 		name = _serverName;
@@ -38,6 +66,14 @@ public abstract class Server {
 		return publicKey;
 	}
 
+	public SessionTicketKeys getTicketKeys() {
+		return ticketKeys;
+	}
+
+	public HandshakeSigner getHandshakeSigner() {
+		return handshakeSigner;
+	}
+
 	/**
 	* This method reads the RSA keys for this server from disk. If the key files
 	* do not exist, it generates new RSA keys and writes them to files.
@@ -77,6 +113,63 @@ public abstract class Server {
 			System.err.println("Error while reading or generating RSA keys.");
 			System.exit(1);
 		}
+
+		// ECDHE handshakes are optional, clients can still use RSA without them
+		try {
+			handshakeSigner = new HandshakeSigner(privateKey);
+		} catch (Exception e) {
+			System.err.println("ECDHE handshakes disabled: " + e.getMessage());
+		}
+	}
+
+	/**
+	* This method accepts connections on this server's port and serves them
+	* until the process exits, with the engine chosen by ENGINE_PROPERTY. An
+	* unknown engine is reported and nothing is served.
+	*/
+	protected void serve() throws IOException {
+		String engine = System.getProperty(ENGINE_PROPERTY, ENGINE_SELECTOR);
+		if (!ENGINE_SELECTOR.equals(engine) && !ENGINE_THREADS.equals(engine) && !ENGINE_VIRTUAL.equals(engine)) {
+			System.err.printf("Unknown server engine \"%s\"; %s must be %s, %s or %s\n",
+				engine, ENGINE_PROPERTY, ENGINE_SELECTOR, ENGINE_THREADS, ENGINE_VIRTUAL);
+			return;
+		}
+
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+
+		if (ENGINE_THREADS.equals(engine)) {
+			while (true) {
+				SocketChannel channel = serverChannel.accept();
+				if (admission.admitConnection()) {
+					new Thread(admitted(createConnection(channel.socket()))).start();
+				} else {
+					admission.reject(channel);
+				}
+			}
+		} else if (ENGINE_VIRTUAL.equals(engine)) {
+			new VirtualThreadEngine(this, admission, serverChannel).run();
+		} else {
+			new SelectorEngine(this, admission, serverChannel, SelectorEngine.defaultWorkerCount()).run();
+		}
+	}
+
+	/**
+	* This method wraps a connection admitted with AdmissionControl.admitConnection
+	* so that it is released when its handler finishes.
+	* @param handler the handler of the connection
+	* @return the body of the connection's thread
+	*/
+	protected Runnable admitted(final ServerThread handler) {
+		return new Runnable() {
+			public void run() {
+				try {
+					handler.run();
+				} finally {
+					admission.connectionClosed(false);
+				}
+			}
+		};
 	}
 
 	/**
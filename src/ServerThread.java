@@ -1,15 +1,16 @@
 /**
 * This class is a simple extension of the Java Thread class. All it does is
 * define some common methods that both ServerThread and FileThread will use.
+* A connection can run on its own thread, see run(), or be driven one message
+* at a time by a SelectorEngine.
 */
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.security.*;
 import javax.crypto.*;
 import java.util.Arrays;
 
-import javax.crypto.spec.IvParameterSpec;
-
 
 public abstract class ServerThread extends Thread {
 
@@ -34,12 +35,112 @@ public abstract class ServerThread extends Thread {
   // sequence number to prevent message reordering
   private int sequenceNumber = -1;
 
+  // with CAP_STREAMS, responses to different streams may leave in any order,
+  // so each direction keeps its own numbering: sequenceNumber then tracks the
+  // last message received and this the last one sent. Both advance by two, so
+  // client messages and server messages never share a number.
+  private int sendSequenceNumber = -1;
+
+  // in lock-step numbering, the oldest sequence number left free for the client
+  // by writeUnansweredResponse that it has not used yet, or -1 while the two
+  // sides are in step
+  private int reservedSequenceNumber = -1;
+
+  // logical stream of the message most recently read; responses are sent back
+  // on the same stream
+  protected int streamId = 0;
+
+  // optional protocol features this server offers and the ones negotiated
+  // with the client during establishSessionKey
+  protected int supportedCapabilities = ProtocolConstants.SUPPORTED_CAPABILITIES;
+  protected int capabilities = 0;
+
+  // largest pipelining window this server accepts, and the negotiated window
+  protected int maxPipelineWindow = ProtocolConstants.MAX_PIPELINE_WINDOW;
+  protected int pipelineWindow = 1;
+
+  // ciphers, MAC, and randomness reused for every message on this connection
+  protected CryptoContext crypto = new CryptoContext();
+
+  // keys of the server's session tickets; null if this server does not offer
+  // session resumption
+  protected SessionTicketKeys ticketKeys = null;
+
+  // signs ECDHE handshakes; null if this server only accepts RSA encrypted CONNECTs
+  protected HandshakeSigner handshakeSigner = null;
+
   // constants for encryption algorithms
   protected final String HMAC_SHA1_ALGORITHM = "HmacSHA1";
   protected final String SHA1_PRNG = "SHA1PRNG";
   protected final String AES_CBC_PKCS5 = "AES/CBC/PKCS5Padding";
   protected final String RSA_ECB_PKCS1 = "RSA/ECB/PKCS1Padding";
 
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  /**
+   * This method takes the next step in setting up a new connection: opening
+   * the object streams, then the handshake. Each step after the first waits for
+   * the client to have sent something, so a SelectorEngine can run them as the
+   * client's messages arrive rather than holding a worker in between.
+   * @return false if the connection should be closed
+   */
+  public abstract boolean openSession();
+
+  /**
+   * This method checks whether openSession has completed the handshake.
+   * @return true once requests can be handled
+   */
+  public boolean isSessionOpen() {
+    return sessionKeyEstablished;
+  }
+
+  /**
+   * This method reads and handles a single request from the client. Any state
+   * that spans several requests lives in the handler, so connections can be
+   * driven one message at a time by a SelectorEngine worker.
+   * @return false once the connection should be closed
+   */
+  public abstract boolean handleMessage();
+
+  /**
+   * This method releases the resources of a connection that is being closed.
+   */
+  public void closeSession() {
+  }
+
+  /**
+   * This method checks whether bytes of the next request were already read
+   * from the socket into the object stream's buffer. The selector only sees
+   * data still waiting in the socket, so such requests must be handled before
+   * the connection goes back to waiting on it.
+   * @return true if buffered input is waiting to be handled
+   */
+  public boolean hasBufferedInput() {
+    try {
+      return input.available() > 0;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * This method serves the connection on this thread until the client
+   * disconnects, for servers running one thread per connection.
+   */
+  public void run() {
+    boolean open = true;
+    while (open && !isSessionOpen()) {
+      open = openSession();
+    }
+
+    // handle requests until the client disconnects
+    while (open) {
+      open = handleMessage();
+    }
+
+    closeSession();
+  }
+
   /**
    * This method attempts to establish a public key between the client and server.
    * It is intended to be used by file servers when the client connects to them
@@ -47,12 +148,36 @@ public abstract class ServerThread extends Thread {
    * @return true if the public key was successfully established
    */
   public boolean establishPublicKey() {
+    return sendPublicKey() && confirmPublicKey();
+  }
+
+  /**
+   * This method sends the server's public key to the client, the first half of
+   * establishPublicKey.
+   * @return true if the key was sent
+   */
+  public boolean sendPublicKey() {
     try {
       // send public key to client
       Envelope message = new Envelope("KEY");
       message.addObject(publicKey);
       output.writeObject(message);
+      output.flush();
+      return true;
+    } catch (Exception e) {
+      System.out.println("Error in establishPublicKey:" + e.getMessage());
+      return false;
+    }
+  }
 
+  /**
+   * This method reads the client's answer to sendPublicKey. A client seeing the
+   * key for the first time waits for its user to accept it, so the answer can
+   * take a while.
+   * @return true if the client accepted the key
+   */
+  public boolean confirmPublicKey() {
+    try {
       // read response from client
       Envelope response = (Envelope) input.readObject();
       if (response.getMessage().equals(ResponseConstants.SUCCESS_KEY)) {
@@ -69,15 +194,28 @@ public abstract class ServerThread extends Thread {
   /**
   * This method attempts to establish a shares secret session key with the client
   * by implementing the server side of the mechanism described in Protocol 1 of
-  * the project writeup.
+  * the project writeup. A returning client may instead offer a session ticket,
+  * see resumeSession, and a client may agree on the keys with ECDHE, see
+  * agreeSessionKey.
   */
   public boolean establishSessionKey() {
-    // receive and decrypt first message from client
-    Envelope message = readAndDecryptMessage();
-    Envelope response = new Envelope(ResponseConstants.FAIL_CONNECT);
-
-    boolean goodConnect = false;
     try {
+      // a returning client sends an unencrypted RESUME in place of the IV that
+      // precedes a CONNECT; if its ticket is declined, a CONNECT follows
+      Object first = input.readObject();
+      if (first instanceof Envelope && ((Envelope) first).getMessage().equals("RESUME")) {
+        if (resumeSession((Envelope) first)) {
+          return true;
+        }
+        first = input.readObject();
+      }
+      if (first instanceof Envelope && ((Envelope) first).getMessage().equals("ECDHE_HELLO")) {
+        return agreeSessionKey((Envelope) first);
+      }
+
+      // receive and decrypt first message from client
+      Envelope message = readAndDecryptMessage(first);
+
       // check for proper structure of message
       if (message.getMessage().equals("CONNECT")) {
         // get challenge and AES key from decrypted message
@@ -86,18 +224,21 @@ public abstract class ServerThread extends Thread {
         signingKey = (Key) message.getObjContents().get(2);
 
         // construct response message with incremented challenge
-        response = new Envelope(ResponseConstants.SUCCESS_CONNECT);
+        Envelope response = new Envelope(ResponseConstants.SUCCESS_CONNECT);
         Integer challengeResponse = new Integer(challenge.intValue() + 1);
         response.addObject(challengeResponse);
 
-        // add initial sequence number to the response
-        SecureRandom random = SecureRandom.getInstance(SHA1_PRNG);
-        sequenceNumber = new Integer(random.nextInt() & Integer.MAX_VALUE);
-
-        sessionKeyEstablished = true;
-        encryptAndWriteResponse(response);
+        // older clients send no feature request and get none
+        int requestedCapabilities = 0;
+        if (message.getObjContents().size() > 4) {
+          requestedCapabilities = ((Integer) message.getObjContents().get(3)).intValue();
+        }
+        int requestedWindow = 1;
+        if (message.getObjContents().size() > 5) {
+          requestedWindow = ((Integer) message.getObjContents().get(4)).intValue();
+        }
 
-        return true;
+        return completeHandshake(response, requestedCapabilities, requestedWindow);
       }
     } catch (Exception e) {
       System.err.println("Error occurred while attempting to establish the session key.");
@@ -106,30 +247,210 @@ public abstract class ServerThread extends Thread {
     return false;
   }
 
+  /**
+   * This method resumes a session from a ticket this server issued earlier,
+   * without any RSA operation. The new session keys are derived from the
+   * secret sealed in the ticket and a nonce chosen by the client, so they
+   * differ for every connection; the random initial sequence number in the
+   * response keeps replayed client messages from being accepted, as it does
+   * for a full handshake. If the ticket cannot be used, the client is told so
+   * and is expected to send a CONNECT next.
+   * @param request the RESUME request: ticket, nonce, IV, requested
+   *                capabilities, requested window, and binder
+   * @return true if the session was resumed
+   */
+  private boolean resumeSession(Envelope request) throws Exception {
+    byte[] secret;
+    byte[] nonce;
+    int requestedCapabilities;
+    int requestedWindow;
+    try {
+      if (ticketKeys == null) {
+        throw new GeneralSecurityException("Session resumption is not enabled.");
+      }
+
+      byte[] ticket = (byte[]) request.getObjContents().get(0);
+      nonce = (byte[]) request.getObjContents().get(1);
+      requestedCapabilities = ((Integer) request.getObjContents().get(3)).intValue();
+      requestedWindow = ((Integer) request.getObjContents().get(4)).intValue();
+      byte[] binder = (byte[]) request.getObjContents().get(5);
+
+      secret = SessionTicket.open(ticket, ticketKeys, crypto);
+      if (nonce.length != SessionTicket.NONCE_LENGTH
+          || !SessionTicket.verifyBinder(binder, secret, nonce, requestedCapabilities, requestedWindow)) {
+        throw new GeneralSecurityException("Invalid binder on the resumption request.");
+      }
+    } catch (Exception e) {
+      System.out.println("Session resumption declined: " + e.getMessage());
+      output.writeObject(new Envelope(ResponseConstants.FAIL_RESUME));
+      output.flush();
+      return false;
+    }
+
+    // the IV for the unframed response, which the client would otherwise have
+    // sent ahead of its CONNECT
+    setIV(request.getObjContents().get(2));
+    sessionKey = SessionTicket.deriveSessionKey(secret, nonce);
+    signingKey = SessionTicket.deriveSigningKey(secret, nonce);
+
+    return completeHandshake(new Envelope(ResponseConstants.SUCCESS_RESUME), requestedCapabilities, requestedWindow);
+  }
+
+  /**
+   * This method runs the server side of the ECDHE handshake described in
+   * EcdheHandshake. The only private-key operations are an X25519 agreement
+   * and an Ed25519 signature.
+   * @param hello the ECDHE_HELLO request: client public key, nonce, IV,
+   *              requested capabilities, and requested window
+   * @return true if the session keys were agreed on
+   */
+  private boolean agreeSessionKey(Envelope hello) throws Exception {
+    if (handshakeSigner == null) {
+      output.writeObject(new Envelope(ResponseConstants.FAIL_CONNECT));
+      output.flush();
+      return false;
+    }
+
+    byte[] clientPublicKey = (byte[]) hello.getObjContents().get(0);
+    byte[] nonce = (byte[]) hello.getObjContents().get(1);
+    byte[] clientIV = (byte[]) hello.getObjContents().get(2);
+    int requestedCapabilities = ((Integer) hello.getObjContents().get(3)).intValue();
+    int requestedWindow = ((Integer) hello.getObjContents().get(4)).intValue();
+    if (nonce.length != EcdheHandshake.NONCE_LENGTH) {
+      throw new GeneralSecurityException("Invalid nonce length: " + nonce.length);
+    }
+
+    KeyPair ephemeral = EcdheHandshake.generateKeyPair();
+    byte[] serverPublicKey = ephemeral.getPublic().getEncoded();
+    byte[] sharedSecret = EcdheHandshake.sharedSecret(ephemeral.getPrivate(), clientPublicKey);
+    byte[] transcript = EcdheHandshake.transcriptHash(clientPublicKey, nonce, clientIV, requestedCapabilities,
+        requestedWindow, serverPublicKey, handshakeSigner.getEncodedPublicKey());
+
+    Envelope serverHello = new Envelope("ECDHE_SERVER_HELLO");
+    serverHello.addObject(serverPublicKey);
+    serverHello.addObject(handshakeSigner.getEncodedPublicKey());
+    serverHello.addObject(handshakeSigner.getCertificate());
+    serverHello.addObject(handshakeSigner.sign(transcript));
+    output.writeObject(serverHello);
+
+    setIV(clientIV);
+    sessionKey = EcdheHandshake.deriveSessionKey(sharedSecret, transcript);
+    signingKey = EcdheHandshake.deriveSigningKey(sharedSecret, transcript);
+
+    return completeHandshake(new Envelope(ResponseConstants.SUCCESS_CONNECT), requestedCapabilities, requestedWindow);
+  }
+
+  /**
+   * This method negotiates the optional protocol features, adds them to the
+   * handshake response, and sends it along with the initial sequence number.
+   * @param response the SUCCESS_CONNECT or SUCCESS_RESUME response
+   * @param requestedCapabilities the capability flags requested by the client
+   * @param requestedWindow the pipelining window requested by the client
+   * @return true once the response is sent
+   */
+  private boolean completeHandshake(Envelope response, int requestedCapabilities, int requestedWindow) throws Exception {
+    // accept the optional features requested by the client that this server supports
+    int acceptedCapabilities = ProtocolConstants.negotiate(requestedCapabilities, supportedCapabilities);
+    if (ticketKeys == null) {
+      acceptedCapabilities &= ~ProtocolConstants.CAP_RESUMPTION;
+    }
+    // accepting CAP_ECDHE tells the client to use it on its next connection
+    if (handshakeSigner == null) {
+      acceptedCapabilities &= ~ProtocolConstants.CAP_ECDHE;
+    }
+    response.addObject(Integer.valueOf(acceptedCapabilities));
+
+    // requests are still handled strictly in order, so a pipelining client
+    // only needs to know how many it may have outstanding
+    if (ProtocolConstants.hasCapability(acceptedCapabilities, ProtocolConstants.CAP_PIPELINING)) {
+      pipelineWindow = Math.max(1, Math.min(requestedWindow, maxPipelineWindow));
+      response.addObject(Integer.valueOf(pipelineWindow));
+    }
+
+    // a ticket the client can present on its next connection; the client
+    // computes the same resumption secret from the session keys
+    if (ProtocolConstants.hasCapability(acceptedCapabilities, ProtocolConstants.CAP_RESUMPTION)) {
+      byte[] secret = SessionTicket.resumptionSecret(sessionKey, signingKey);
+      response.addObject(SessionTicket.issue(secret, ticketKeys, crypto));
+    }
+
+    // add initial sequence number to the response
+    sequenceNumber = Integer.valueOf(crypto.getRandom().nextInt() & Integer.MAX_VALUE);
+
+    sessionKeyEstablished = true;
+    encryptAndWriteResponse(response);
+
+    // the response above still uses the legacy format, everything after it
+    // uses the negotiated features
+    capabilities = acceptedCapabilities;
+    if (ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_STREAMS)) {
+      sendSequenceNumber = sequenceNumber;
+      sequenceNumber = sequenceNumber - 1;
+    }
+
+    return true;
+  }
+
   /**
   * This method reads an encrypted Envelope from the client and returns
   * the decryption.
   */
   public Envelope readAndDecryptMessage() {
+    return readAndDecryptMessage(null);
+  }
+
+  /**
+   * This method reads an encrypted Envelope from the client, starting from an
+   * object that was already read from the stream.
+   * @param first the IV object of an unframed message, or null to read it
+   * @return the decrypted Envelope
+   */
+  private Envelope readAndDecryptMessage(Object first) {
     try {
-      setIV();
-      SealedObject encryptedResponse;
-      if (signingKey != null) {
-        Envelope signedResponse = (Envelope) input.readObject();
-        if (!verifySignature(signedResponse)) {
-          throw new Exception("Invalid signature on the received message.");
-        }
-        encryptedResponse = (SealedObject) signedResponse.getObjContents().get(0);
+      Envelope response;
+      if (ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_FRAMING)) {
+        response = readFramedMessage();
       } else {
-        encryptedResponse = (SealedObject) input.readObject();
+        setIV(first != null ? first : input.readObject());
+        SealedObject encryptedResponse;
+        if (signingKey != null) {
+          Envelope signedResponse = (Envelope) input.readObject();
+          if (!verifySignature(signedResponse)) {
+            throw new Exception("Invalid signature on the received message.");
+          }
+          encryptedResponse = (SealedObject) signedResponse.getObjContents().get(0);
+        } else {
+          encryptedResponse = (SealedObject) input.readObject();
+        }
+
+        response = (Envelope) decryptObject(encryptedResponse);
       }
 
-      Envelope response = (Envelope) decryptObject(encryptedResponse);
+      boolean streams = ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_STREAMS);
+      int expectedSequenceNumber = streams ? sequenceNumber + 2 : sequenceNumber + 1;
 
       int responseSize = response.getObjContents().size();
       int responseSequenceNumber = (Integer) response.getObjContents().get(responseSize - 1);
-      if (responseSequenceNumber != sequenceNumber + 1) {
-        throw new Exception("Invalid sequence number: " + responseSequenceNumber + ". Expecting: " + (sequenceNumber + 1));
+      if (!streams && reservedSequenceNumber >= 0) {
+        // any number left free since the last message read will do; once the
+        // client uses the latest one the two sides are back in step
+        if (responseSequenceNumber < reservedSequenceNumber || responseSequenceNumber > sequenceNumber
+            || (responseSequenceNumber - reservedSequenceNumber) % 2 != 0) {
+          throw new Exception("Invalid sequence number: " + responseSequenceNumber + ". Expecting one of "
+            + reservedSequenceNumber + " to " + sequenceNumber);
+        }
+
+        reservedSequenceNumber = responseSequenceNumber == sequenceNumber ? -1 : responseSequenceNumber + 2;
+        return response;
+      }
+
+      if (responseSequenceNumber != expectedSequenceNumber) {
+        throw new Exception("Invalid sequence number: " + responseSequenceNumber + ". Expecting: " + expectedSequenceNumber);
+      }
+
+      // the stream id precedes the sequence number; handlers never see it
+      if (streams) {
+        streamId = (Integer) response.getObjContents().remove(responseSize - 2);
       }
 
       sequenceNumber = responseSequenceNumber;
@@ -140,23 +461,111 @@ public abstract class ServerThread extends Thread {
     }
   }
 
+  /**
+   * This method gives up the response to the message just read. In lock-step
+   * numbering a client that sends several messages without waiting, such as
+   * the chunks of a streaming upload, leaves a sequence number free for each
+   * response, so a response that is not sent must still be counted. With
+   * CAP_STREAMS each direction is numbered on its own and nothing is skipped.
+   */
+  public void skipResponse() {
+    if (!ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_STREAMS)) {
+      sequenceNumber++;
+    }
+  }
+
+  /**
+   * This method sends one of several responses to a request without waiting
+   * for the client in between, such as the chunks of a pushed download. In
+   * lock-step numbering each one leaves the next sequence number free for a
+   * message the client may send meanwhile, and readAndDecryptMessage accepts
+   * the client's messages in any of those numbers. With CAP_STREAMS each
+   * direction is numbered on its own and nothing is left free.
+   * @param message the Envelope to send
+   */
+  public void writeUnansweredResponse(Envelope message) {
+    if (ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_STREAMS)) {
+      encryptAndWriteResponse(message);
+      return;
+    }
+
+    if (reservedSequenceNumber < 0) {
+      reservedSequenceNumber = sequenceNumber + 2;
+    }
+    encryptAndWriteResponse(message);
+    sequenceNumber++;
+  }
+
   /**
   * This method encrypts and sends an Envelope to the client.
   */
   public void encryptAndWriteResponse(Envelope message) {
     // increment sequence number and add it to the message
-    message.addObject(new Integer(++sequenceNumber));
+    if (ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_STREAMS)) {
+      message.addObject(Integer.valueOf(streamId));
+      sendSequenceNumber += 2;
+      message.addObject(Integer.valueOf(sendSequenceNumber));
+    } else {
+      message.addObject(Integer.valueOf(++sequenceNumber));
+    }
 
     // encrypt, sign, and send the object
     try {
-      SealedObject encryptedMessage = encryptObject(message);
-      Envelope signedMessage = signObject(encryptedMessage);
-      output.writeObject(signedMessage);
+      if (ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_FRAMING)) {
+        writeFramedMessage(message);
+      } else {
+        SealedObject encryptedMessage = encryptObject(message);
+        Envelope signedMessage = signObject(encryptedMessage);
+        output.writeObject(signedMessage);
+      }
     } catch (Exception e) {
       System.err.println("Error encrypting and writing message to client.");
     }
   }
 
+  /**
+   * This method reads a Frame from the client, authenticates it, and decrypts
+   * and decodes the Envelope it carries.
+   * @return the decoded Envelope
+   */
+  private Envelope readFramedMessage() throws Exception {
+    Frame frame = Frame.read(input);
+    boolean gcm = ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_AES_GCM);
+
+    ByteBuffer plaintext = crypto.openFrame(frame, sessionKey, signingKey, gcm);
+    frame.release();
+    try {
+      return EnvelopeCodec.decode(plaintext);
+    } finally {
+      BufferPool.shared().release(plaintext);
+    }
+  }
+
+  /**
+   * This method encodes and encrypts an Envelope under a fresh IV and writes it
+   * to the client as a single authenticated Frame. File data the Envelope holds
+   * in a ByteBuffer is encrypted straight from that buffer, which is free to be
+   * reused once this method returns.
+   * @param message the Envelope to send
+   */
+  private void writeFramedMessage(Envelope message) throws Exception {
+    boolean gcm = ProtocolConstants.hasCapability(capabilities, ProtocolConstants.CAP_AES_GCM);
+    ByteBuffer[] plaintext = EnvelopeCodec.encodeParts(message);
+    Frame frame;
+    if (plaintext.length == 1) {
+      frame = crypto.sealFrame(plaintext[0], sessionKey, signingKey, gcm);
+    } else {
+      frame = crypto.sealFrame(plaintext, sessionKey, signingKey, gcm);
+    }
+    for (int i = 0; i < plaintext.length; i += 2) {
+      BufferPool.shared().release(plaintext[i]);
+    }
+
+    frame.write(output);
+    frame.release();
+    output.flush();
+  }
+
   /**
   * This method takes an Object and encrypts it using either the private
   * RSA key or the shared secret AES key of the group server.
@@ -170,13 +579,11 @@ public abstract class ServerThread extends Thread {
       Cipher cipher = null;
       // if the shared AES key has been established
       if (sessionKeyEstablished) {
-        // generate and initialize an AES cipher
-        cipher = Cipher.getInstance(AES_CBC_PKCS5);
-        cipher.init(Cipher.ENCRYPT_MODE, sessionKey, new IvParameterSpec(iv));
+        // initialize the connection's AES cipher
+        cipher = crypto.aesCbc(Cipher.ENCRYPT_MODE, sessionKey, iv);
       } else {
-        // generate and initialize an RSA cipher
-        cipher = Cipher.getInstance(RSA_ECB_PKCS1);
-        cipher.init(Cipher.ENCRYPT_MODE, privateKey);
+        // initialize the connection's RSA cipher
+        cipher = crypto.rsa(Cipher.ENCRYPT_MODE, privateKey);
       }
 
       return new SealedObject(obj, cipher);
@@ -197,13 +604,11 @@ public abstract class ServerThread extends Thread {
       Cipher cipher = null;
       // if the shared AES key has been established
       if (sessionKeyEstablished) {
-        // generate and initialize an AES cipher
-        cipher = Cipher.getInstance(AES_CBC_PKCS5);
-        cipher.init(Cipher.DECRYPT_MODE, sessionKey, new IvParameterSpec(iv));
+        // initialize the connection's AES cipher
+        cipher = crypto.aesCbc(Cipher.DECRYPT_MODE, sessionKey, iv);
       } else {
-        // generate and initialize an RSA cipher
-        cipher = Cipher.getInstance(RSA_ECB_PKCS1);
-        cipher.init(Cipher.DECRYPT_MODE, privateKey);
+        // initialize the connection's RSA cipher
+        cipher = crypto.rsa(Cipher.DECRYPT_MODE, privateKey);
       }
 
       return sealedObj.getObject(cipher);
@@ -246,8 +651,7 @@ public abstract class ServerThread extends Thread {
     try {
       // generate an HMAC for the object
       byte[] objectData = serializeObject(obj);
-      Mac mac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
-      mac.init(signingKey);
+      Mac mac = crypto.hmac(signingKey);
 
       return toHexString(mac.doFinal(objectData));
     } catch (Exception e) {
@@ -296,22 +700,35 @@ public abstract class ServerThread extends Thread {
    * @return a readable hex representation of the byte array
    */
   public String toHexString(byte[] bytes) {
-    StringBuilder result = new StringBuilder();
+    char[] result = new char[bytes.length * 2];
     for (int i = 0; i < bytes.length; i++) {
-      result.append(String.format("%02x", bytes[i]));
+      result[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+      result[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
     }
 
-    return result.toString();
+    return new String(result);
   }
 
   /**
    *  This method initializes the IV required for AES encryption and decryption.
    *  The IV's value will be determined by the client initiating communication
-   *  with the server.
+   *  with the server. Clients that negotiated CAP_IV_ARRAY send it as a single
+   *  byte[], older clients send it one Byte at a time.
+   *  @param first the first object of the IV, already read from the stream
    */
-  private void setIV() {
+  private void setIV(Object first) {
     try {
-      for (int i = 0; i < 16; i++) {
+      if (first instanceof byte[]) {
+        byte[] received = (byte[]) first;
+        if (received.length != iv.length) {
+          throw new Exception("Invalid IV length: " + received.length);
+        }
+        System.arraycopy(received, 0, iv, 0, iv.length);
+        return;
+      }
+
+      iv[0] = (byte) first;
+      for (int i = 1; i < 16; i++) {
         iv[i] = (byte)input.readObject();
       }
     } catch (Exception e) {
@@ -0,0 +1,196 @@
+/* SessionTicket seals and opens the tickets that let a client resume a session
+* without the RSA handshake, and derives the keys of a resumed session.
+*
+* After a handshake both sides compute a resumption secret from the session
+* keys. The server seals it, with an expiry time, into a ticket under one of
+* its SessionTicketKeys and hands the ticket to the client. To resume, the
+* client sends the ticket back with a fresh nonce, and both sides derive new
+* session and signing keys from the secret and that nonce.
+*
+* Ticket layout: key id (4) | IV (12) | AES-GCM(expiry (8) | secret)
+*/
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public final class SessionTicket {
+
+	private SessionTicket() {
+		// restrict instantiation
+	}
+
+	public static final String HMAC_SHA256_ALGORITHM = "HmacSHA256";
+
+	// length of the nonce a client sends with a ticket
+	public static final int NONCE_LENGTH = 16;
+
+	// labels that separate the values derived from one resumption secret
+	private static final String LABEL_RESUMPTION = "resumption";
+	private static final String LABEL_SESSION = "session key";
+	private static final String LABEL_SIGNING = "signing key";
+	private static final String LABEL_BINDER = "binder";
+
+	/**
+	 * This method computes the resumption secret of a session. Client and server
+	 * both call it once the session keys are agreed on.
+	 * @param sessionKey the AES session key
+	 * @param signingKey the HMAC key
+	 * @return the resumption secret
+	 */
+	public static byte[] resumptionSecret(Key sessionKey, Key signingKey) throws GeneralSecurityException
+	{
+		return hmac(signingKey.getEncoded(), LABEL_RESUMPTION, sessionKey.getEncoded());
+	}
+
+	/**
+	 * This method derives the AES session key of a resumed session.
+	 * @param secret the resumption secret
+	 * @param nonce the client's nonce
+	 * @return the session key
+	 */
+	public static Key deriveSessionKey(byte[] secret, byte[] nonce) throws GeneralSecurityException
+	{
+		return new SecretKeySpec(hmac(secret, LABEL_SESSION, nonce), 0, 16, "AES");
+	}
+
+	/**
+	 * This method derives the signing key of a resumed session.
+	 * @param secret the resumption secret
+	 * @param nonce the client's nonce
+	 * @return the signing key
+	 */
+	public static Key deriveSigningKey(byte[] secret, byte[] nonce) throws GeneralSecurityException
+	{
+		return new SecretKeySpec(hmac(secret, LABEL_SIGNING, nonce), 0, 16, "AES");
+	}
+
+	/**
+	 * This method computes the value that proves a RESUME request was made by
+	 * the holder of the resumption secret and that its nonce and requested
+	 * features were not altered on the way.
+	 * @param secret the resumption secret
+	 * @param nonce the client's nonce
+	 * @param requestedCapabilities the capability flags requested
+	 * @param requestedWindow the pipelining window requested
+	 * @return the binder
+	 */
+	public static byte[] binder(byte[] secret, byte[] nonce, int requestedCapabilities, int requestedWindow) throws GeneralSecurityException
+	{
+		byte[] data = new byte[nonce.length + 8];
+		System.arraycopy(nonce, 0, data, 0, nonce.length);
+		writeInt(data, nonce.length, requestedCapabilities);
+		writeInt(data, nonce.length + 4, requestedWindow);
+
+		return hmac(secret, LABEL_BINDER, data);
+	}
+
+	/**
+	 * This method checks a binder received with a RESUME request.
+	 * @return true if the binder is valid
+	 */
+	public static boolean verifyBinder(byte[] binder, byte[] secret, byte[] nonce, int requestedCapabilities, int requestedWindow) throws GeneralSecurityException
+	{
+		return MessageDigest.isEqual(binder, binder(secret, nonce, requestedCapabilities, requestedWindow));
+	}
+
+	/**
+	 * This method seals a resumption secret into a ticket under the current
+	 * ticket key.
+	 * @param secret the resumption secret
+	 * @param keys the server's ticket keys
+	 * @param crypto the ciphers of the connection issuing the ticket
+	 * @return the ticket
+	 */
+	public static byte[] issue(byte[] secret, SessionTicketKeys keys, CryptoContext crypto) throws GeneralSecurityException, IOException
+	{
+		int keyId = keys.currentKeyId();
+		byte[] iv = new byte[CryptoContext.GCM_IV_LENGTH];
+		crypto.nextBytes(iv);
+
+		ByteArrayOutputStream state = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(state);
+		out.writeLong(System.currentTimeMillis() + keys.getTicketLifetime());
+		out.write(secret);
+		out.flush();
+
+		Cipher cipher = crypto.aesGcm(Cipher.ENCRYPT_MODE, keys.getKey(keyId), iv);
+		byte[] header = new byte[4];
+		writeInt(header, 0, keyId);
+		cipher.updateAAD(header);
+		byte[] sealed = cipher.doFinal(state.toByteArray());
+
+		byte[] ticket = new byte[header.length + iv.length + sealed.length];
+		System.arraycopy(header, 0, ticket, 0, header.length);
+		System.arraycopy(iv, 0, ticket, header.length, iv.length);
+		System.arraycopy(sealed, 0, ticket, header.length + iv.length, sealed.length);
+		return ticket;
+	}
+
+	/**
+	 * This method opens a ticket issued by this server.
+	 * @param ticket the ticket sent by the client
+	 * @param keys the server's ticket keys
+	 * @param crypto the ciphers of the connection resuming the session
+	 * @return the resumption secret sealed in the ticket
+	 * @throws GeneralSecurityException if the ticket is forged, damaged, expired,
+	 *         or sealed under a key that has been rotated out
+	 */
+	public static byte[] open(byte[] ticket, SessionTicketKeys keys, CryptoContext crypto) throws GeneralSecurityException
+	{
+		int headerLength = 4 + CryptoContext.GCM_IV_LENGTH;
+		if (ticket.length <= headerLength) {
+			throw new GeneralSecurityException("Invalid ticket length: " + ticket.length);
+		}
+
+		int keyId = readInt(ticket, 0);
+		Key key = keys.getKey(keyId);
+		if (key == null) {
+			throw new GeneralSecurityException("Ticket key " + keyId + " is no longer available.");
+		}
+
+		byte[] iv = new byte[CryptoContext.GCM_IV_LENGTH];
+		System.arraycopy(ticket, 4, iv, 0, iv.length);
+		Cipher cipher = crypto.aesGcm(Cipher.DECRYPT_MODE, key, iv);
+		cipher.updateAAD(ticket, 0, 4);
+		byte[] state = cipher.doFinal(ticket, headerLength, ticket.length - headerLength);
+
+		long expiry = ((long) readInt(state, 0) << 32) | (readInt(state, 4) & 0xffffffffL);
+		if (System.currentTimeMillis() > expiry) {
+			throw new GeneralSecurityException("Ticket expired.");
+		}
+
+		byte[] secret = new byte[state.length - 8];
+		System.arraycopy(state, 8, secret, 0, secret.length);
+		return secret;
+	}
+
+	private static byte[] hmac(byte[] key, String label, byte[] data) throws GeneralSecurityException
+	{
+		Mac mac = Mac.getInstance(HMAC_SHA256_ALGORITHM);
+		mac.init(new SecretKeySpec(key, HMAC_SHA256_ALGORITHM));
+		mac.update(label.getBytes(StandardCharsets.UTF_8));
+		mac.update((byte) 0);
+
+		return mac.doFinal(data);
+	}
+
+	private static void writeInt(byte[] buf, int offset, int value)
+	{
+		buf[offset] = (byte) (value >>> 24);
+		buf[offset + 1] = (byte) (value >>> 16);
+		buf[offset + 2] = (byte) (value >>> 8);
+		buf[offset + 3] = (byte) value;
+	}
+
+	private static int readInt(byte[] buf, int offset)
+	{
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+			| ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+	}
+}
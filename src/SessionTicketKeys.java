@@ -0,0 +1,98 @@
+/* SessionTicketKeys holds the AES keys a server uses to seal session tickets.
+* The current key seals new tickets and is replaced at a fixed interval; the
+* key it replaced is kept so that tickets issued just before a rotation can
+* still be opened until they expire. Keys live only in memory, so restarting
+* the server invalidates every outstanding ticket.
+*
+* One instance is shared by all of a server's connection threads.
+*/
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+import javax.crypto.KeyGenerator;
+
+public class SessionTicketKeys {
+
+	// how long a ticket key seals new tickets before it is replaced
+	public static final long DEFAULT_ROTATION_INTERVAL_MS = 60 * 60 * 1000L;
+
+	private final long rotationInterval;
+	private final KeyGenerator keyGen;
+
+	private Key currentKey;
+	private int currentKeyId;
+	private long currentKeyCreated;
+
+	// the key replaced by the last rotation, or null
+	private Key previousKey = null;
+	private int previousKeyId;
+
+	public SessionTicketKeys()
+	{
+		this(DEFAULT_ROTATION_INTERVAL_MS);
+	}
+
+	public SessionTicketKeys(long _rotationInterval)
+	{
+		rotationInterval = _rotationInterval;
+
+		try {
+			keyGen = KeyGenerator.getInstance("AES");
+		} catch (GeneralSecurityException e) {
+			// every Java platform is required to provide AES
+			throw new IllegalStateException("Required cryptographic algorithm unavailable: " + e.getMessage(), e);
+		}
+
+		currentKeyId = new SecureRandom().nextInt();
+		currentKey = keyGen.generateKey();
+		currentKeyCreated = System.currentTimeMillis();
+	}
+
+	/**
+	 * This method returns how long a ticket stays valid. Tickets never outlive
+	 * the key that follows the one that sealed them, so one previous key is
+	 * always enough to open every unexpired ticket.
+	 * @return the ticket lifetime in milliseconds
+	 */
+	public long getTicketLifetime()
+	{
+		return rotationInterval;
+	}
+
+	/**
+	 * This method returns the id of the key that seals new tickets, rotating
+	 * the keys first if the current one is due to be replaced.
+	 * @return the id of the current key
+	 */
+	public synchronized int currentKeyId()
+	{
+		long now = System.currentTimeMillis();
+		if (now - currentKeyCreated >= rotationInterval) {
+			previousKey = currentKey;
+			previousKeyId = currentKeyId;
+
+			currentKeyId++;
+			currentKey = keyGen.generateKey();
+			currentKeyCreated = now;
+		}
+
+		return currentKeyId;
+	}
+
+	/**
+	 * This method looks up a ticket key by its id.
+	 * @param keyId the id carried by a ticket
+	 * @return the key, or null if it has been rotated out
+	 */
+	public synchronized Key getKey(int keyId)
+	{
+		if (keyId == currentKeyId) {
+			return currentKey;
+		} else if (previousKey != null && keyId == previousKeyId) {
+			return previousKey;
+		}
+
+		return null;
+	}
+}
@@ -5,10 +5,19 @@ public class ShareFile implements java.io.Serializable, Comparable<ShareFile> {
 	private String path;
 	private String owner;
 
+	// name of the stored data in the object layout, see FileServer.storedFile;
+	// null for files stored under the flat naming of earlier versions
+	private String objectId;
+
 	public ShareFile(String _owner, String _group, String _path) {
+		this(_owner, _group, _path, null);
+	}
+
+	public ShareFile(String _owner, String _group, String _path, String _objectId) {
 		group = _group;
 		owner = _owner;
 		path = _path;
+		objectId = _objectId;
 	}
 
 	public String getPath()
@@ -25,6 +34,10 @@ public class ShareFile implements java.io.Serializable, Comparable<ShareFile> {
 		return group;
 	}
 
+	public String getObjectId() {
+		return objectId;
+	}
+
 	public int compareTo(ShareFile rhs) {
 		if (path.compareTo(rhs.getPath())==0)return 0;
 		else if (path.compareTo(rhs.getPath())<0) return -1;
@@ -0,0 +1,55 @@
+/* SnapshotConverter rewrites the lists that earlier versions saved with Java
+* serialization in the compact form of SnapshotFile. The servers read both
+* forms and save in the compact one, but a list is only saved once it has
+* changed enough; converting at once makes the next start fast. Run it in the
+* directory of a stopped file server or group server:
+*
+*   java SnapshotConverter
+*
+* Each list keeps the journal generation it was saved at, so the journal is
+* replayed on top of it as before. Lists already in the compact form are left
+* alone, so it can simply be run again.
+*/
+
+import java.io.File;
+
+public class SnapshotConverter {
+
+	private static final String[] LISTS = {
+		FileServer.FILE_LIST_FILE,
+		GroupServer.USER_LIST_FILE,
+		GroupServer.GROUP_LIST_FILE,
+		GroupServer.KEY_LIST_FILE
+	};
+
+	public static void main(String[] args)
+	{
+		int converted = 0;
+		int failed = 0;
+		for (int i = 0; i < LISTS.length; i++) {
+			File file = new File(LISTS[i]);
+			if (!file.exists()) {
+				continue;
+			}
+
+			try {
+				if (SnapshotFile.isCompact(LISTS[i])) {
+					System.out.printf("%s is already in the compact form\n", LISTS[i]);
+					continue;
+				}
+
+				long start = System.currentTimeMillis();
+				long before = file.length();
+				SnapshotFile.Writable list = (SnapshotFile.Writable) SnapshotFile.readSerialized(LISTS[i]);
+				SnapshotFile.save(LISTS[i], list);
+				Journal.syncDirectory(file);
+				System.out.printf("Converted %s: %d bytes, was %d, in %d ms\n", LISTS[i], file.length(), before, System.currentTimeMillis() - start);
+				converted++;
+			} catch (Exception e) {
+				System.err.println("Error converting " + LISTS[i] + ": " + e.getMessage());
+				failed++;
+			}
+		}
+		System.out.printf("Snapshot conversion: %d lists converted, %d failed\n", converted, failed);
+	}
+}
@@ -0,0 +1,417 @@
+/* A SnapshotFile is the compact binary form the servers save their lists in:
+* FileList.bin, UserList.bin, GroupList.bin and KeyList.bin. Earlier versions
+* saved them with Java serialization, which reads back on one thread, keeps a
+* handle for every object read and writes each copy of a repeated string; at a
+* few million files loading took tens of seconds.
+*
+* A snapshot file starts with MAGIC and the format VERSION, followed by
+* sections, each framed by its length and a CRC32 of its contents like a
+* Journal record. What the sections hold is up to the list; FileList writes
+* its files in chunks that are decoded in parallel. Strings that repeat, such
+* as owners and groups, are written once in a StringTable and referred to by
+* number, and read back as one shared String each. Strings are written as the
+* length of their UTF-8 encoding and the encoding, see writeText, so that
+* paths and names of any length can be saved.
+*
+* Files saved by earlier versions start with the Java serialization magic
+* instead and are still read, see load; the servers rewrite them in this form
+* the next time they save, and SnapshotConverter rewrites them at once.
+*/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+public class SnapshotFile {
+
+	// "SNAP"; Java serialization streams start with 0xACED instead
+	public static final int MAGIC = 0x534E4150;
+
+	// version 1 wrote strings with writeUTF, which limits them to 65535 bytes,
+	// and versions 1 and 2 did not save FileList's unfinished striped uploads
+	public static final int VERSION = 3;
+
+	public static final String LOAD_THREADS_PROPERTY = "snapshot.loadThreads";
+
+	// sections longer than this are taken to be corrupt
+	private static final int MAX_SECTION = 256 * 1024 * 1024;
+
+	private SnapshotFile() {
+		// restrict instantiation
+	}
+
+	/**
+	 * This method checks whether a saved list is in the compact form or was
+	 * saved with Java serialization.
+	 * @param name the file
+	 * @return true if the file starts with MAGIC
+	 * @throws java.io.FileNotFoundException if there is no such file
+	 */
+	public static boolean isCompact(String name) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new FileInputStream(name));
+		try {
+			return in.readInt() == MAGIC;
+		} catch (EOFException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * This method loads a saved list: in the compact form if the file starts
+	 * with MAGIC, otherwise with Java serialization, as earlier versions saved it.
+	 * @param name the file
+	 * @param decoder reads the list in the compact form
+	 * @return the list
+	 * @throws java.io.FileNotFoundException if there is no such file
+	 */
+	public static Object load(String name, Decoder decoder) throws IOException, ClassNotFoundException
+	{
+		InputStream in = new BufferedInputStream(new FileInputStream(name), 64 * 1024);
+		try {
+			in.mark(4);
+			int magic = new DataInputStream(in).readInt();
+			in.reset();
+			if (magic == MAGIC) {
+				return decoder.readSnapshot(new Reader(in));
+			}
+			return new ObjectInputStream(in).readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * This method reads a list saved with Java serialization by an earlier version.
+	 * @param name the file
+	 * @return the list
+	 */
+	public static Object readSerialized(String name) throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(name), 64 * 1024));
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * This method saves a list in the compact form. It is written to a
+	 * temporary file, forced to disk and renamed over the file, so the file
+	 * always holds a whole list; the caller forces the rename to disk with
+	 * Journal.syncDirectory.
+	 * @param name the file
+	 * @param list the list
+	 */
+	public static void save(String name, Writable list) throws IOException
+	{
+		File temp = new File(name + ".tmp");
+		FileOutputStream fos = new FileOutputStream(temp);
+		try {
+			BufferedOutputStream out = new BufferedOutputStream(fos, 64 * 1024);
+			list.writeSnapshot(new Writer(out));
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		Files.move(temp.toPath(), new File(name).toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * This method returns the number of threads to decode a snapshot with: the
+	 * value of the snapshot.loadThreads property if set, otherwise the number
+	 * of processors.
+	 * @return the number of threads
+	 */
+	public static int loadThreads()
+	{
+		return Integer.getInteger(LOAD_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()).intValue();
+	}
+
+	/**
+	 * This method writes an int in one to five bytes, seven bits at a time,
+	 * so that small numbers take one byte.
+	 * @param out the stream
+	 * @param value the value, not negative
+	 */
+	public static void writeVarInt(DataOutputStream out, int value) throws IOException
+	{
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	public static int readVarInt(DataInputStream in) throws IOException
+	{
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed number in snapshot");
+	}
+
+	/**
+	 * This method writes a string of any length, as Journal.writeUTF8 does.
+	 * @param out the section
+	 * @param s the string, not null
+	 */
+	public static void writeText(DataOutputStream out, String s) throws IOException
+	{
+		Journal.writeUTF8(out, s);
+	}
+
+	/**
+	 * This method reads a string written by writeText, or by writeUTF in a
+	 * snapshot of version 1.
+	 * @param in the section
+	 * @param version the snapshot's version, from Reader.getVersion
+	 * @return the string
+	 */
+	public static String readText(DataInputStream in, int version) throws IOException
+	{
+		return version == 1 ? in.readUTF() : Journal.readUTF8(in);
+	}
+
+	/**
+	 * This method reads a StringTable written by StringTable.write.
+	 * @param in the section holding it
+	 * @param version the snapshot's version, from Reader.getVersion
+	 * @return the strings by number, with null as number 0
+	 */
+	public static String[] readStrings(DataInputStream in, int version) throws IOException
+	{
+		String[] strings = new String[readVarInt(in) + 1];
+		for (int i = 1; i < strings.length; i++) {
+			strings[i] = readText(in, version);
+		}
+		return strings;
+	}
+
+	/**
+	 * This method reads a string number written with StringTable.writeId.
+	 * @param in the section
+	 * @param strings the table, from readStrings
+	 * @return the string, which may be null
+	 */
+	public static String readString(DataInputStream in, String[] strings) throws IOException
+	{
+		int id = readVarInt(in);
+		if (id >= strings.length) {
+			throw new IOException("String " + id + " is not in the snapshot's table");
+		}
+		return strings[id];
+	}
+
+	/**
+	 * A list that is saved in the compact form.
+	 */
+	public interface Writable
+	{
+		/**
+		 * @param writer the snapshot file, started; the list writes its sections
+		 */
+		void writeSnapshot(Writer writer) throws IOException;
+	}
+
+	/**
+	 * Reads a list from the sections of a snapshot file.
+	 */
+	public interface Decoder
+	{
+		Object readSnapshot(Reader reader) throws IOException;
+	}
+
+	/**
+	 * Numbers the distinct strings written to a snapshot, so that each is
+	 * written once. Null is number 0.
+	 */
+	public static class StringTable
+	{
+		private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+		private final ArrayList<String> strings = new ArrayList<String>();
+
+		/**
+		 * This method adds a string to the table, if it is not already there.
+		 * @param s the string, which may be null
+		 * @return its number
+		 */
+		public int add(String s)
+		{
+			if (s == null) {
+				return 0;
+			}
+			Integer id = ids.get(s);
+			if (id == null) {
+				strings.add(s);
+				id = strings.size();
+				ids.put(s, id);
+			}
+			return id;
+		}
+
+		/**
+		 * This method writes the number of a string added to the table.
+		 * @param out the section
+		 * @param s the string, which may be null
+		 */
+		public void writeId(DataOutputStream out, String s) throws IOException
+		{
+			writeVarInt(out, s == null ? 0 : ids.get(s));
+		}
+
+		public void write(DataOutputStream out) throws IOException
+		{
+			writeVarInt(out, strings.size());
+			for (int i = 0; i < strings.size(); i++) {
+				writeText(out, strings.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Writes a snapshot file section by section. Each section is built in
+	 * memory through section() and written with endSection().
+	 */
+	public static class Writer
+	{
+		private final DataOutputStream out;
+		private final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+		private final DataOutputStream section = new DataOutputStream(contents);
+		private final CRC32 crc = new CRC32();
+
+		/**
+		 * This method starts a snapshot file.
+		 * @param _out the file, which the caller flushes and closes
+		 */
+		public Writer(OutputStream _out) throws IOException
+		{
+			out = new DataOutputStream(_out);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+		}
+
+		/**
+		 * This method returns the stream the contents of the current section
+		 * are written to.
+		 * @return the stream
+		 */
+		public DataOutputStream section()
+		{
+			return section;
+		}
+
+		/**
+		 * This method writes the current section to the file and starts the next.
+		 */
+		public void endSection() throws IOException
+		{
+			byte[] bytes = contents.toByteArray();
+			crc.reset();
+			crc.update(bytes, 0, bytes.length);
+			out.writeInt(bytes.length);
+			out.writeInt((int) crc.getValue());
+			out.write(bytes);
+			contents.reset();
+		}
+	}
+
+	/**
+	 * Reads a snapshot file section by section.
+	 */
+	public static class Reader
+	{
+		private final DataInputStream in;
+		private final int version;
+		private final CRC32 crc = new CRC32();
+
+		/**
+		 * This method opens a snapshot file.
+		 * @param _in the file, which the caller closes
+		 * @throws IOException if it is not a snapshot file of a known version
+		 */
+		public Reader(InputStream _in) throws IOException
+		{
+			in = new DataInputStream(_in);
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a snapshot file");
+			}
+			version = in.readInt();
+			if (version < 1 || version > VERSION) {
+				throw new IOException("Unsupported snapshot version " + version);
+			}
+		}
+
+		public int getVersion()
+		{
+			return version;
+		}
+
+		/**
+		 * This method reads the next section.
+		 * @return its contents
+		 * @throws IOException if the section is missing or corrupt
+		 */
+		public byte[] nextSection() throws IOException
+		{
+			int length = in.readInt();
+			int checksum = in.readInt();
+			if (length < 0 || length > MAX_SECTION) {
+				throw new IOException("Corrupt snapshot section");
+			}
+
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			crc.reset();
+			crc.update(bytes, 0, length);
+			if ((int) crc.getValue() != checksum) {
+				throw new IOException("Corrupt snapshot section");
+			}
+			return bytes;
+		}
+
+		/**
+		 * This method reads the next section for decoding.
+		 * @return a stream over its contents
+		 */
+		public DataInputStream nextSectionStream() throws IOException
+		{
+			return open(nextSection());
+		}
+	}
+
+	/**
+	 * This method returns a stream over a section's contents.
+	 * @param section the contents, from Reader.nextSection
+	 * @return the stream
+	 */
+	public static DataInputStream open(byte[] section)
+	{
+		return new DataInputStream(new ByteArrayInputStream(section));
+	}
+}
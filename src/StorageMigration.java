@@ -0,0 +1,209 @@
+/* StorageMigration moves shared files stored under the flat naming of earlier
+* versions (shared_files/_path_with_underscores) into the object layout, see
+* FileServer.storedFile. It runs in the background of a file server started
+* with -Dstorage.migrate=true, while the files stay available, or on its own in
+* the directory of a stopped file server:
+*
+*   java StorageMigration
+*
+* Each file is hard linked to a new object, or copied where the file system
+* has no hard links, and its FileList entry switched to the object's id, which
+* the FileList journal makes durable at once. The flat names of a batch of
+* switched files are removed only after a grace period, so a connection that
+* looked up a file just before its switch still finds it under the old name,
+* and a crash at any point leaves a FileList whose every entry names a file on
+* disk. A migration that was stopped can simply be run again; files already
+* switched are skipped. The journal is compacted once all files are switched.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class StorageMigration implements Runnable {
+
+	public static final String MIGRATE_PROPERTY = "storage.migrate";
+
+	// how long a flat name outlives the switch of its file
+	public static final long DEFAULT_GRACE_MS = 10000;
+
+	// files switched per grace period
+	private static final int BATCH_SIZE = 1000;
+
+	private final long graceMs;
+
+	/**
+	 * @param _graceMs how long to keep flat names after their files are
+	 *        switched, for connections that looked them up just before
+	 */
+	public StorageMigration(long _graceMs)
+	{
+		graceMs = _graceMs;
+	}
+
+	public static void main(String[] args)
+	{
+		if (!new File(FileServer.FILE_LIST_FILE).exists()) {
+			System.out.printf("No %s here; run StorageMigration in the file server's directory\n", FileServer.FILE_LIST_FILE);
+			return;
+		}
+
+		FileServer.loadFileList();
+		new StorageMigration(0).run();
+	}
+
+	public void run()
+	{
+		try {
+			migrate();
+		} catch (Exception e) {
+			System.err.println("Error migrating shared files: " + e.getMessage());
+			e.printStackTrace(System.err);
+		}
+	}
+
+	/**
+	 * This method migrates every file in the FileList that has no object id.
+	 * @return the number of files migrated
+	 */
+	public int migrate() throws IOException, InterruptedException
+	{
+		List<ShareFile> legacy = FileServer.fileList.getLegacyFiles();
+		if (legacy.isEmpty()) {
+			return 0;
+		}
+		System.out.printf("Migrating %d files to the object layout\n", legacy.size());
+		new File(FileServer.SHARED_FILES_DIR, FileServer.STAGING_DIR).mkdirs();
+
+		// paths differing only in slashes and underscores share a flat name, which
+		// is removed once every entry naming it is switched; a name that is kept
+		// because one of its entries failed to migrate is dropped from the map
+		Map<String, Integer> entries = new HashMap<String, Integer>();
+		for (int i = 0; i < legacy.size(); i++) {
+			String name = FileServer.legacyFile(legacy.get(i).getPath()).getPath();
+			Integer count = entries.get(name);
+			entries.put(name, count == null ? 1 : count + 1);
+		}
+
+		int migrated = 0;
+		int failed = 0;
+		List<ShareFile> switched = new ArrayList<ShareFile>();
+		List<File> flatNames = new ArrayList<File>();
+		for (int i = 0; i < legacy.size(); i++) {
+			ShareFile file = legacy.get(i);
+			File flat = FileServer.legacyFile(file.getPath());
+			ShareFile moved = migrateFile(file, flat);
+			if (moved != null) {
+				switched.add(moved);
+				migrated++;
+			}
+			else if (FileServer.fileList.getFile(file.getPath()) == file) {
+				entries.remove(flat.getPath());
+				failed++;
+			}
+
+			Integer left = entries.get(flat.getPath());
+			if (left != null) {
+				if (left == 1) {
+					entries.remove(flat.getPath());
+					flatNames.add(flat);
+				} else {
+					entries.put(flat.getPath(), left - 1);
+				}
+			}
+
+			if (switched.size() >= BATCH_SIZE || i == legacy.size() - 1) {
+				finishBatch(switched, flatNames);
+			}
+		}
+
+		if (migrated > 0) {
+			FileServer.saveFileList();
+		}
+		System.out.printf("Storage migration: %d files migrated, %d failed\n", migrated, failed);
+		return migrated;
+	}
+
+	/**
+	 * This method moves one file into the object layout. The new object is made
+	 * in the staging directory and renamed into place, so it is only ever seen
+	 * complete, then the file's entry is switched to it.
+	 * @param file the file's entry, without an object id
+	 * @param flat where the file is stored
+	 * @return the switched entry, or null if the file was not migrated
+	 * @throws IOException if the FileList journal could not be written
+	 */
+	private ShareFile migrateFile(ShareFile file, File flat) throws IOException
+	{
+		if (!flat.exists()) {
+			if (FileServer.fileList.getFile(file.getPath()) == file) {
+				System.err.println("Error migrating file " + file.getPath() + ": missing from disk");
+			}
+			return null;
+		}
+
+		String objectId = FileServer.newObjectId();
+		File staged = new File(new File(FileServer.SHARED_FILES_DIR, FileServer.STAGING_DIR), objectId);
+		File stored = FileServer.objectFile(objectId);
+		try {
+			try {
+				Files.createLink(staged.toPath(), flat.toPath());
+			} catch (UnsupportedOperationException e) {
+				Files.copy(flat.toPath(), staged.toPath());
+			} catch (FileSystemException e) {
+				Files.copy(flat.toPath(), staged.toPath());
+			}
+			FileServer.createObjectDirectory(stored);
+			Files.move(staged.toPath(), stored.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			UploadWriter.syncDirectory(stored.getParentFile());
+		} catch (IOException e) {
+			staged.delete();
+			// a file deleted since the list was read is not a failure
+			if (FileServer.fileList.getFile(file.getPath()) == file) {
+				System.err.println("Error migrating file " + file.getPath() + ": " + e.getMessage());
+			}
+			return null;
+		}
+
+		ShareFile moved = FileServer.fileList.migrateFile(file, objectId);
+		if (moved == null) {
+			stored.delete();
+		}
+		return moved;
+	}
+
+	/**
+	 * This method removes the flat names that are no longer used once the
+	 * grace period is over.
+	 * @param switched the entries switched in this batch, cleared on return
+	 * @param flatNames the flat names to remove, cleared on return
+	 */
+	private void finishBatch(List<ShareFile> switched, List<File> flatNames) throws IOException, InterruptedException
+	{
+		if (!switched.isEmpty()) {
+			Thread.sleep(graceMs);
+		}
+
+		for (int i = 0; i < flatNames.size(); i++) {
+			flatNames.get(i).delete();
+		}
+
+		// a connection that looked a file up before its switch deletes it under
+		// its flat name, which leaves the new object behind
+		for (int i = 0; i < switched.size(); i++) {
+			ShareFile moved = switched.get(i);
+			if (FileServer.fileList.getFile(moved.getPath()) != moved) {
+				FileServer.storedFile(moved).delete();
+			}
+		}
+
+		switched.clear();
+		flatNames.clear();
+	}
+}
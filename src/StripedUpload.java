@@ -0,0 +1,159 @@
+/* A StripedUpload is a file being uploaded in byte ranges over several
+* connections at once. The connection that opens it (UPLOADS) fixes the size
+* of the file; other connections of the same user then send ranges of it
+* (UPLOADR), which are written in place through an UploadWriter per range on a
+* shared AsynchronousFileChannel, and the opening connection makes the file
+* visible once every byte has arrived and is on disk (UPLOADC).
+*
+* Instances are shared by the connection threads of one file server; all
+* methods are thread safe.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class StripedUpload {
+
+	private final String id;
+	private final ShareFile record;
+	private final Object claim;
+	private final File file;
+	private final long size;
+	private final AsynchronousFileChannel channel;
+
+	// ranges received in full, as start offset to end offset, merged where they touch
+	private final TreeMap<Long, Long> received = new TreeMap<Long, Long>();
+
+	/**
+	 * This method creates the partial file of a striped upload at its full size.
+	 * @param _id the id the client refers to the upload by
+	 * @param _record the path, owner, group and object id of the file
+	 * @param _claim the claim on the path, from FileList.claimUpload
+	 * @param _file the partial file
+	 * @param _size the size of the complete file
+	 */
+	public StripedUpload(String _id, ShareFile _record, Object _claim, File _file, long _size) throws IOException
+	{
+		id = _id;
+		record = _record;
+		claim = _claim;
+		file = _file;
+		size = _size;
+		channel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	public String getId()
+	{
+		return id;
+	}
+
+	public ShareFile getRecord()
+	{
+		return record;
+	}
+
+	public String getPath()
+	{
+		return record.getPath();
+	}
+
+	public String getGroup()
+	{
+		return record.getGroup();
+	}
+
+	public String getOwner()
+	{
+		return record.getOwner();
+	}
+
+	public Object getClaim()
+	{
+		return claim;
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	public long getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * This method returns the partial file, which the ranges are written to.
+	 * @return the open file
+	 */
+	public AsynchronousFileChannel getChannel()
+	{
+		return channel;
+	}
+
+	/**
+	 * This method records that a range has been received in full.
+	 * @param offset the first byte of the range
+	 * @param length the number of bytes in the range
+	 */
+	public synchronized void addRange(long offset, long length)
+	{
+		long start = offset;
+		long end = offset + length;
+
+		// merge with the ranges it overlaps or touches
+		Map.Entry<Long, Long> before = received.floorEntry(start);
+		if (before != null && before.getValue() >= start) {
+			start = before.getKey();
+			end = Math.max(end, before.getValue());
+		}
+
+		Iterator<Map.Entry<Long, Long>> after = received.tailMap(start, true).entrySet().iterator();
+		while (after.hasNext()) {
+			Map.Entry<Long, Long> range = after.next();
+			if (range.getKey() > end) {
+				break;
+			}
+			end = Math.max(end, range.getValue());
+			after.remove();
+		}
+
+		received.put(start, end);
+	}
+
+	/**
+	 * This method checks whether every byte of the file has been received.
+	 * @return true if the received ranges cover the whole file
+	 */
+	public synchronized boolean isComplete()
+	{
+		if (size == 0) {
+			return true;
+		}
+
+		Map.Entry<Long, Long> first = received.firstEntry();
+		return first != null && first.getKey() == 0 && first.getValue() >= size;
+	}
+
+	/**
+	 * This method makes the written ranges durable as the upload durability
+	 * policy requires; see UploadWriter.
+	 */
+	public void sync() throws IOException
+	{
+		UploadWriter.sync(channel);
+	}
+
+	/**
+	 * This method closes the partial file.
+	 */
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+}
@@ -0,0 +1,321 @@
+/* An UploadWriter writes the data of an upload to disk off the connection's
+* thread. Chunks are handed over as they arrive and written in order through an
+* AsynchronousFileChannel, so the connection goes back to reading the network
+* while earlier chunks are still being written.
+*
+* Chunks smaller than a BufferPool size class are copied into batches of
+* BATCH_SIZE bytes, so a stream of 4 KB chunks reaches the disk as large
+* writes; larger chunks are written from the array they arrived in. Only one
+* write is outstanding at a time, so the file always holds a prefix of the data
+* handed over and a partial file can be resumed from its length. At most
+* MAX_PENDING bytes wait to be written per upload; past that, write() blocks
+* until the disk catches up.
+*
+* When written data is guaranteed to be on disk is set for the whole server by
+* the upload.durability property:
+*   none      whenever the operating system writes it back
+*   eof       before the upload is acknowledged (the default)
+*   periodic  as with eof, and also forced at least every upload.syncInterval
+*             ms (default 1000) while the upload is being written, which bounds
+*             what a resumable upload loses in a crash
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class UploadWriter {
+
+	public static final String DURABILITY_PROPERTY = "upload.durability";
+	public static final String DURABILITY_NONE = "none";
+	public static final String DURABILITY_EOF = "eof";
+	public static final String DURABILITY_PERIODIC = "periodic";
+
+	public static final String SYNC_INTERVAL_PROPERTY = "upload.syncInterval";
+	public static final long DEFAULT_SYNC_INTERVAL_MS = 1000;
+
+	// size of the batches small chunks are coalesced into
+	public static final int BATCH_SIZE = 1024 * 1024;
+
+	// bytes per upload that may wait to be written before write() blocks
+	public static final long MAX_PENDING = 8L * 1024 * 1024;
+
+	private static final String DURABILITY = System.getProperty(DURABILITY_PROPERTY, DURABILITY_EOF);
+	private static final long SYNC_INTERVAL_MS = Long.getLong(SYNC_INTERVAL_PROPERTY, DEFAULT_SYNC_INTERVAL_MS).longValue();
+
+	private final AsynchronousFileChannel channel;
+	private final CompletionHandler<Integer, Pending> handler = new WriteHandler();
+
+	// offset in the file of the next byte handed over
+	private long position;
+
+	// the batch being filled on the connection's thread
+	private byte[] batch = null;
+	private int batchLength = 0;
+
+	// guards the fields below. A lock rather than the monitor, so a virtual
+	// thread waiting for the disk parks instead of holding on to its carrier
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition progress = lock.newCondition();
+
+	// writes not yet completed, the first of them in progress
+	private final ArrayDeque<Pending> queue = new ArrayDeque<Pending>();
+	private long pendingBytes = 0;
+	private boolean writing = false;
+	private IOException failure = null;
+	private long lastSync = System.currentTimeMillis();
+
+	/**
+	 * @param _channel the file to write to, which the caller closes
+	 * @param _position the offset in the file of the first byte to write
+	 */
+	public UploadWriter(AsynchronousFileChannel _channel, long _position)
+	{
+		channel = _channel;
+		position = _position;
+	}
+
+	/**
+	 * This method hands a chunk over to be written after the ones before it.
+	 * The writer takes over the array and releases it to the shared BufferPool.
+	 * @param buf the chunk
+	 * @param n the number of bytes of data in it
+	 * @throws IOException if an earlier write failed
+	 */
+	public void write(byte[] buf, int n) throws IOException
+	{
+		if (n >= BufferPool.GRANULE) {
+			flushBatch();
+			submit(buf, n);
+			return;
+		}
+
+		if (batch != null && batchLength + n > batch.length) {
+			flushBatch();
+		}
+		if (batch == null) {
+			batch = BufferPool.shared().acquireExact(BATCH_SIZE);
+		}
+
+		System.arraycopy(buf, 0, batch, batchLength, n);
+		batchLength += n;
+		BufferPool.shared().release(buf);
+		if (batchLength == batch.length) {
+			flushBatch();
+		}
+	}
+
+	/**
+	 * This method waits until everything handed over has been written.
+	 * @throws IOException if a write failed
+	 */
+	public void drain() throws IOException
+	{
+		flushBatch();
+
+		lock.lock();
+		try {
+			while (writing && failure == null) {
+				try {
+					progress.await();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted waiting for upload writes");
+				}
+			}
+
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * This method waits until everything handed over has been written, then
+	 * makes it durable as the durability policy requires.
+	 * @throws IOException if a write failed
+	 */
+	public void finish() throws IOException
+	{
+		drain();
+		sync(channel);
+	}
+
+	/**
+	 * This method forces a file being uploaded to disk, unless the durability
+	 * policy is none.
+	 * @param channel the file
+	 */
+	public static void sync(AsynchronousFileChannel channel) throws IOException
+	{
+		if (!DURABILITY_NONE.equals(DURABILITY)) {
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * This method forces a directory's entries to disk, so that a file renamed
+	 * into it stays renamed after a crash, unless the durability policy is none.
+	 * Directories cannot be opened on every platform; there it does nothing.
+	 * @param dir the directory
+	 */
+	public static void syncDirectory(File dir)
+	{
+		if (DURABILITY_NONE.equals(DURABILITY)) {
+			return;
+		}
+
+		try {
+			FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// the rename is still made, just not forced to disk
+		}
+	}
+
+	private void flushBatch() throws IOException
+	{
+		if (batch == null) {
+			return;
+		}
+
+		byte[] full = batch;
+		int length = batchLength;
+		batch = null;
+		batchLength = 0;
+		if (length == 0) {
+			BufferPool.shared().release(full);
+			return;
+		}
+
+		submit(full, length);
+	}
+
+	private void submit(byte[] array, int n) throws IOException
+	{
+		Pending pending;
+		lock.lock();
+		try {
+			while (failure == null && pendingBytes > 0 && pendingBytes + n > MAX_PENDING) {
+				try {
+					progress.await();
+				} catch (InterruptedException e) {
+					BufferPool.shared().release(array);
+					throw new InterruptedIOException("Interrupted waiting for upload writes");
+				}
+			}
+
+			if (failure != null) {
+				BufferPool.shared().release(array);
+				throw failure;
+			}
+
+			pending = new Pending(array, n, position);
+			position += n;
+			pendingBytes += n;
+			queue.add(pending);
+			if (writing) {
+				return;
+			}
+			writing = true;
+		} finally {
+			lock.unlock();
+		}
+
+		channel.write(pending.data, pending.position, pending, handler);
+	}
+
+	/**
+	 * A chunk or batch waiting to be written, and where it goes.
+	 */
+	private static class Pending
+	{
+		private final byte[] array;
+		private final ByteBuffer data;
+		private final long position;
+
+		public Pending(byte[] _array, int length, long _position)
+		{
+			array = _array;
+			data = ByteBuffer.wrap(_array, 0, length);
+			position = _position;
+		}
+	}
+
+	/**
+	 * Completes one write and starts the next, on a thread of the channel.
+	 */
+	private class WriteHandler implements CompletionHandler<Integer, Pending>
+	{
+		public void completed(Integer written, Pending done)
+		{
+			if (done.data.hasRemaining()) {
+				channel.write(done.data, done.position + done.data.position(), done, this);
+				return;
+			}
+			lock.lock();
+			try {
+				queue.poll();
+				pendingBytes -= done.data.limit();
+				progress.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			BufferPool.shared().release(done.array);
+
+			if (DURABILITY_PERIODIC.equals(DURABILITY) && System.currentTimeMillis() - lastSync >= SYNC_INTERVAL_MS) {
+				try {
+					channel.force(false);
+				} catch (IOException e) {
+					failed(e, done);
+					return;
+				}
+				lastSync = System.currentTimeMillis();
+			}
+
+			Pending next;
+			lock.lock();
+			try {
+				next = queue.peek();
+				if (next == null) {
+					writing = false;
+					progress.signalAll();
+					return;
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			channel.write(next.data, next.position, next, this);
+		}
+
+		public void failed(Throwable exc, Pending done)
+		{
+			lock.lock();
+			try {
+				failure = exc instanceof IOException ? (IOException) exc : new IOException(exc.getMessage(), exc);
+				while (!queue.isEmpty()) {
+					BufferPool.shared().release(queue.poll().array);
+				}
+				pendingBytes = 0;
+				writing = false;
+				progress.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
@@ -1,27 +1,76 @@
-/* This list represents the users on the server */
-
+/* This list represents the users on the server
+*
+* A snapshot of the list is taken without stopping changes: the list shares
+* its containers with the snapshot, and copies them, and each user, the first
+* time they are changed while the snapshot is written. See snapshot.
+*
+* The list is saved in the compact form of SnapshotFile, see writeSnapshot,
+* with each group name written once however many users are in the group.
+*/
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.*;
 import java.security.SecureRandom;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
-public class UserList implements java.io.Serializable {
+public class UserList implements java.io.Serializable, SnapshotFile.Writable {
 
 	private static final long serialVersionUID = 7600343803563417992L;
 	private Hashtable<String, User> list = new Hashtable<String, User>();
 	private ArrayList<String> users = new ArrayList<String>(); //arraylist to keep a straight up list of users on the server
 
+	// marks this list's records in the group server's journal
+	public static final byte JOURNAL_TAG = 1;
+
+	// kinds of journal records
+	private static final byte ADD_USER = 1;
+	private static final byte DELETE_USER = 2;
+	private static final byte ADD_GROUP = 3;
+	private static final byte REMOVE_GROUP = 4;
+	private static final byte ADD_OWNERSHIP = 5;
+	private static final byte REMOVE_OWNERSHIP = 6;
+
+	// the journal changes are appended to, or null if they are not journaled
+	private transient Journal journal;
+
+	// the journal generation this list is a snapshot at; 0 in lists saved
+	// before there was a journal
+	private long journalGeneration;
+
+	// while a snapshot is taken: the containers it holds, and the users copied
+	// since it was, which the snapshot holds the originals of
+	private transient Hashtable<String, User> snapshotList;
+	private transient ArrayList<String> snapshotUsers;
+	private transient HashSet<String> copiedUsers;
+
+	// reads lists written by writeSnapshot, for SnapshotFile.load
+	public static final SnapshotFile.Decoder DECODER = new SnapshotFile.Decoder() {
+		public Object readSnapshot(SnapshotFile.Reader reader) throws IOException
+		{
+			UserList list = new UserList();
+			list.readUsers(reader.nextSectionStream(), reader.getVersion());
+			return list;
+		}
+	};
+
 	public synchronized void addUser(String username, String password)
 	{
 		User newUser = new User(password);
+		copyOnWrite();
 		list.put(username, newUser);
 		users.add(username);
+		log(ADD_USER, username, newUser.salt, newUser.hash);
 	}
 
 	public synchronized void deleteUser(String username)
 	{
+		copyOnWrite();
 		list.remove(username);
 		users.remove(username);
+		log(DELETE_USER, username);
 	}
 
 	/**
@@ -71,22 +120,26 @@ public class UserList implements java.io.Serializable {
 
 	public synchronized void addGroup(String user, String groupname)
 	{
-		list.get(user).addGroup(groupname);
+		changeUser(user).addGroup(groupname);
+		log(ADD_GROUP, user, groupname);
 	}
 
 	public synchronized void removeGroup(String user, String groupname)
 	{
-		list.get(user).removeGroup(groupname);
+		changeUser(user).removeGroup(groupname);
+		log(REMOVE_GROUP, user, groupname);
 	}
 
 	public synchronized void addOwnership(String user, String groupname)
 	{
-		list.get(user).addOwnership(groupname);
+		changeUser(user).addOwnership(groupname);
+		log(ADD_OWNERSHIP, user, groupname);
 	}
 
 	public synchronized void removeOwnership(String user, String groupname)
 	{
-		list.get(user).removeOwnership(groupname);
+		changeUser(user).removeOwnership(groupname);
+		log(REMOVE_OWNERSHIP, user, groupname);
 	}
 	/* Added this method so the server can loop through the list of users
 	*  when it needs to remove them all from a group that has been deleted
@@ -96,6 +149,207 @@ public class UserList implements java.io.Serializable {
 		return users;
 	}
 
+	/**
+	 * This method journals every further change to the list. The group server
+	 * commits the journal before answering a request, see GroupServer.
+	 * @param _journal the journal
+	 */
+	public synchronized void attachJournal(Journal _journal)
+	{
+		journal = _journal;
+	}
+
+	public synchronized long getJournalGeneration()
+	{
+		return journalGeneration;
+	}
+
+	/**
+	 * This method takes a snapshot of the list, so that serializing the list
+	 * writes it as it is now while changes go on, until endSnapshot. It only
+	 * marks the containers as shared, whatever the number of users.
+	 * @param generation the journal generation the snapshot is taken at
+	 */
+	public synchronized void snapshot(long generation)
+	{
+		journalGeneration = generation;
+		snapshotList = list;
+		snapshotUsers = users;
+		copiedUsers = new HashSet<String>();
+	}
+
+	public synchronized void endSnapshot()
+	{
+		snapshotList = null;
+		snapshotUsers = null;
+		copiedUsers = null;
+	}
+
+	/**
+	 * This method copies the containers before a change, if a snapshot holds
+	 * them. The caller holds the list's monitor.
+	 */
+	private void copyOnWrite()
+	{
+		if (snapshotList != null && list == snapshotList) {
+			list = new Hashtable<String, User>(list);
+			users = new ArrayList<String>(users);
+		}
+	}
+
+	/**
+	 * This method returns a user to change, copied first if a snapshot holds
+	 * it. The caller holds the list's monitor.
+	 * @param username the user
+	 * @return the user
+	 */
+	private User changeUser(String username)
+	{
+		copyOnWrite();
+		User user = list.get(username);
+		if (snapshotList != null && copiedUsers.add(username)) {
+			user = new User(user);
+			list.put(username, user);
+		}
+		return user;
+	}
+
+	/**
+	 * This method writes the list in the compact form, in one section: the
+	 * journal generation, the table of group names, then each user's name,
+	 * salt and hash and the numbers of their groups. While a snapshot is
+	 * taken, the list is written as it was when it was taken.
+	 * @param writer the snapshot file
+	 */
+	public void writeSnapshot(SnapshotFile.Writer writer) throws IOException
+	{
+		if (snapshotList != null) {
+			writeUsers(writer, snapshotList, snapshotUsers);
+			return;
+		}
+
+		synchronized (this) {
+			writeUsers(writer, list, users);
+		}
+	}
+
+	private void writeUsers(SnapshotFile.Writer writer, Hashtable<String, User> userTable, ArrayList<String> userNames) throws IOException
+	{
+		SnapshotFile.StringTable strings = new SnapshotFile.StringTable();
+		for (int i = 0; i < userNames.size(); i++) {
+			User user = userTable.get(userNames.get(i));
+			for (int j = 0; j < user.groups.size(); j++) {
+				strings.add(user.groups.get(j));
+			}
+			for (int j = 0; j < user.ownership.size(); j++) {
+				strings.add(user.ownership.get(j));
+			}
+		}
+
+		DataOutputStream out = writer.section();
+		out.writeLong(journalGeneration);
+		strings.write(out);
+		SnapshotFile.writeVarInt(out, userNames.size());
+		for (int i = 0; i < userNames.size(); i++) {
+			User user = userTable.get(userNames.get(i));
+			SnapshotFile.writeText(out, userNames.get(i));
+			SnapshotFile.writeVarInt(out, user.salt.length);
+			out.write(user.salt);
+			out.writeBoolean(user.hash != null);
+			if (user.hash != null) {
+				SnapshotFile.writeText(out, user.hash);
+			}
+			SnapshotFile.writeVarInt(out, user.groups.size());
+			for (int j = 0; j < user.groups.size(); j++) {
+				strings.writeId(out, user.groups.get(j));
+			}
+			SnapshotFile.writeVarInt(out, user.ownership.size());
+			for (int j = 0; j < user.ownership.size(); j++) {
+				strings.writeId(out, user.ownership.get(j));
+			}
+		}
+		writer.endSection();
+	}
+
+	private void readUsers(DataInputStream in, int version) throws IOException
+	{
+		journalGeneration = in.readLong();
+		String[] strings = SnapshotFile.readStrings(in, version);
+		int count = SnapshotFile.readVarInt(in);
+		for (int i = 0; i < count; i++) {
+			String username = SnapshotFile.readText(in, version);
+			byte[] salt = new byte[SnapshotFile.readVarInt(in)];
+			in.readFully(salt);
+			User user = new User(salt, in.readBoolean() ? SnapshotFile.readText(in, version) : null);
+			int groups = SnapshotFile.readVarInt(in);
+			for (int j = 0; j < groups; j++) {
+				user.addGroup(SnapshotFile.readString(in, strings));
+			}
+			int owned = SnapshotFile.readVarInt(in);
+			for (int j = 0; j < owned; j++) {
+				user.addOwnership(SnapshotFile.readString(in, strings));
+			}
+			list.put(username, user);
+			users.add(username);
+		}
+	}
+
+	/**
+	 * This method appends a change to the journal, if there is one. The caller
+	 * holds the list's monitor, so changes are journaled in the order they are made.
+	 * @param kind the kind of change
+	 * @param fields its fields
+	 */
+	private void log(byte kind, Object... fields)
+	{
+		if (journal == null) {
+			return;
+		}
+
+		Object[] record = new Object[fields.length + 2];
+		record[0] = JOURNAL_TAG;
+		record[1] = kind;
+		System.arraycopy(fields, 0, record, 2, fields.length);
+		journal.append(Journal.record(record));
+	}
+
+	/**
+	 * This method replays a change from the journal, after the JOURNAL_TAG.
+	 * Users are recreated with the salt and hash they were created with, so
+	 * passwords never reach the journal.
+	 * @param record the record
+	 */
+	public synchronized void apply(DataInputStream record) throws IOException
+	{
+		byte kind = record.readByte();
+		String user = Journal.readString(record);
+		if (kind == ADD_USER) {
+			copyOnWrite();
+			list.put(user, new User(Journal.readBytes(record), Journal.readString(record)));
+			users.add(user);
+		}
+		else if (kind == DELETE_USER) {
+			copyOnWrite();
+			list.remove(user);
+			users.remove(user);
+		}
+		else if (kind == ADD_GROUP) {
+			changeUser(user).addGroup(Journal.readString(record));
+		}
+		else if (kind == REMOVE_GROUP) {
+			changeUser(user).removeGroup(Journal.readString(record));
+		}
+		else if (kind == ADD_OWNERSHIP) {
+			changeUser(user).addOwnership(Journal.readString(record));
+		}
+		else if (kind == REMOVE_OWNERSHIP) {
+			changeUser(user).removeOwnership(Journal.readString(record));
+		}
+		else {
+			throw new IOException("Unknown UserList journal record " + kind);
+		}
+	}
+
 
 	class User implements java.io.Serializable {
 
@@ -136,6 +390,34 @@ public class UserList implements java.io.Serializable {
 			lastPasswordCheck = new Date();
 		}
 
+		/**
+		 * This method recreates a user from the salt and hash of their password.
+		 * @param _salt the salt
+		 * @param _hash the hash of the salt and password
+		 */
+		public User(byte[] _salt, String _hash)
+		{
+			groups = new ArrayList<String>();
+			ownership = new ArrayList<String>();
+			salt = _salt;
+			hash = _hash;
+			lastPasswordCheck = new Date();
+		}
+
+		/**
+		 * This method copies a user, so that one can be changed while the
+		 * other is written to a snapshot.
+		 * @param other the user to copy
+		 */
+		public User(User other)
+		{
+			groups = new ArrayList<String>(other.groups);
+			ownership = new ArrayList<String>(other.ownership);
+			salt = other.salt;
+			hash = other.hash;
+			lastPasswordCheck = other.lastPasswordCheck;
+		}
+
 		public ArrayList<String> getGroups()
 		{
 			return groups;
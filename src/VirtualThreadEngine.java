@@ -0,0 +1,146 @@
+/* The VirtualThreadEngine serves each connection on its own virtual thread.
+* The handlers run exactly as in thread-per-connection mode, blocking on their
+* object streams, but a virtual thread blocked on a socket gives up its carrier
+* thread, and its stack grows on the heap instead of being reserved up front.
+* Idle sessions then cost memory rather than platform threads, without tuning
+* -Xss.
+*
+* The handlers hold no monitors while blocked: the shared lists synchronize
+* only around in-memory updates, and socket and file reads are made outside
+* them, so virtual threads do not pin their carriers.
+*
+* Virtual threads need Java 21. They are looked up by reflection so the code
+* still builds for older releases, where this engine falls back to a platform
+* thread per connection.
+*
+* Every REPORT_INTERVAL_MS the engine prints how many connection threads are
+* live and how many carrier threads run them.
+*/
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class VirtualThreadEngine {
+
+	// how often the thread counts are printed
+	public static final long REPORT_INTERVAL_MS = 60 * 1000L;
+
+	// class of the platform threads that run virtual threads
+	private static final String CARRIER_THREAD_CLASS = "jdk.internal.misc.CarrierThread";
+
+	private final Server server;
+	private final AdmissionControl admission;
+	private final ServerSocketChannel serverChannel;
+
+	// creates virtual threads, or null if the runtime has none
+	private final ThreadFactory factory;
+
+	// connections whose thread has started and not yet finished
+	private final AtomicInteger live = new AtomicInteger();
+
+	public VirtualThreadEngine(Server _server, AdmissionControl _admission, ServerSocketChannel _serverChannel)
+	{
+		server = _server;
+		admission = _admission;
+		serverChannel = _serverChannel;
+		factory = virtualThreadFactory();
+	}
+
+	/**
+	 * This method returns a factory for virtual threads, Thread.ofVirtual().factory().
+	 * @return the factory, or null if the runtime does not support virtual threads
+	 */
+	private static ThreadFactory virtualThreadFactory()
+	{
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method newFactory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) newFactory.invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * This method accepts and serves connections until the process exits.
+	 */
+	public void run() throws IOException
+	{
+		if (factory == null) {
+			System.err.println("Virtual threads need Java 21 or later; using one platform thread per connection.");
+		}
+
+		Thread reporter = new Thread(new Runnable() {
+			public void run() {
+				report();
+			}
+		}, "thread-count-reporter");
+		reporter.setDaemon(true);
+		reporter.start();
+
+		while (true) {
+			SocketChannel channel = serverChannel.accept();
+			if (!admission.admitConnection()) {
+				admission.reject(channel);
+				continue;
+			}
+
+			// the handler is only the body; it is never started as a thread itself
+			final Runnable admitted = server.admitted(server.createConnection(channel.socket()));
+			Runnable body = new Runnable() {
+				public void run() {
+					try {
+						admitted.run();
+					} finally {
+						live.decrementAndGet();
+					}
+				}
+			};
+
+			live.incrementAndGet();
+			if (factory != null) {
+				factory.newThread(body).start();
+			} else {
+				new Thread(body).start();
+			}
+		}
+	}
+
+	/**
+	 * This method prints the thread counts every REPORT_INTERVAL_MS.
+	 */
+	private void report()
+	{
+		while (true) {
+			try {
+				Thread.sleep(REPORT_INTERVAL_MS);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			System.out.println("Connection threads: " + live.get() + " live, " + countCarriers() + " carriers");
+		}
+	}
+
+	/**
+	 * This method counts the carrier threads currently alive. Virtual threads
+	 * are not listed by Thread.getAllStackTraces, but their carriers are.
+	 * @return the number of carrier threads
+	 */
+	public static int countCarriers()
+	{
+		int carriers = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (CARRIER_THREAD_CLASS.equals(thread.getClass().getName())) {
+				carriers++;
+			}
+		}
+
+		return carriers;
+	}
+}